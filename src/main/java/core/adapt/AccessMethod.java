@@ -1,5 +1,7 @@
 package core.adapt;
 
+import com.google.common.primitives.Ints;
+import core.adapt.iterator.MultiQueryIterator;
 import core.adapt.iterator.PartitionIterator;
 import core.adapt.opt.Optimizer;
 import core.adapt.spark.SparkQueryConf;
@@ -9,6 +11,12 @@ import core.common.index.RobustTree;
 import core.common.key.RawIndexKey;
 import core.utils.HDFSUtils;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
  * This access method class considers filter access method over the distributed
  * dataset. The filter could be extracted as: - the selection predicate in
@@ -43,6 +51,14 @@ public class AccessMethod {
         opt.loadQueries();
     }
 
+    /**
+     * Releases the pin on the index version read once the jobs reading it
+     * are done.
+     */
+    public void releaseIndexAfterJobs() {
+        opt.releaseIndexAfterJobs();
+    }
+
     public RobustTree getIndex() {
         return opt.getIndex();
     }
@@ -51,6 +67,22 @@ public class AccessMethod {
         return key;
     }
 
+    /**
+     * Version of the index being read, 0 for the index of the upfront
+     * partitioner.
+     */
+    public long getIndexVersion() {
+        return opt.getIndexVersion();
+    }
+
+    /**
+     * Pass the actual partition sizes to the optimizer, so that its costs
+     * are in bytes read / written rather than in tuples.
+     */
+    public void setPartitionSizes(Map<Integer, Long> partitionIdSizeMap) {
+        opt.getIndex().setBucketSizes(partitionIdSizeMap);
+    }
+
     /**
      * This method is used to: 1. lookup the partition index for relevant
      * partitions 2. and, to create splits of partitions which could be assigned
@@ -69,6 +101,62 @@ public class AccessMethod {
         }
     }
 
+    /**
+     * Plans a shared scan of the queries, all on the same table: each bucket
+     * any of them reads is read once, by a split whose iterator checks its
+     * records against all the queries reading it. Buckets read by the same
+     * queries are in the same split. The layout is not adapted.
+     *
+     * @return the splits, their iterators know the queries by their index.
+     */
+    public PartitionSplit[] getSharedPartitionSplits(Query[] queries) {
+        // The queries reading each bucket.
+        Map<Integer, List<Integer>> bucketQueries = new TreeMap<Integer, List<Integer>>();
+        long numReads = 0;
+        for (int i = 0; i < queries.length; i++) {
+            for (PartitionSplit split : getPartitionSplits(queries[i], true)) {
+                for (int bucket : split.getPartitions()) {
+                    if (!bucketQueries.containsKey(bucket)) {
+                        bucketQueries.put(bucket, new ArrayList<Integer>());
+                    }
+                    bucketQueries.get(bucket).add(i);
+                    numReads++;
+                }
+            }
+        }
+
+        Map<List<Integer>, List<Integer>> groups = new LinkedHashMap<List<Integer>, List<Integer>>();
+        for (Map.Entry<Integer, List<Integer>> e : bucketQueries.entrySet()) {
+            if (!groups.containsKey(e.getValue())) {
+                groups.put(e.getValue(), new ArrayList<Integer>());
+            }
+            groups.get(e.getValue()).add(e.getKey());
+        }
+        System.out.println("INFO: Shared scan of " + queries.length + " queries reads "
+                + bucketQueries.size() + " buckets instead of " + numReads);
+
+        PartitionSplit[] splits = new PartitionSplit[groups.size()];
+        int s = 0;
+        for (Map.Entry<List<Integer>, List<Integer>> e : groups.entrySet()) {
+            int[] ids = Ints.toArray(e.getKey());
+            Query[] sharing = new Query[ids.length];
+            for (int j = 0; j < ids.length; j++) {
+                sharing[j] = queries[ids[j]];
+            }
+            splits[s++] = new PartitionSplit(Ints.toArray(e.getValue()),
+                    new MultiQueryIterator(ids, sharing));
+        }
+        return splits;
+    }
+
+    /**
+     * Plans the repartitioning adapting the layout to a batch of queries
+     * together, see Optimizer.buildBatchPlan.
+     */
+    public PartitionSplit[] getBatchRepartitionSplits(Query[] queries) {
+        return opt.buildBatchPlan(queries);
+    }
+
     /**
      * This class encapsulates a set of partitions which should be accessed in a
      * similar fashion. Each split gets assigned to a node as a whole.
@@ -0,0 +1,68 @@
+package core.adapt;
+
+import core.utils.TypeUtils.TYPE;
+
+/**
+ * An aggregate computed over the records a query selects, per group if the
+ * query groups them. COUNT counts the records, the others read an attribute.
+ */
+public class Aggregate {
+    public FUNC func;
+    // -1 for COUNT.
+    public int attribute;
+    public TYPE type;
+
+    public Aggregate(FUNC func, int attr, TYPE t) {
+        this.func = func;
+        this.attribute = attr;
+        this.type = t;
+        check();
+    }
+
+    /**
+     * Parses FUNC:attribute:TYPE, or just COUNT.
+     */
+    public Aggregate(String aggString) {
+        String[] tokens = aggString.split(":");
+        this.func = FUNC.valueOf(tokens[0]);
+        if (tokens.length > 1) {
+            this.attribute = Integer.parseInt(tokens[1]);
+            this.type = TYPE.valueOf(tokens[2]);
+        } else {
+            this.attribute = -1;
+            this.type = TYPE.LONG;
+        }
+        check();
+    }
+
+    public static Aggregate count() {
+        return new Aggregate(FUNC.COUNT, -1, TYPE.LONG);
+    }
+
+    private void check() {
+        switch (func) {
+            case COUNT:
+                return;
+            case SUM:
+            case AVG:
+                if (type == TYPE.INT || type == TYPE.LONG || type == TYPE.DOUBLE)
+                    return;
+                break;
+            default:
+                if (type != TYPE.BOOLEAN && type != TYPE.VARCHAR)
+                    return;
+        }
+        throw new IllegalArgumentException("Can't " + func + " an attribute of type " + type);
+    }
+
+    @Override
+    public String toString() {
+        if (func == FUNC.COUNT)
+            return func.toString();
+        return func + ":" + attribute + ":" + type;
+    }
+
+    public enum FUNC {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+}
@@ -0,0 +1,203 @@
+package core.adapt;
+
+import core.utils.HDFSUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The bytes of the bucket files read last on this executor, kept off the
+ * heap up to a budget, the least recently used evicted first.
+ * <p/>
+ * An entry is keyed by the path of the file, which names its bucket, and by
+ * its length and modification time, the version of its layout: appending to
+ * a bucket or rewriting it by repartitioning gives a new key, and the old
+ * entry ages out. Files above a quarter of the budget are not cached.
+ * <p/>
+ * Each executor reports the files of a table it caches in TABLE/cache, so
+ * that the splits reading them can be placed on its host.
+ */
+public class BucketCache {
+    private static BucketCache instance;
+
+    // Reports older than this are from executors that are likely gone.
+    public static long reportTtlMillis = 60 * 60 * 1000;
+
+    private long budget;
+    private long used;
+    // In access order, the least recently used first.
+    private LinkedHashMap<String, ByteBuffer> entries =
+            new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+
+    private BucketCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * The cache of this executor with the given budget, null if it is not
+     * positive.
+     */
+    public static synchronized BucketCache get(long budgetBytes) {
+        if (budgetBytes <= 0) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new BucketCache(budgetBytes);
+        } else if (instance.budget != budgetBytes) {
+            instance.resize(budgetBytes);
+        }
+        return instance;
+    }
+
+    public static String getKey(FileStatus file) {
+        return file.getPath().toString() + "@" + file.getLen() + ":" + file.getModificationTime();
+    }
+
+    private static String getPath(String key) {
+        return key.substring(0, key.lastIndexOf('@'));
+    }
+
+    /**
+     * Whether a file of the length may be cached: up to a quarter of the
+     * budget, and no more than a direct buffer holds.
+     */
+    public boolean fits(long length) {
+        return length <= Math.min(budget / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The bytes of the file, null if not cached. The buffer is a view of
+     * its own, read it from position 0.
+     */
+    public synchronized ByteBuffer get(String key) {
+        ByteBuffer bytes = entries.get(key);
+        if (bytes == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return bytes.duplicate();
+    }
+
+    /**
+     * An off heap buffer to read a file of the length into, for put.
+     */
+    public static ByteBuffer allocate(long length) {
+        return ByteBuffer.allocateDirect((int) length);
+    }
+
+    /**
+     * Caches the bytes of the file, from position 0 to the limit of the
+     * buffer, evicting the least recently used files to make room.
+     */
+    public synchronized void put(String key, ByteBuffer bytes) {
+        if (!fits(bytes.capacity())) {
+            return;
+        }
+        ByteBuffer old = entries.remove(key);
+        if (old != null) {
+            used -= old.capacity();
+        }
+        evict(budget - bytes.capacity());
+        entries.put(key, bytes);
+        used += bytes.capacity();
+    }
+
+    private void evict(long target) {
+        Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator();
+        while (used > target && it.hasNext()) {
+            used -= it.next().getValue().capacity();
+            it.remove();
+        }
+    }
+
+    private synchronized void resize(long budgetBytes) {
+        budget = budgetBytes;
+        evict(budget);
+    }
+
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    public synchronized String getStats() {
+        return entries.size() + " files, " + used + " of " + budget + " bytes, "
+                + hits + " hits, " + misses + " misses";
+    }
+
+    /**
+     * Writes the paths of the files of the table this executor caches to
+     * TABLE/cache/EXECUTOR, after its host.
+     */
+    public void report(FileSystem fs, String tableDir, short replication) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            sb.append(InetAddress.getLocalHost().getHostName()).append('\n');
+        } catch (IOException e) {
+            return;
+        }
+        synchronized (this) {
+            for (String key : entries.keySet()) {
+                if (getPath(key).contains(tableDir + "/")) {
+                    sb.append(getPath(key)).append('\n');
+                }
+            }
+        }
+
+        String executor = ManagementFactory.getRuntimeMXBean().getName().replace('@', '-');
+        byte[] bytes = sb.toString().getBytes();
+        try {
+            HDFSUtils.writeFile(fs, getReportDir(tableDir) + "/" + executor, replication,
+                    bytes, 0, bytes.length, false);
+        } catch (RuntimeException e) {
+            System.out.println("WARN: Failed to report cached buckets: " + e.getMessage());
+        }
+    }
+
+    public static String getReportDir(String tableDir) {
+        return tableDir + "/cache";
+    }
+
+    /**
+     * The hosts caching each file of the table, from the recent reports of
+     * the executors.
+     */
+    public static Map<String, List<String>> getCachedFiles(FileSystem fs, String tableDir) {
+        Map<String, List<String>> hosts = new LinkedHashMap<String, List<String>>();
+        Path dir = new Path(getReportDir(tableDir));
+        try {
+            if (!fs.exists(dir)) {
+                return hosts;
+            }
+            long now = System.currentTimeMillis();
+            for (FileStatus report : fs.listStatus(dir)) {
+                if (now - report.getModificationTime() > reportTtlMillis) {
+                    continue;
+                }
+                String[] lines = new String(HDFSUtils.readFile(fs, report.getPath().toString()))
+                        .split("\n");
+                for (int i = 1; i < lines.length; i++) {
+                    if (!hosts.containsKey(lines[i])) {
+                        hosts.put(lines[i], new ArrayList<String>());
+                    }
+                    hosts.get(lines[i]).add(lines[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("WARN: Failed to read the cached buckets: " + e.getMessage());
+        }
+        return hosts;
+    }
+}
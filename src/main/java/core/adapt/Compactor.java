@@ -0,0 +1,278 @@
+package core.adapt;
+
+import com.google.common.collect.ArrayListMultimap;
+import core.utils.HDFSUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts the buckets that repartitioning has spread over many segments.
+ * <p/>
+ * Every extra segment is another file to open and another entry in a split,
+ * so a bucket with too many segments, or mostly small ones, is rewritten into
+ * a single file. The rewritten buckets are made visible as a new index version
+ * with the same index, the old segments are removed by the cleaner once no
+ * reader needs them. Compaction backs off while the table is being
+ * repartitioned, and its reads and writes are throttled so that it does not
+ * starve the queries.
+ */
+public class Compactor {
+    // A bucket with at least this many segments is compacted.
+    public static int maxSegments = 8;
+
+    // Segments smaller than this are small.
+    public static long smallSegmentBytes = 16 * 1024 * 1024;
+
+    // A bucket of more than one segment with at least this fraction of small
+    // segments is compacted.
+    public static double smallSegmentRatio = 0.5;
+
+    // Bytes read and written per second, for all the buckets together.
+    public static long maxBytesPerSecond = 32 * 1024 * 1024;
+
+    public static long compactionPeriod = 30 * 60 * 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static ScheduledExecutorService compactor;
+    private static Set<String> compactedTables = new HashSet<String>();
+
+    // Metrics, over all the tables since startup.
+    private static AtomicLong numRuns = new AtomicLong();
+    private static AtomicLong bucketsCompacted = new AtomicLong();
+    private static AtomicLong segmentsRemoved = new AtomicLong();
+    private static AtomicLong bytesRewritten = new AtomicLong();
+    private static AtomicLong throttledMillis = new AtomicLong();
+
+    public static long getNumRuns() {
+        return numRuns.get();
+    }
+
+    public static long getBucketsCompacted() {
+        return bucketsCompacted.get();
+    }
+
+    public static long getSegmentsRemoved() {
+        return segmentsRemoved.get();
+    }
+
+    public static long getBytesRewritten() {
+        return bytesRewritten.get();
+    }
+
+    public static long getThrottledMillis() {
+        return throttledMillis.get();
+    }
+
+    /**
+     * Whether the segments of a bucket should be rewritten into one file.
+     *
+     * @param lengths length of each segment of the bucket
+     */
+    public static boolean needsCompaction(List<Long> lengths) {
+        if (lengths.size() <= 1) {
+            return false;
+        }
+
+        if (lengths.size() >= maxSegments) {
+            return true;
+        }
+
+        int small = 0;
+        for (long length : lengths) {
+            if (length < smallSegmentBytes) {
+                small++;
+            }
+        }
+        return small >= smallSegmentRatio * lengths.size();
+    }
+
+    /**
+     * Compacts the fragmented buckets of the current version of the table.
+     *
+     * @return the number of buckets compacted
+     */
+    public static int compact(FileSystem fs, String tableDir, short replication) {
+        long current = IndexVersions.getCurrentVersion(fs, tableDir);
+        if (current == 0 || IndexVersions.hasPendingVersion(fs, tableDir)) {
+            // Buckets of version 0 are single files; a pending version will
+            // rewrite some of the buckets anyway.
+            return 0;
+        }
+
+        numRuns.incrementAndGet();
+        ArrayListMultimap<Integer, String[]> files = IndexVersions.getBucketFiles(fs,
+                tableDir, current);
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int id : files.keySet()) {
+            List<Long> lengths = new ArrayList<Long>();
+            for (String[] entry : files.get(id)) {
+                lengths.add(Long.parseLong(entry[2]));
+            }
+            if (needsCompaction(lengths)) {
+                candidates.add(id);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        byte[] indexBytes = HDFSUtils.readFile(fs, IndexVersions.getIndexPath(tableDir, current));
+        long version = IndexVersions.createVersion(fs, tableDir, replication, indexBytes);
+        if (version != current + 1) {
+            // Somebody started repartitioning in the meantime.
+            IndexVersions.abandon(fs, tableDir, version);
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        String prefix = "compact_" + UUID.randomUUID().toString();
+        List<String[]> segments = new ArrayList<String[]>();
+        long bytes = 0;
+        int removed = 0;
+        try {
+            for (int id : candidates) {
+                List<String[]> entries = files.get(id);
+                String[] segment = rewrite(fs, tableDir + "/data/" + id + "/" + prefix + "-0",
+                        id, entries, replication, bytes, start);
+                segments.add(segment);
+                bytes += Long.parseLong(segment[2]);
+                removed += entries.size();
+            }
+
+            IndexVersions.publishSegments(fs, tableDir, version, prefix, segments, replication);
+            Set<Integer> bucketIds = files.keySet();
+            int[] ids = new int[bucketIds.size()];
+            int i = 0;
+            for (int id : bucketIds) {
+                ids[i++] = id;
+            }
+            IndexVersions.commit(fs, tableDir, version, ids, replication);
+        } catch (RuntimeException e) {
+            IndexVersions.abandon(fs, tableDir, version);
+            throw e;
+        }
+
+        bucketsCompacted.addAndGet(candidates.size());
+        segmentsRemoved.addAndGet(removed - candidates.size());
+        bytesRewritten.addAndGet(bytes);
+        System.out.println("INFO: Compacted " + candidates.size() + " buckets of " + tableDir
+                + ", " + removed + " segments into " + candidates.size() + ", " + bytes
+                + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+        System.out.println("INFO: Compaction totals: runs=" + getNumRuns() + " buckets="
+                + getBucketsCompacted() + " segmentsRemoved=" + getSegmentsRemoved()
+                + " bytes=" + getBytesRewritten() + " throttledMs=" + getThrottledMillis());
+        return candidates.size();
+    }
+
+    /**
+     * Concatenates the segments of a bucket into a new file. Segments hold
+     * whole tuples, so the result is the same as having appended them.
+     *
+     * @param copied bytes already copied in this run, for throttling
+     * @param start  start of this run
+     * @return the new segment, {bucket id, path, length}
+     */
+    private static String[] rewrite(FileSystem fs, String path, int id,
+                                    List<String[]> entries, short replication,
+                                    long copied, long start) {
+        Path out = new Path(path);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+        try {
+            FSDataOutputStream os = fs.create(out, false, BUFFER_SIZE, replication,
+                    fs.getDefaultBlockSize(out));
+            try {
+                for (String[] entry : entries) {
+                    FSDataInputStream in = fs.open(new Path(entry[1]));
+                    try {
+                        int n;
+                        while ((n = in.read(buffer)) > 0) {
+                            os.write(buffer, 0, n);
+                            length += n;
+                            throttle(copied + length, start);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            HDFSUtils.deleteFile(fs, path, false);
+            throw new RuntimeException("Failed to compact bucket " + id);
+        }
+
+        return new String[]{"" + id, fs.makeQualified(out).toString(), "" + length};
+    }
+
+    /**
+     * Sleeps till copying the bytes so far no longer exceeds the rate limit.
+     */
+    private static void throttle(long bytes, long start) {
+        if (maxBytesPerSecond <= 0) {
+            return;
+        }
+
+        long ahead = bytes * 1000 / maxBytesPerSecond - (System.currentTimeMillis() - start);
+        if (ahead > 0) {
+            try {
+                Thread.sleep(ahead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Compaction interrupted");
+            }
+            throttledMillis.addAndGet(ahead);
+        }
+    }
+
+    /**
+     * Periodically compacts the table in the background. Does nothing if the
+     * table is already being compacted.
+     */
+    public static synchronized void startCompactor(final FileSystem fs, final String tableDir,
+                                                   final short replication) {
+        if (!compactedTables.add(tableDir)) {
+            return;
+        }
+
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bucket-compactor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(fs, tableDir, replication);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, compactionPeriod, compactionPeriod, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,955 @@
+package core.adapt;
+
+import com.google.common.base.Joiner;
+import core.adapt.iterator.RecordBatch;
+import core.common.key.RawIndexKey;
+import core.utils.TypeUtils;
+import core.utils.TypeUtils.SimpleDate;
+import core.utils.TypeUtils.TYPE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The predicates of a query on one attribute, merged into the set of values
+ * they accept and specialized for the type of the attribute.
+ * <p/>
+ * Checking a record reads the attribute as a primitive and compares it with
+ * the bounds, there is no boxing and no switch on the type or the kind of
+ * predicate per record. Ints, longs, dates (as yyyymmdd) and doubles (by
+ * their bits, in the order of Double.compare) are mapped to long keys, and
+ * the predicates become a range or a sorted list of ranges of keys, both
+ * bounds inclusive; IN lists are lists of single keys. The same ranges decide
+ * which subtrees of the index a query goes to.
+ * <p/>
+ * Each predicate also counts the records it sees and passes, and the time it
+ * takes on a sample of them, so the query can evaluate the cheap, selective
+ * ones first.
+ */
+public abstract class CompiledPredicate {
+    protected int attribute;
+
+    // Records checked and passed, and time spent on the timed ones.
+    private long evaluated;
+    private long passed;
+    private long timed;
+    private long nanos;
+
+    protected CompiledPredicate(int attribute) {
+        this.attribute = attribute;
+    }
+
+    public int getAttribute() {
+        return attribute;
+    }
+
+    public void addObservation(long evaluated, long passed) {
+        this.evaluated += evaluated;
+        this.passed += passed;
+    }
+
+    public void addTiming(long timed, long nanos) {
+        this.timed += timed;
+        this.nanos += nanos;
+    }
+
+    public long getEvaluated() {
+        return evaluated;
+    }
+
+    /**
+     * Fraction of the records checked that passed, 1 if none were checked.
+     */
+    public double getPassRate() {
+        return evaluated == 0 ? 1 : (double) passed / evaluated;
+    }
+
+    /**
+     * Nanoseconds per record, 0 if none were timed.
+     */
+    public double getCost() {
+        return timed == 0 ? 0 : (double) nanos / timed;
+    }
+
+    /**
+     * Expected cost of the predicate per record it rejects; evaluating the
+     * predicates by increasing rank minimizes the expected cost of the
+     * conjunction.
+     */
+    public double getRank() {
+        return getCost() / Math.max(1 - getPassRate(), 1e-6);
+    }
+
+    public String getStats() {
+        return String.format("%s: passed %.4f of %d, %.1f ns/record", this,
+                getPassRate(), evaluated, getCost());
+    }
+
+    /**
+     * Whether the attribute of the record is accepted.
+     */
+    public abstract boolean isRelevant(RawIndexKey record);
+
+    /**
+     * Whether the attribute of record i of the batch is accepted.
+     */
+    protected boolean isRelevant(RecordBatch batch, int i) {
+        return isRelevant(batch.getRecord(i));
+    }
+
+    /**
+     * Drops the selected records of the batch not accepted.
+     */
+    public void filter(RecordBatch batch) {
+        int[] selection = batch.getSelection();
+        int n = batch.getNumSelected();
+        int selected = 0;
+        for (int k = 0; k < n; k++) {
+            int i = selection[k];
+            if (isRelevant(batch, i)) {
+                selection[selected++] = i;
+            }
+        }
+        batch.setNumSelected(selected);
+    }
+
+    /**
+     * Whether some value v with low < v <= high, the values of a subtree of
+     * the index on the attribute, may be accepted. A null bound is open.
+     */
+    public abstract boolean intersects(Object low, Object high);
+
+    /**
+     * Whether every value min <= v <= max, the range of the attribute in a
+     * zone map, is accepted. False when that can't be told.
+     */
+    public boolean contains(Object min, Object max) {
+        return false;
+    }
+
+    /**
+     * Whether some value <= cutpoint, the left side of a split on the
+     * attribute, may be accepted.
+     */
+    public boolean intersectsLeft(Object cutpoint) {
+        return intersects(null, cutpoint);
+    }
+
+    /**
+     * Whether some value > cutpoint, the right side of a split on the
+     * attribute, may be accepted.
+     */
+    public boolean intersectsRight(Object cutpoint) {
+        return intersects(cutpoint, null);
+    }
+
+    /**
+     * Merges the predicates by attribute, in the order each attribute first
+     * appears.
+     */
+    public static CompiledPredicate[] compile(Predicate[] ps) {
+        Map<Integer, List<Predicate>> byAttribute = new LinkedHashMap<Integer, List<Predicate>>();
+        for (Predicate p : ps) {
+            List<Predicate> l = byAttribute.get(p.attribute);
+            if (l == null) {
+                l = new ArrayList<Predicate>();
+                byAttribute.put(p.attribute, l);
+            }
+            l.add(p);
+        }
+
+        CompiledPredicate[] compiled = new CompiledPredicate[byAttribute.size()];
+        int i = 0;
+        for (Map.Entry<Integer, List<Predicate>> e : byAttribute.entrySet()) {
+            compiled[i++] = compile(e.getKey(), e.getValue());
+        }
+        return compiled;
+    }
+
+    private static CompiledPredicate compile(int attribute, List<Predicate> ps) {
+        TYPE type = ps.get(0).type;
+        for (Predicate p : ps) {
+            if (p.type != type) {
+                return new Interpreted(attribute, ps);
+            }
+        }
+
+        switch (type) {
+            case INT:
+            case LONG:
+            case DATE:
+            case DOUBLE:
+                Key key = Key.forType(type);
+                long[][] intervals = getIntervals(key, ps);
+                if (intervals[0].length == 1) {
+                    return new KeyRange(attribute, key, intervals[0][0], intervals[1][0]);
+                }
+                return new KeyIntervals(attribute, key, intervals[0], intervals[1]);
+            case STRING:
+                return compileStrings(attribute, ps);
+            default:
+                return new Interpreted(attribute, ps);
+        }
+    }
+
+    private static CompiledPredicate compileStrings(int attribute, List<Predicate> ps) {
+        List<Predicate> ranges = new ArrayList<Predicate>();
+        List<CompiledPredicate> parts = new ArrayList<CompiledPredicate>();
+        for (Predicate p : ps) {
+            switch (p.predtype) {
+                case IN:
+                    parts.add(new StringSet(attribute, (Object[]) p.value));
+                    break;
+                case OR:
+                    Object[] bounds = (Object[]) p.value;
+                    List<CompiledPredicate> alternatives = new ArrayList<CompiledPredicate>();
+                    for (int i = 0; i + 1 < bounds.length; i += 2) {
+                        alternatives.add(new StringRange(attribute,
+                                (String) bounds[i], (String) bounds[i + 1]));
+                    }
+                    parts.add(new AnyOf(attribute, alternatives));
+                    break;
+                default:
+                    ranges.add(p);
+            }
+        }
+
+        if (!ranges.isEmpty()) {
+            parts.add(0, new StringRange(attribute, ranges));
+        }
+        return parts.size() == 1 ? parts.get(0) : new AllOf(attribute, parts);
+    }
+
+    public static long encodeDate(SimpleDate d) {
+        return d.getYear() * 10000L + d.getMonth() * 100 + d.getDay();
+    }
+
+    /**
+     * Ranges of keys the predicates all accept, as sorted, disjoint lows
+     * and highs.
+     */
+    static long[][] getIntervals(Key key, List<Predicate> ps) {
+        long[][] intervals = new long[][]{{Long.MIN_VALUE}, {Long.MAX_VALUE}};
+        for (Predicate p : ps) {
+            intervals = intersect(intervals, getIntervals(key, p));
+        }
+        return intervals;
+    }
+
+    private static long[][] getIntervals(Key key, Predicate p) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        switch (p.predtype) {
+            case GT: {
+                long k = key.toKey(p.value);
+                if (k != Long.MAX_VALUE) {
+                    ranges.add(new long[]{k + 1, Long.MAX_VALUE});
+                }
+                break;
+            }
+            case GEQ:
+                ranges.add(new long[]{key.toKey(p.value), Long.MAX_VALUE});
+                break;
+            case LT: {
+                long k = key.toKey(p.value);
+                if (k != Long.MIN_VALUE) {
+                    ranges.add(new long[]{Long.MIN_VALUE, k - 1});
+                }
+                break;
+            }
+            case LEQ:
+                ranges.add(new long[]{Long.MIN_VALUE, key.toKey(p.value)});
+                break;
+            case EQ: {
+                long k = key.toKey(p.value);
+                ranges.add(new long[]{k, k});
+                break;
+            }
+            case IN:
+                for (Object v : (Object[]) p.value) {
+                    long k = key.toKey(v);
+                    ranges.add(new long[]{k, k});
+                }
+                break;
+            case BETWEEN:
+            case OR:
+                Object[] bounds = (Object[]) p.value;
+                for (int i = 0; i + 1 < bounds.length; i += 2) {
+                    long low = bounds[i] == null ? Long.MIN_VALUE : key.toKey(bounds[i]);
+                    long high = bounds[i + 1] == null ? Long.MAX_VALUE : key.toKey(bounds[i + 1]);
+                    if (low <= high) {
+                        ranges.add(new long[]{low, high});
+                    }
+                }
+                break;
+        }
+        return union(ranges);
+    }
+
+    private static long[][] union(List<long[]> ranges) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] r1, long[] r2) {
+                return Long.compare(r1[0], r2[0]);
+            }
+        });
+
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] r : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && (last[1] == Long.MAX_VALUE || r[0] <= last[1] + 1)) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                merged.add(new long[]{r[0], r[1]});
+            }
+        }
+        return toArrays(merged);
+    }
+
+    private static long[][] intersect(long[][] a, long[][] b) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        int i = 0, j = 0;
+        while (i < a[0].length && j < b[0].length) {
+            long low = Math.max(a[0][i], b[0][j]);
+            long high = Math.min(a[1][i], b[1][j]);
+            if (low <= high) {
+                ranges.add(new long[]{low, high});
+            }
+            if (a[1][i] < b[1][j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return toArrays(ranges);
+    }
+
+    private static long[][] toArrays(List<long[]> ranges) {
+        long[][] arrays = new long[2][ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            arrays[0][i] = ranges.get(i)[0];
+            arrays[1][i] = ranges.get(i)[1];
+        }
+        return arrays;
+    }
+
+    /**
+     * Maps the values of a type to longs, preserving their order.
+     */
+    static abstract class Key {
+        static Key forType(TYPE type) {
+            switch (type) {
+                case INT:
+                    return new IntKey();
+                case LONG:
+                    return new LongKey();
+                case DATE:
+                    return new DateKey();
+                default:
+                    return new DoubleKey();
+            }
+        }
+
+        abstract long toKey(Object value);
+
+        abstract Object fromKey(long key);
+
+        abstract long read(RawIndexKey record, int attribute);
+
+        abstract long read(RecordBatch batch, int i, int attribute);
+
+        String format(long key) {
+            if (key == Long.MIN_VALUE) {
+                return "-inf";
+            } else if (key == Long.MAX_VALUE) {
+                return "inf";
+            }
+            return toString(key);
+        }
+
+        String toString(long key) {
+            return Long.toString(key);
+        }
+    }
+
+    static class IntKey extends Key {
+        @Override
+        long toKey(Object value) {
+            return (Integer) value;
+        }
+
+        @Override
+        Object fromKey(long key) {
+            return (int) key;
+        }
+
+        @Override
+        long read(RawIndexKey record, int attribute) {
+            return record.getIntAttribute(attribute);
+        }
+
+        @Override
+        long read(RecordBatch batch, int i, int attribute) {
+            return batch.getInt(i, attribute);
+        }
+    }
+
+    static class LongKey extends Key {
+        @Override
+        long toKey(Object value) {
+            return (Long) value;
+        }
+
+        @Override
+        Object fromKey(long key) {
+            return key;
+        }
+
+        @Override
+        long read(RawIndexKey record, int attribute) {
+            return record.getLongAttribute(attribute);
+        }
+
+        @Override
+        long read(RecordBatch batch, int i, int attribute) {
+            return batch.getLong(i, attribute);
+        }
+    }
+
+    static class DateKey extends Key {
+        @Override
+        long toKey(Object value) {
+            return encodeDate((SimpleDate) value);
+        }
+
+        @Override
+        Object fromKey(long key) {
+            return new SimpleDate((int) (key / 10000), (int) (key / 100 % 100),
+                    (int) (key % 100));
+        }
+
+        @Override
+        long read(RawIndexKey record, int attribute) {
+            // Reuses the date of the record, nothing is allocated.
+            return encodeDate(record.getDateAttribute(attribute));
+        }
+
+        @Override
+        long read(RecordBatch batch, int i, int attribute) {
+            return batch.getDate(i, attribute);
+        }
+
+        @Override
+        String toString(long key) {
+            return fromKey(key).toString();
+        }
+    }
+
+    static class DoubleKey extends Key {
+        static long toKey(double d) {
+            long bits = Double.doubleToLongBits(d);
+            return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+
+        static double toDouble(long key) {
+            return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+        }
+
+        @Override
+        long toKey(Object value) {
+            return toKey(((Double) value).doubleValue());
+        }
+
+        @Override
+        Object fromKey(long key) {
+            return toDouble(key);
+        }
+
+        @Override
+        long read(RawIndexKey record, int attribute) {
+            return toKey(record.getDoubleAttribute(attribute));
+        }
+
+        @Override
+        long read(RecordBatch batch, int i, int attribute) {
+            return toKey(batch.getDouble(i, attribute));
+        }
+
+        @Override
+        String toString(long key) {
+            return Double.toString(toDouble(key));
+        }
+    }
+
+    /**
+     * Keys low <= x <= high.
+     */
+    public static class KeyRange extends CompiledPredicate {
+        private final Key key;
+        private final long low;
+        private final long high;
+
+        KeyRange(int attribute, Key key, long low, long high) {
+            super(attribute);
+            this.key = key;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        public boolean isRelevant(RawIndexKey record) {
+            long x = key.read(record, attribute);
+            return x >= low && x <= high;
+        }
+
+        @Override
+        protected boolean isRelevant(RecordBatch batch, int i) {
+            long x = key.read(batch, i, attribute);
+            return x >= low && x <= high;
+        }
+
+        @Override
+        public boolean intersects(Object from, Object to) {
+            if (from != null) {
+                long k = key.toKey(from);
+                if (k >= high) {
+                    return false;
+                }
+            }
+            return to == null || low <= key.toKey(to);
+        }
+
+        @Override
+        public boolean contains(Object min, Object max) {
+            return low <= key.toKey(min) && key.toKey(max) <= high;
+        }
+
+        @Override
+        public String toString() {
+            return attribute + " in [" + key.format(low) + ", " + key.format(high) + "]";
+        }
+    }
+
+    /**
+     * Keys in any of the sorted, disjoint ranges, none if there are no
+     * ranges. Found by a binary search on the lows.
+     */
+    public static class KeyIntervals extends CompiledPredicate {
+        private final Key key;
+        private final long[] lows;
+        private final long[] highs;
+
+        KeyIntervals(int attribute, Key key, long[] lows, long[] highs) {
+            super(attribute);
+            this.key = key;
+            this.lows = lows;
+            this.highs = highs;
+        }
+
+        private boolean contains(long x) {
+            int i = Arrays.binarySearch(lows, x);
+            if (i >= 0) {
+                return true;
+            }
+            // The range starting before x.
+            i = -i - 2;
+            return i >= 0 && x <= highs[i];
+        }
+
+        @Override
+        public boolean isRelevant(RawIndexKey record) {
+            return contains(key.read(record, attribute));
+        }
+
+        @Override
+        protected boolean isRelevant(RecordBatch batch, int i) {
+            return contains(key.read(batch, i, attribute));
+        }
+
+        @Override
+        public boolean intersects(Object from, Object to) {
+            if (lows.length == 0) {
+                return false;
+            }
+
+            long low = Long.MIN_VALUE;
+            if (from != null) {
+                long k = key.toKey(from);
+                if (k == Long.MAX_VALUE) {
+                    return false;
+                }
+                low = k + 1;
+            }
+            long high = to == null ? Long.MAX_VALUE : key.toKey(to);
+
+            // The first range ending at or after low.
+            int i = Arrays.binarySearch(highs, low);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < lows.length && lows[i] <= high;
+        }
+
+        @Override
+        public boolean contains(Object min, Object max) {
+            // The range min falls in must reach max.
+            long k = key.toKey(min);
+            int i = Arrays.binarySearch(lows, k);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return i >= 0 && k <= highs[i] && key.toKey(max) <= highs[i];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(attribute + " in {");
+            for (int i = 0; i < lows.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                if (lows[i] == highs[i]) {
+                    sb.append(key.format(lows[i]));
+                } else {
+                    sb.append('[').append(key.format(lows[i])).append(", ")
+                            .append(key.format(highs[i])).append(']');
+                }
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    /**
+     * Range of strings, null bounds are open.
+     */
+    public static class StringRange extends CompiledPredicate {
+        private String low;
+        private String high;
+        private boolean lowInclusive = true;
+        private boolean highInclusive = true;
+
+        public StringRange(int attribute, List<Predicate> ps) {
+            super(attribute);
+            for (Predicate p : ps) {
+                if (p.predtype == Predicate.PREDTYPE.BETWEEN) {
+                    Object[] bounds = (Object[]) p.value;
+                    setLow((String) bounds[0], true);
+                    setHigh((String) bounds[1], true);
+                    continue;
+                }
+
+                String v = (String) p.value;
+                switch (p.predtype) {
+                    case GT:
+                        setLow(v, false);
+                        break;
+                    case GEQ:
+                        setLow(v, true);
+                        break;
+                    case LT:
+                        setHigh(v, false);
+                        break;
+                    case LEQ:
+                        setHigh(v, true);
+                        break;
+                    case EQ:
+                        setLow(v, true);
+                        setHigh(v, true);
+                        break;
+                }
+            }
+        }
+
+        /**
+         * The strings from low to high, both inclusive.
+         */
+        public StringRange(int attribute, String low, String high) {
+            super(attribute);
+            this.low = low;
+            this.high = high;
+        }
+
+        private void setLow(String v, boolean inclusive) {
+            int c = low == null ? 1 : v.compareTo(low);
+            if (c > 0 || (c == 0 && !inclusive)) {
+                low = v;
+                lowInclusive = inclusive;
+            }
+        }
+
+        private void setHigh(String v, boolean inclusive) {
+            int c = high == null ? -1 : v.compareTo(high);
+            if (c < 0 || (c == 0 && !inclusive)) {
+                high = v;
+                highInclusive = inclusive;
+            }
+        }
+
+        @Override
+        public boolean isRelevant(RawIndexKey record) {
+            return contains(record.getStringAttribute(attribute));
+        }
+
+        @Override
+        protected boolean isRelevant(RecordBatch batch, int i) {
+            return contains(batch.getString(i, attribute));
+        }
+
+        private boolean contains(String x) {
+            if (low != null) {
+                int c = x.compareTo(low);
+                if (c < 0 || (c == 0 && !lowInclusive)) {
+                    return false;
+                }
+            }
+            if (high != null) {
+                int c = x.compareTo(high);
+                if (c > 0 || (c == 0 && !highInclusive)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean intersects(Object from, Object to) {
+            if (from != null && high != null && high.compareTo((String) from) <= 0) {
+                return false;
+            }
+            if (to != null && low != null) {
+                int c = low.compareTo((String) to);
+                return c < 0 || (c == 0 && lowInclusive);
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return attribute + " in " + (lowInclusive ? "[" : "(") + low + ", " + high
+                    + (highInclusive ? "]" : ")");
+        }
+    }
+
+    /**
+     * A list of strings, looked up in a hash set.
+     */
+    public static class StringSet extends CompiledPredicate {
+        private final String[] values;
+        private final Set<String> set;
+
+        public StringSet(int attribute, Object[] values) {
+            super(attribute);
+            this.set = new HashSet<String>();
+            for (Object v : values) {
+                set.add((String) v);
+            }
+            this.values = set.toArray(new String[set.size()]);
+            Arrays.sort(this.values);
+        }
+
+        @Override
+        public boolean isRelevant(RawIndexKey record) {
+            return set.contains(record.getStringAttribute(attribute));
+        }
+
+        @Override
+        protected boolean isRelevant(RecordBatch batch, int i) {
+            return set.contains(batch.getString(i, attribute));
+        }
+
+        @Override
+        public boolean intersects(Object from, Object to) {
+            int i = 0;
+            if (from != null) {
+                // The first value after from.
+                i = Arrays.binarySearch(values, (String) from);
+                i = i >= 0 ? i + 1 : -i - 1;
+            }
+            return i < values.length && (to == null || values[i].compareTo((String) to) <= 0);
+        }
+
+        @Override
+        public String toString() {
+            return attribute + " in " + Arrays.toString(values);
+        }
+    }
+
+    /**
+     * Accepts what any of the parts accepts.
+     */
+    public static class AnyOf extends CompiledPredicate {
+        private final CompiledPredicate[] parts;
+
+        public AnyOf(int attribute, List<CompiledPredicate> parts) {
+            super(attribute);
+            this.parts = parts.toArray(new CompiledPredicate[parts.size()]);
+        }
+
+        @Override
+        public boolean isRelevant(RawIndexKey record) {
+            for (CompiledPredicate p : parts) {
+                if (p.isRelevant(record)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean intersects(Object from, Object to) {
+            for (CompiledPredicate p : parts) {
+                if (p.intersects(from, to)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return Joiner.on(" or ").join(parts);
+        }
+    }
+
+    /**
+     * Accepts what all of the parts accept.
+     */
+    public static class AllOf extends CompiledPredicate {
+        private final CompiledPredicate[] parts;
+
+        public AllOf(int attribute, List<CompiledPredicate> parts) {
+            super(attribute);
+            this.parts = parts.toArray(new CompiledPredicate[parts.size()]);
+        }
+
+        @Override
+        public boolean isRelevant(RawIndexKey record) {
+            for (CompiledPredicate p : parts) {
+                if (!p.isRelevant(record)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected boolean isRelevant(RecordBatch batch, int i) {
+            for (CompiledPredicate p : parts) {
+                if (!p.isRelevant(batch, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean intersects(Object from, Object to) {
+            // May say yes when no single value is accepted by all.
+            for (CompiledPredicate p : parts) {
+                if (!p.intersects(from, to)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean contains(Object min, Object max) {
+            for (CompiledPredicate p : parts) {
+                if (!p.contains(min, max)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return Joiner.on(" and ").join(parts);
+        }
+    }
+
+    /**
+     * Falls back to the predicates themselves, for the types that have no
+     * order (booleans, varchars).
+     */
+    public static class Interpreted extends CompiledPredicate {
+        private Predicate[] predicates;
+
+        public Interpreted(int attribute, List<Predicate> ps) {
+            super(attribute);
+            this.predicates = ps.toArray(new Predicate[ps.size()]);
+        }
+
+        @Override
+        public boolean isRelevant(RawIndexKey record) {
+            for (Predicate p : predicates) {
+                Object value;
+                switch (p.type) {
+                    case BOOLEAN:
+                        value = record.getBooleanAttribute(attribute);
+                        break;
+                    case INT:
+                        value = record.getIntAttribute(attribute);
+                        break;
+                    case LONG:
+                        value = record.getLongAttribute(attribute);
+                        break;
+                    case DOUBLE:
+                        value = record.getDoubleAttribute(attribute);
+                        break;
+                    case DATE:
+                        value = record.getDateAttribute(attribute);
+                        break;
+                    default:
+                        value = record.getStringAttribute(attribute);
+                }
+                if (!p.isRelevant(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean intersects(Object from, Object to) {
+            for (Predicate p : predicates) {
+                switch (p.predtype) {
+                    case EQ:
+                    case GEQ:
+                        if (to != null && TypeUtils.compareTo(p.value, to, p.type) > 0)
+                            return false;
+                        break;
+                    case GT:
+                        if (to != null && TypeUtils.compareTo(p.value, to, p.type) >= 0)
+                            return false;
+                        break;
+                    default:
+                        break;
+                }
+                switch (p.predtype) {
+                    case EQ:
+                    case LEQ:
+                    case LT:
+                        if (from != null && TypeUtils.compareTo(p.value, from, p.type) <= 0)
+                            return false;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(predicates);
+        }
+    }
+}
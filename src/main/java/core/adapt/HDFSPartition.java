@@ -5,13 +5,18 @@ import core.utils.CuratorUtils;
 import core.utils.HDFSUtils;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
 public class HDFSPartition extends Partition {
     private static final long serialVersionUID = 1L;
@@ -24,12 +29,43 @@ public class HDFSPartition extends Partition {
     private long returnSize = 0;
     private CuratorFramework client;
 
+    // Buckets written by repartitioning are directories of immutable
+    // segments, BUCKET/SEGMENT. Set when this partition reads a segment.
+    private String segment;
+
+    // If set, store() writes new segments named by this prefix instead of
+    // appending to the bucket file under a lock.
+    private String segmentPrefix;
+    private List<String[]> storedSegments = new ArrayList<String[]>();
+
+    // If set, the file is read from the cache when it holds it, else cached
+    // once read in full.
+    private transient BucketCache cache;
+    private transient String cacheKey;
+    private transient ByteBuffer cached;
+    private transient ByteBuffer filling;
+
     public HDFSPartition(FileSystem hdfs, String pathAndPartitionId,
                          short replication, CuratorFramework client) {
-        super(pathAndPartitionId);
+        super(getBucketPath(pathAndPartitionId));
         this.hdfs = hdfs;
         this.replication = replication;
         this.client = client;
+        if (!pathAndPartitionId.equals(getBucketPath(pathAndPartitionId))) {
+            this.segment = FilenameUtils.getName(pathAndPartitionId);
+        }
+    }
+
+    /**
+     * Strips the segment, if any, off the path of a bucket file.
+     */
+    public static String getBucketPath(String path) {
+        try {
+            Integer.parseInt(FilenameUtils.getName(path));
+            return path;
+        } catch (NumberFormatException e) {
+            return FilenameUtils.getFullPathNoEndSeparator(path);
+        }
     }
 
     @Override
@@ -44,38 +80,109 @@ public class HDFSPartition extends Partition {
         return hdfs;
     }
 
+    public short getReplication() {
+        return replication;
+    }
+
+    public void setSegmentPrefix(String segmentPrefix) {
+        this.segmentPrefix = segmentPrefix;
+    }
+
+    /**
+     * Segments written by store(), each is {bucket id, path, length}.
+     */
+    public List<String[]> getStoredSegments() {
+        return storedSegments;
+    }
+
+    public void setCache(BucketCache cache) {
+        this.cache = cache;
+    }
+
+    private String getFilePath() {
+        if (segment == null) {
+            return path + "/" + partitionId;
+        }
+        return path + "/" + partitionId + "/" + segment;
+    }
+
     public boolean loadNext() {
         try {
             if (totalSize == 0) {
-                Path p = new Path(path + "/" + partitionId);
-                totalSize = hdfs.getFileStatus(p).getLen();
-                in = hdfs.open(p);
+                Path p = new Path(getFilePath());
+                FileStatus status = hdfs.getFileStatus(p);
+                totalSize = status.getLen();
+                if (cache != null) {
+                    cacheKey = BucketCache.getKey(status);
+                    cached = cache.get(cacheKey);
+                    if (cached == null && cache.fits(totalSize)) {
+                        filling = BucketCache.allocate(totalSize);
+                    }
+                }
+                if (cached == null) {
+                    in = hdfs.open(p);
+                }
             }
 
             if (readSize < totalSize) {
                 bytes = new byte[(int) Math.min(MAX_READ_SIZE, totalSize
                         - readSize)];
-                ByteStreams.readFully(in, bytes);
+                if (cached != null) {
+                    cached.get(bytes);
+                } else {
+                    ByteStreams.readFully(in, bytes);
+                    if (filling != null) {
+                        filling.put(bytes);
+                    }
+                }
                 readSize += bytes.length;
                 return true;
             } else {
-                in.close();
+                if (in != null) {
+                    in.close();
+                    in = null;
+                }
+                if (filling != null) {
+                    filling.flip();
+                    cache.put(cacheKey, filling);
+                }
+                cached = null;
+                filling = null;
                 readSize = 0;
                 totalSize = 0;
                 return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
-            throw new RuntimeException("Failed to read file: " + path + "/"
-                    + partitionId);
+            throw new RuntimeException("Failed to read file: " + getFilePath());
         }
     }
 
+    /**
+     * Stops reading the file before its end, e.g. when a scan with a limit
+     * has its records: closes it, and drops the buffer it was being cached
+     * into, the file not being read in full.
+     */
+    public void close() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                System.out.println("WARN: Failed to close " + getFilePath() + ": " + e.getMessage());
+            }
+            in = null;
+        }
+        cached = null;
+        filling = null;
+        readSize = 0;
+        totalSize = 0;
+    }
+
     @Override
     public boolean load() {
         if (path == null || path.equals(""))
             return false;
-        bytes = HDFSUtils.readFile(hdfs, path + "/" + partitionId);
+        bytes = HDFSUtils.readFile(hdfs, getFilePath());
         return true; // load the physical block for this partition
     }
 
@@ -92,6 +199,12 @@ public class HDFSPartition extends Partition {
 
     @Override
     public void store(boolean append) {
+        if (segmentPrefix != null) {
+            storeSegment();
+            return;
+        }
+
+        long start = System.nanoTime();
         InterProcessSemaphoreMutex l = CuratorUtils.acquireLock(client,
                 "/partition-lock-" + path.hashCode() + "-" + partitionId);
         System.out.println("LOCK: acquired lock,  " + "path=" + path
@@ -126,6 +239,7 @@ public class HDFSPartition extends Partition {
             os.flush();
             os.close();
             recordCount = 0;
+            bytesStored += offset;
         } catch (IOException ex) {
             System.out.println("exception: "
                     + (new Timestamp(System.currentTimeMillis())));
@@ -133,7 +247,38 @@ public class HDFSPartition extends Partition {
         } finally {
             CuratorUtils.releaseLock(l);
             System.out.println("LOCK: released lock " + partitionId);
+            storeNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Writes the buffered tuples out as a new segment of the bucket. Nobody
+     * else writes to the segment, so no lock is needed.
+     */
+    private void storeSegment() {
+        long start = System.nanoTime();
+        String storePath = path + "/" + partitionId + "/" + segmentPrefix
+                + "-" + storedSegments.size();
+        if (!path.startsWith("hdfs"))
+            storePath = "/" + storePath;
+
+        Path e = new Path(storePath);
+        try {
+            FSDataOutputStream os = hdfs.create(e, false,
+                    hdfs.getConf().getInt("io.file.buffer.size", 4096),
+                    replication, hdfs.getDefaultBlockSize(e));
+            os.write(bytes, 0, offset);
+            os.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            throw new RuntimeException("Failed to write segment " + storePath);
         }
+
+        storedSegments.add(new String[]{"" + partitionId,
+                hdfs.makeQualified(e).toString(), "" + offset});
+        recordCount = 0;
+        bytesStored += offset;
+        storeNanos += System.nanoTime() - start;
     }
 
     @Override
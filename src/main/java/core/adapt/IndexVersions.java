@@ -0,0 +1,639 @@
+package core.adapt;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import core.utils.HDFSUtils;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versioned layouts of a table.
+ * <p/>
+ * Every change to the index creates a new version TABLE/versions/v holding the
+ * new index. Once all the buckets of the version are written, the version is
+ * committed: the manifest of the bucket files its index refers to is written
+ * out and then the _COMMITTED marker is created. Creating the marker is a
+ * single atomic operation on HDFS, and the current version is the highest
+ * committed one. A table that was never adapted only has the index written
+ * by the upfront partitioner, which is version 0; its manifest, TABLE/manifest,
+ * is written once the upfront partitioner is done.
+ * <p/>
+ * A manifest lists the bucket id, path, length and the hosts holding most of
+ * each file, so planning a query takes a single read instead of a listing.
+ * <p/>
+ * Repartitioning tasks never write to a shared file. Each writes its own
+ * segments, data/BUCKET/SEGMENT, and publishes them in TABLE/versions/v/tasks.
+ * The commit gathers the published segments into the manifest.
+ * <p/>
+ * Readers take a lease on the version they plan with, version 0 included.
+ * The cleaner deletes older versions, and the bucket files only they refer
+ * to, once no lease on them is left.
+ */
+public class IndexVersions {
+    // Leases not released by then are considered dead.
+    public static long leaseTtl = 60 * 60 * 1000;
+
+    // Uncommitted versions older than this are considered abandoned.
+    public static long pendingTtl = 6 * 60 * 60 * 1000;
+
+    // How often the background cleaner runs.
+    public static long cleanerPeriod = 10 * 60 * 1000;
+
+    // Hosts kept per file in the manifest.
+    public static int maxHosts = 3;
+
+    private static final String COMMITTED = "_COMMITTED";
+
+    private static ScheduledExecutorService cleaner;
+    private static Set<String> cleanedTables = new HashSet<String>();
+
+    // Leases of this driver to release once the jobs reading their versions
+    // are done, with the time each was taken.
+    private static Map<String, FileSystem> heldLeases = new HashMap<String, FileSystem>();
+    private static Map<String, Long> heldSince = new HashMap<String, Long>();
+
+    public static String getVersionDir(String tableDir, long version) {
+        return tableDir + "/versions/" + version;
+    }
+
+    public static String getIndexPath(String tableDir, long version) {
+        if (version == 0) {
+            return tableDir + "/index";
+        }
+        return getVersionDir(tableDir, version) + "/index";
+    }
+
+    public static String getManifestPath(String tableDir, long version) {
+        if (version == 0) {
+            return tableDir + "/manifest";
+        }
+        return getVersionDir(tableDir, version) + "/manifest";
+    }
+
+    public static String getLeaseDir(String tableDir) {
+        return tableDir + "/leases";
+    }
+
+    /**
+     * Returns all the versions, committed or not, in increasing order.
+     */
+    public static List<Long> getVersions(FileSystem fs, String tableDir) {
+        List<Long> versions = new ArrayList<Long>();
+        Path dir = new Path(tableDir + "/versions");
+        try {
+            if (!fs.exists(dir)) {
+                return versions;
+            }
+
+            for (FileStatus status : fs.listStatus(dir)) {
+                try {
+                    versions.add(Long.parseLong(status.getPath().getName()));
+                } catch (NumberFormatException e) {
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to list versions of " + tableDir);
+        }
+
+        Collections.sort(versions);
+        return versions;
+    }
+
+    public static boolean isCommitted(FileSystem fs, String tableDir, long version) {
+        if (version == 0) {
+            return true;
+        }
+
+        try {
+            return fs.exists(new Path(getVersionDir(tableDir, version) + "/" + COMMITTED));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public static long getCurrentVersion(FileSystem fs, String tableDir) {
+        List<Long> versions = getVersions(fs, tableDir);
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            if (isCommitted(fs, tableDir, versions.get(i))) {
+                return versions.get(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Tells if a version newer than the current one is being written.
+     * Planning on top of the current version meanwhile would create buckets
+     * with the same ids as the pending one.
+     */
+    public static boolean hasPendingVersion(FileSystem fs, String tableDir) {
+        long current = getCurrentVersion(fs, tableDir);
+        long now = System.currentTimeMillis();
+        for (long v : getVersions(fs, tableDir)) {
+            if (v > current && getAge(fs, getVersionDir(tableDir, v), now) < pendingTtl) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes out the index as a new, not yet visible, version.
+     *
+     * @return the new version
+     */
+    public static long createVersion(FileSystem fs, String tableDir,
+                                     short replication, byte[] indexBytes) {
+        List<Long> versions = getVersions(fs, tableDir);
+        long version = versions.isEmpty() ? 1 : versions.get(versions.size() - 1) + 1;
+
+        // Somebody else may be creating the same version, creating the file
+        // without overwrite only succeeds for one of us.
+        for (int tries = 0; tries < 10; tries++, version++) {
+            Path path = new Path(getIndexPath(tableDir, version));
+            FSDataOutputStream os;
+            try {
+                os = fs.create(path, false, fs.getConf().getInt("io.file.buffer.size", 4096),
+                        replication, fs.getDefaultBlockSize(path));
+            } catch (IOException e) {
+                continue;
+            }
+
+            try {
+                os.write(indexBytes, 0, indexBytes.length);
+                os.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Failed to write index version " + version);
+            }
+
+            System.out.println("INFO: Created index version " + version);
+            return version;
+        }
+
+        throw new RuntimeException("Failed to create a new index version in " + tableDir);
+    }
+
+    /**
+     * Publishes the segments written by a repartitioning task for the
+     * version. Only the first attempt of a task to get here wins, the
+     * segments of the others are never referenced.
+     *
+     * @param segments each is {bucket id, path, length}
+     * @return false if another attempt of the task already published.
+     */
+    public static boolean publishSegments(FileSystem fs, String tableDir, long version,
+                                          String taskId, List<String[]> segments,
+                                          short replication) {
+        StringBuilder content = new StringBuilder();
+        for (String[] segment : segments) {
+            content.append(segment[0]).append(" ").append(segment[1])
+                    .append(" ").append(segment[2]).append("\n");
+        }
+        byte[] bytes = content.toString().getBytes();
+
+        Path path = new Path(getVersionDir(tableDir, version) + "/tasks/" + taskId);
+        FSDataOutputStream os;
+        try {
+            os = fs.create(path, false, fs.getConf().getInt("io.file.buffer.size", 4096),
+                    replication, fs.getDefaultBlockSize(path));
+        } catch (IOException e) {
+            System.out.println("INFO: Task " + taskId + " already published for version " + version);
+            return false;
+        }
+
+        try {
+            os.write(bytes, 0, bytes.length);
+            os.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to publish segments of " + taskId);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the version visible. Writes out the manifest of the bucket files
+     * of the version and then creates the commit marker.
+     * New buckets are made of the segments published by the tasks, the rest
+     * are carried over from the current version.
+     *
+     * @param bucketIds buckets of the version's index
+     */
+    public static void commit(FileSystem fs, String tableDir, long version,
+                              int[] bucketIds, short replication) {
+        ArrayListMultimap<Integer, String[]> files = ArrayListMultimap.create();
+        try {
+            Path tasksDir = new Path(getVersionDir(tableDir, version) + "/tasks");
+            if (fs.exists(tasksDir)) {
+                for (FileStatus task : fs.listStatus(tasksDir)) {
+                    for (String[] entry : readEntries(fs, task.getPath().toString())) {
+                        files.put(Integer.parseInt(entry[0]), entry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to read the segments of version " + version);
+        }
+
+        ArrayListMultimap<Integer, String[]> current = getBucketFiles(fs, tableDir,
+                getCurrentVersion(fs, tableDir));
+
+        List<String[]> manifest = new ArrayList<String[]>();
+        for (int id : bucketIds) {
+            manifest.addAll(files.containsKey(id) ? files.get(id) : current.get(id));
+        }
+        writeManifest(fs, getManifestPath(tableDir, version), manifest, replication);
+
+        try {
+            Path marker = new Path(getVersionDir(tableDir, version) + "/" + COMMITTED);
+            if (!fs.createNewFile(marker)) {
+                System.out.println("WARN: Version " + version + " already committed");
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to commit version " + version);
+        }
+
+        System.out.println("INFO: Committed index version " + version + " of " + tableDir);
+    }
+
+    /**
+     * Writes out the manifest of the files of version 0, i.e. the files in
+     * the data directory written by the upfront partitioner. Till then, the
+     * readers of version 0 list the data directory.
+     */
+    public static void writeBaseManifest(FileSystem fs, String tableDir, short replication) {
+        List<String[]> manifest = new ArrayList<String[]>(listBucketFiles(fs, tableDir).values());
+        writeManifest(fs, getManifestPath(tableDir, 0), manifest, replication);
+        System.out.println("INFO: Wrote the manifest of " + manifest.size() + " files of "
+                + tableDir);
+    }
+
+    public static boolean hasManifest(FileSystem fs, String tableDir, long version) {
+        if (version > 0) {
+            return isCommitted(fs, tableDir, version);
+        }
+
+        try {
+            return fs.exists(new Path(getManifestPath(tableDir, 0)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the files of each bucket of the version, each is {bucket id,
+     * path, length, hosts}. Hosts are a comma separated list of the nodes
+     * holding most of the file, and may be missing. Falls back to listing the
+     * data directory for version 0 without a manifest.
+     */
+    public static ArrayListMultimap<Integer, String[]> getBucketFiles(FileSystem fs,
+                                                                      String tableDir,
+                                                                      long version) {
+        if (version == 0 && !hasManifest(fs, tableDir, 0)) {
+            return listBucketFiles(fs, tableDir);
+        }
+
+        ArrayListMultimap<Integer, String[]> files = ArrayListMultimap.create();
+        for (String[] entry : readManifest(fs, tableDir, version)) {
+            files.put(Integer.parseInt(entry[0]), entry);
+        }
+        return files;
+    }
+
+    private static ArrayListMultimap<Integer, String[]> listBucketFiles(FileSystem fs,
+                                                                        String tableDir) {
+        ArrayListMultimap<Integer, String[]> files = ArrayListMultimap.create();
+        try {
+            Path dataDir = new Path(tableDir + "/data");
+            if (fs.exists(dataDir)) {
+                for (FileStatus status : fs.listStatus(dataDir)) {
+                    try {
+                        int id = Integer.parseInt(status.getPath().getName());
+                        if (!status.isDirectory()) {
+                            files.put(id, new String[]{"" + id,
+                                    status.getPath().toString(), "" + status.getLen()});
+                        }
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to list the buckets of " + tableDir);
+        }
+        return files;
+    }
+
+    /**
+     * Writes out the entries, looking up the hosts of those that have none.
+     */
+    private static void writeManifest(FileSystem fs, String path, List<String[]> entries,
+                                      short replication) {
+        StringBuilder manifest = new StringBuilder();
+        for (String[] entry : entries) {
+            String hosts = entry.length > 3 ? entry[3] : getHosts(fs, entry[1]);
+            manifest.append(entry[0]).append(" ").append(entry[1])
+                    .append(" ").append(entry[2]);
+            if (!hosts.isEmpty()) {
+                manifest.append(" ").append(hosts);
+            }
+            manifest.append("\n");
+        }
+
+        byte[] manifestBytes = manifest.toString().getBytes();
+        HDFSUtils.writeFile(fs, path, replication, manifestBytes, 0, manifestBytes.length,
+                false);
+    }
+
+    /**
+     * Returns the nodes holding the most bytes of the file, most first, comma
+     * separated.
+     */
+    private static String getHosts(FileSystem fs, String path) {
+        final Map<String, Long> bytes = new HashMap<String, Long>();
+        try {
+            FileStatus status = fs.getFileStatus(new Path(path));
+            BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+            if (blocks != null) {
+                for (BlockLocation block : blocks) {
+                    for (String host : block.getHosts()) {
+                        Long b = bytes.get(host);
+                        bytes.put(host, (b == null ? 0 : b) + block.getLength());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("WARN: No block locations for " + path + ": " + e.getMessage());
+        }
+
+        List<String> hosts = new ArrayList<String>(bytes.keySet());
+        Collections.sort(hosts, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return bytes.get(b).compareTo(bytes.get(a));
+            }
+        });
+        return Joiner.on(",").join(hosts.subList(0, Math.min(maxHosts, hosts.size())));
+    }
+
+    /**
+     * Drops a version that will never be committed.
+     */
+    public static void abandon(FileSystem fs, String tableDir, long version) {
+        HDFSUtils.deleteFile(fs, getVersionDir(tableDir, version), true);
+        System.out.println("INFO: Abandoned index version " + version + " of " + tableDir);
+    }
+
+    /**
+     * Reads the paths of the bucket files in the manifest of the version.
+     * Each entry is {bucket id, path, length, hosts}, hosts may be missing.
+     */
+    public static List<String[]> readManifest(FileSystem fs, String tableDir, long version) {
+        return readEntries(fs, getManifestPath(tableDir, version));
+    }
+
+    private static List<String[]> readEntries(FileSystem fs, String path) {
+        List<String[]> entries = new ArrayList<String[]>();
+        byte[] bytes = HDFSUtils.readFile(fs, path);
+        Scanner sc = new Scanner(new String(bytes));
+        while (sc.hasNextLine()) {
+            String line = sc.nextLine().trim();
+            if (!line.isEmpty()) {
+                entries.add(line.split(" "));
+            }
+        }
+        sc.close();
+        return entries;
+    }
+
+    /**
+     * Pins the version till the lease is released or expires.
+     *
+     * @return the lease, to be passed to release
+     */
+    public static String pin(FileSystem fs, String tableDir, long version) {
+        String lease = getLeaseDir(tableDir) + "/" + version + "-" + UUID.randomUUID().toString();
+        try {
+            fs.createNewFile(new Path(lease));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to pin version " + version);
+        }
+        return lease;
+    }
+
+    /**
+     * Pins the current version. A commit and a clean may come between
+     * reading the current version and pinning it, which deletes it; the
+     * version is read again once pinned, and pinned anew if it changed.
+     *
+     * @return the lease, its version is getLeaseVersion(lease)
+     */
+    public static String pinCurrent(FileSystem fs, String tableDir) {
+        while (true) {
+            long version = getCurrentVersion(fs, tableDir);
+            String lease = pin(fs, tableDir, version);
+            if (getCurrentVersion(fs, tableDir) == version) {
+                return lease;
+            }
+            release(fs, lease);
+        }
+    }
+
+    public static long getLeaseVersion(String lease) {
+        String name = new Path(lease).getName();
+        return Long.parseLong(name.substring(0, name.indexOf('-')));
+    }
+
+    public static void release(FileSystem fs, String lease) {
+        HDFSUtils.deleteFile(fs, lease, false);
+    }
+
+    /**
+     * Keeps the lease till the jobs started after it was taken are done,
+     * see releaseHeld.
+     */
+    public static synchronized void releaseAfterJobs(FileSystem fs, String lease, long takenAt) {
+        heldLeases.put(lease, fs);
+        heldSince.put(lease, takenAt);
+    }
+
+    /**
+     * Releases the held leases taken before the time, the start of the last
+     * job once no job is running. Later ones are for jobs yet to start.
+     */
+    public static void releaseHeld(long time) {
+        Map<String, FileSystem> toRelease = new HashMap<String, FileSystem>();
+        synchronized (IndexVersions.class) {
+            for (Map.Entry<String, Long> e : heldSince.entrySet()) {
+                if (e.getValue() < time) {
+                    toRelease.put(e.getKey(), heldLeases.get(e.getKey()));
+                }
+            }
+            heldLeases.keySet().removeAll(toRelease.keySet());
+            heldSince.keySet().removeAll(toRelease.keySet());
+        }
+
+        for (Map.Entry<String, FileSystem> e : toRelease.entrySet()) {
+            release(e.getValue(), e.getKey());
+        }
+    }
+
+    /**
+     * Deletes versions older than the current one which are no longer pinned,
+     * and the bucket files no live version refers to.
+     */
+    public static void clean(FileSystem fs, String tableDir) {
+        long current = getCurrentVersion(fs, tableDir);
+        if (current == 0) {
+            // Never adapted, nothing to clean.
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Set<Long> live = new HashSet<Long>();
+        live.add(current);
+
+        try {
+            Path leaseDir = new Path(getLeaseDir(tableDir));
+            if (fs.exists(leaseDir)) {
+                for (FileStatus lease : fs.listStatus(leaseDir)) {
+                    if (now - lease.getModificationTime() > leaseTtl) {
+                        fs.delete(lease.getPath(), false);
+                    } else {
+                        live.add(getLeaseVersion(lease.getPath().toString()));
+                    }
+                }
+            }
+
+            int versionsDeleted = 0;
+            for (long v : getVersions(fs, tableDir)) {
+                if (live.contains(v)) {
+                    continue;
+                }
+
+                // Still being written.
+                String versionDir = getVersionDir(tableDir, v);
+                if (v > current && getAge(fs, versionDir, now) < pendingTtl) {
+                    live.add(v);
+                    continue;
+                }
+
+                fs.delete(new Path(versionDir), true);
+                versionsDeleted++;
+            }
+
+            // Without its manifest, we don't know which files version 0
+            // refers to.
+            int filesDeleted = 0;
+            if (!live.contains(0L) || hasManifest(fs, tableDir, 0)) {
+                Set<String> referenced = new HashSet<String>();
+                for (long v : live) {
+                    if (isCommitted(fs, tableDir, v)) {
+                        for (String[] entry : readManifest(fs, tableDir, v)) {
+                            referenced.add(entry[1]);
+                        }
+                    }
+                }
+
+                // Files of pending versions are not in any manifest yet, but
+                // are recent.
+                for (FileStatus file : listFiles(fs, new Path(tableDir + "/data"))) {
+                    if (!referenced.contains(file.getPath().toString())
+                            && now - file.getModificationTime() > pendingTtl) {
+                        fs.delete(file.getPath(), false);
+                        filesDeleted++;
+                    }
+                }
+            }
+
+            System.out.println("INFO: Cleaned " + tableDir + ", deleted " + versionsDeleted
+                    + " versions and " + filesDeleted + " bucket files");
+        } catch (IOException e) {
+            System.out.println("ERR: Cleaning " + tableDir + " failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Periodically cleans the table in the background. Does nothing if the
+     * table is already being cleaned.
+     */
+    public static synchronized void startCleaner(final FileSystem fs, final String tableDir) {
+        if (!cleanedTables.add(tableDir)) {
+            return;
+        }
+
+        if (cleaner == null) {
+            cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "index-version-cleaner");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clean(fs, tableDir);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, cleanerPeriod, cleanerPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    private static long getAge(FileSystem fs, String path, long now) {
+        try {
+            return now - fs.getFileStatus(new Path(path)).getModificationTime();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static List<FileStatus> listFiles(FileSystem fs, Path dir) throws IOException {
+        List<FileStatus> files = new ArrayList<FileStatus>();
+        if (!fs.exists(dir)) {
+            return files;
+        }
+
+        for (FileStatus status : fs.listStatus(dir)) {
+            if (status.isDirectory()) {
+                files.addAll(listFiles(fs, status.getPath()));
+            } else {
+                files.add(status);
+            }
+        }
+        return files;
+    }
+}
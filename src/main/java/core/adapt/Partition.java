@@ -20,6 +20,9 @@ public class Partition implements Cloneable, Serializable {
     protected int recordCount;
     protected int partitionId;
     protected boolean nextBytesReturned = false;
+    // Bytes written out by store() and the time it took, used for calibration.
+    protected long bytesStored = 0;
+    protected long storeNanos = 0;
     State state;
 
     /**
@@ -109,8 +112,19 @@ public class Partition implements Cloneable, Serializable {
     }
 
     public void store(boolean append) {
+        long start = System.nanoTime();
         String storePath = path + "/" + partitionId;
         IOUtils.writeByteArray(storePath, bytes, 0, offset, append);
+        bytesStored += offset;
+        storeNanos += System.nanoTime() - start;
+    }
+
+    public long getBytesStored() {
+        return bytesStored;
+    }
+
+    public long getStoreNanos() {
+        return storeNanos;
     }
 
     public void drop() {
@@ -5,9 +5,13 @@ import core.utils.TypeUtils;
 import core.utils.TypeUtils.TYPE;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Predicate {
+    // IN lists with more values only offer their bounds as cutpoints.
+    public static int maxInCutpoints = 8;
+
     public int attribute;
 
     public TYPE type;
@@ -31,26 +35,115 @@ public class Predicate {
         String[] tokens = predString.split(":");
         this.attribute = Integer.parseInt(tokens[0]);
         this.type = TYPE.valueOf(tokens[1]);
-        this.value = TypeUtils.deserializeValue(this.type, tokens[2]);
         this.predtype = PREDTYPE.getPredType(tokens[3]);
+        this.value = deserializeValue(this.type, this.predtype, tokens[2]);
     }
 
     public static Predicate getPredicateFromFormattedString(TableInfo table, String predString) {
         String[] tokens = predString.split(" ");
         int attr = table.schema.getAttributeId(tokens[0]);
         TYPE type = table.schema.getType(attr);
-        Object value = TypeUtils.deserializeValue(type, tokens[2]);
         PREDTYPE predtype = PREDTYPE.getPredType(tokens[1]);
+        Object value = deserializeValue(type, predtype, tokens[2]);
         return new Predicate(attr, type, value, predtype);
     }
 
+    /**
+     * IN, BETWEEN and OR take a list of values separated by commas: the
+     * values of the IN, the bounds of the BETWEEN, and the pairs of
+     * inclusive bounds of the ranges of the OR, an empty bound being open.
+     */
+    public static Object deserializeValue(TYPE type, PREDTYPE predtype, String token) {
+        if (!predtype.isMultiValued()) {
+            return TypeUtils.deserializeValue(type, token);
+        }
+
+        String[] tokens = token.split(",", -1);
+        Object[] values = new Object[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            values[i] = tokens[i].isEmpty() && predtype == PREDTYPE.OR ? null
+                    : TypeUtils.deserializeValue(type, tokens[i]);
+        }
+        return values;
+    }
+
+    public static String serializeValue(Object value, TYPE type, PREDTYPE predtype) {
+        if (!predtype.isMultiValued()) {
+            return TypeUtils.serializeValue(value, type);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        Object[] values = (Object[]) value;
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            if (values[i] != null) {
+                sb.append(TypeUtils.serializeValue(values[i], type));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The single-valued predicates whose cutpoints help this one: itself,
+     * or the bounds of the values of an IN, BETWEEN or OR.
+     */
+    public List<Predicate> getCutpointPredicates() {
+        List<Predicate> preds = new ArrayList<Predicate>();
+        switch (predtype) {
+            case IN:
+                Object[] values = (Object[]) value;
+                if (values.length <= maxInCutpoints) {
+                    for (Object v : values) {
+                        preds.add(new Predicate(attribute, type, v, PREDTYPE.EQ));
+                    }
+                } else {
+                    Object[] sorted = values.clone();
+                    Arrays.sort(sorted, TypeUtils.getComparatorForType(type));
+                    preds.add(new Predicate(attribute, type, sorted[0], PREDTYPE.GEQ));
+                    preds.add(new Predicate(attribute, type, sorted[sorted.length - 1],
+                            PREDTYPE.LEQ));
+                }
+                break;
+            case BETWEEN:
+            case OR:
+                Object[] bounds = (Object[]) value;
+                for (int i = 0; i + 1 < bounds.length; i += 2) {
+                    if (bounds[i] != null) {
+                        preds.add(new Predicate(attribute, type, bounds[i], PREDTYPE.GEQ));
+                    }
+                    if (bounds[i + 1] != null) {
+                        preds.add(new Predicate(attribute, type, bounds[i + 1], PREDTYPE.LEQ));
+                    }
+                }
+                break;
+            default:
+                preds.add(this);
+        }
+        return preds;
+    }
+
+    /**
+     * Rewrites >= v as > v-1 and < v as <= v-1 on the discrete types, which
+     * selects the same values, so that the same range reads the same
+     * whichever way it was written. The other types keep their operators.
+     */
     public void normalizePredicate() {
-        if (this.predtype == PREDTYPE.GEQ) {
-            this.predtype = PREDTYPE.GT;
-            this.value = getHelpfulCutpoint();
-        } else if (this.predtype == PREDTYPE.LT) {
-            this.predtype = PREDTYPE.LEQ;
-            this.value = getHelpfulCutpoint();
+        if (type != TYPE.INT && type != TYPE.LONG && type != TYPE.DATE) {
+            return;
+        }
+        if ((type == TYPE.INT && (Integer) value == Integer.MIN_VALUE)
+                || (type == TYPE.LONG && (Long) value == Long.MIN_VALUE)) {
+            // Nothing is below.
+            return;
+        }
+        if (predtype == PREDTYPE.GEQ) {
+            value = TypeUtils.deltaLess(value, type);
+            predtype = PREDTYPE.GT;
+        } else if (predtype == PREDTYPE.LT) {
+            value = TypeUtils.deltaLess(value, type);
+            predtype = PREDTYPE.LEQ;
         }
     }
 
@@ -88,6 +181,22 @@ public class Predicate {
      */
     public boolean isRelevant(Object value) {
         switch (this.predtype) {
+            case IN:
+                for (Object v : (Object[]) this.value) {
+                    if (v.equals(value))
+                        return true;
+                }
+                break;
+            case BETWEEN:
+            case OR:
+                Object[] bounds = (Object[]) this.value;
+                for (int i = 0; i + 1 < bounds.length; i += 2) {
+                    if ((bounds[i] == null || TypeUtils.compareTo(bounds[i], value, this.type) <= 0)
+                            && (bounds[i + 1] == null
+                            || TypeUtils.compareTo(bounds[i + 1], value, this.type) >= 0))
+                        return true;
+                }
+                break;
             case GEQ:
                 if (TypeUtils.compareTo(this.value, value, this.type) <= 0)
                     return true;
@@ -115,7 +224,7 @@ public class Predicate {
     @Override
     public String toString() {
         return "" + attribute + ":" + type.toString() + ":"
-                + TypeUtils.serializeValue(value, type) + ":"
+                + serializeValue(value, type, predtype) + ":"
                 + predtype.toString();
     }
 
@@ -126,6 +235,9 @@ public class Predicate {
             case LEQ:
                 return value;
             case GEQ:
+                // Strings have no value just below, split at the bound.
+                if (type == TYPE.STRING || type == TYPE.VARCHAR)
+                    return value;
                 return TypeUtils.deltaLess(value, type);
 
             case LT:
@@ -134,13 +246,23 @@ public class Predicate {
                 else
                     return value;
             default:
+                // The optimizer splits these into getCutpointPredicates().
+                Object[] values = (Object[]) value;
+                for (int i = values.length - 1; i >= 0; i--) {
+                    if (values[i] != null)
+                        return values[i];
+                }
                 break;
         }
         return value;
     }
 
     public enum PREDTYPE {
-        LEQ, GEQ, GT, LT, EQ;
+        LEQ, GEQ, GT, LT, EQ, IN, BETWEEN, OR;
+
+        public boolean isMultiValued() {
+            return this == IN || this == BETWEEN || this == OR;
+        }
 
         public static PREDTYPE getPredType(String predString) {
             switch (predString) {
@@ -154,6 +276,12 @@ public class Predicate {
                     return LT;
                 case "=":
                     return EQ;
+                case "IN":
+                    return IN;
+                case "BETWEEN":
+                    return BETWEEN;
+                case "OR":
+                    return OR;
                 default:
                     throw new IllegalArgumentException("predicate string " + predString + " not a valid pred");
             }
@@ -172,6 +300,12 @@ public class Predicate {
                     return "<";
                 case EQ:
                     return "=";
+                case IN:
+                    return "IN";
+                case BETWEEN:
+                    return "BETWEEN";
+                case OR:
+                    return "OR";
                 default:
                     return "=";
             }
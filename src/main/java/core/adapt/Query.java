@@ -1,28 +1,71 @@
 package core.adapt;
 
 import com.google.common.base.Joiner;
+import com.google.common.primitives.Ints;
 import core.adapt.iterator.IteratorRecord;
+import core.adapt.iterator.RecordBatch;
 import core.common.globals.Globals;
 import core.common.globals.TableInfo;
+import core.common.key.ParsedTupleList;
 import core.common.key.RawIndexKey;
-import core.utils.TypeUtils;
+import core.utils.TypeUtils.TYPE;
 import org.apache.hadoop.io.Text;
 
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Query implements Serializable {
     private static final long serialVersionUID = 1L;
 
     protected Predicate[] predicates;
+    // The predicates merged by attribute, built on first use.
+    private transient CompiledPredicate[] compiled;
+    // Records checked one at a time; every timingInterval-th is timed and
+    // every reorderInterval-th the predicates are reordered.
+    private transient long numChecked;
+    public static int timingInterval = 64;
+    public static int reorderInterval = 4096;
+    // Attributes the consumer reads, in order, null for all of them.
+    protected int[] projection;
+    // Computed over the selected records instead of returning them, per
+    // group of the groupBy attributes; null if the query does not aggregate.
+    protected Aggregate[] aggregates;
+    protected int[] groupBy;
+    // At most limit records are returned, -1 for all of them; the best ones
+    // by the orderBy attribute if there is one, -1 if not.
+    protected long limit = -1;
+    protected int orderBy = -1;
+    protected boolean descending;
     RawIndexKey key;
     private String table;
 
     public Query(String queryString) {
-        String[] parts = queryString.split("\\|");
+        String[] parts = queryString.split("\\|", -1);
         this.table = parts[0];
-        if (parts.length > 1) {
+
+        // Trailing ORDER:attribute:ASC|DESC and LIMIT:n sections.
+        int numParts = parts.length;
+        for (; numParts > 2; numParts--) {
+            String part = parts[numParts - 1].trim();
+            if (part.startsWith("ORDER:")) {
+                String[] tokens = part.split(":");
+                this.orderBy = Integer.parseInt(tokens[1]);
+                this.descending = tokens.length > 2 && tokens[2].equals("DESC");
+            } else if (part.startsWith("LIMIT:")) {
+                this.limit = Long.parseLong(part.substring(6));
+            } else {
+                break;
+            }
+        }
+
+        if (parts.length > 1 && !parts[1].trim().equals("")) {
             String predString = parts[1].trim();
             String[] predParts = predString.split(";");
             this.predicates = new Predicate[predParts.length];
@@ -34,6 +77,19 @@ public class Query implements Serializable {
             this.predicates = new Predicate[0];
         }
 
+        if (numParts > 2 && !parts[2].trim().equals("*")) {
+            this.projection = parseAttributes(parts[2]);
+        }
+
+        if (numParts > 3) {
+            String[] aggParts = parts[3].trim().split(";");
+            this.aggregates = new Aggregate[aggParts.length];
+            for (int i = 0; i < aggParts.length; i++) {
+                this.aggregates[i] = new Aggregate(aggParts[i]);
+            }
+            this.groupBy = numParts > 4 ? parseAttributes(parts[4]) : new int[0];
+        }
+
         normalizeQuery();
     }
 
@@ -42,6 +98,16 @@ public class Query implements Serializable {
         this.predicates = predicates;
     }
 
+    private static int[] parseAttributes(String attrString) {
+        attrString = attrString.trim();
+        String[] attrParts = attrString.equals("") ? new String[0] : attrString.split(",");
+        int[] attrs = new int[attrParts.length];
+        for (int i = 0; i < attrParts.length; i++) {
+            attrs[i] = Integer.parseInt(attrParts[i]);
+        }
+        return attrs;
+    }
+
     public static Query getQueryFromFormattedString(TableInfo table, String queryString) {
         String predString = queryString.trim();
         String[] predParts = predString.split(";");
@@ -57,19 +123,130 @@ public class Query implements Serializable {
 
     /**
      * The partitioning tree with node A_p splits data as
-     * A <= p and A > p. Things become simpler if predicates are also
-     * <= or >.
+     * A <= p and A > p. Predicates on the discrete types are rewritten to
+     * <= and >, selecting the same values, so that equal queries normalize
+     * to the same string; >= and < on the other types are evaluated as
+     * they are, the optimizer taking their cutpoints from
+     * Predicate.getHelpfulCutpoint().
      */
     public void normalizeQuery() {
         for (Predicate p : predicates) {
             p.normalizePredicate();
         }
+        compiled = null;
     }
 
     public Predicate[] getPredicates() {
         return this.predicates;
     }
 
+    public CompiledPredicate[] getCompiledPredicates() {
+        if (compiled == null) {
+            compiled = CompiledPredicate.compile(predicates);
+        }
+        return compiled;
+    }
+
+    public int[] getProjection() {
+        return projection;
+    }
+
+    /**
+     * Restricts the records handed out to the given attributes, in order,
+     * null for all of them.
+     */
+    public void setProjection(int[] projection) {
+        this.projection = projection;
+    }
+
+    public Aggregate[] getAggregates() {
+        return aggregates;
+    }
+
+    public int[] getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * Makes the query compute the aggregates per group of the groupBy
+     * attributes instead of returning the records. Null aggregates turn
+     * this off.
+     */
+    public void setAggregates(Aggregate[] aggregates, int[] groupBy) {
+        this.aggregates = aggregates;
+        this.groupBy = aggregates == null ? null : groupBy == null ? new int[0] : groupBy;
+    }
+
+    public boolean isAggregate() {
+        return aggregates != null;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns at most limit records, -1 for all of them. The scans stop
+     * once they have enough.
+     */
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    public int getOrderBy() {
+        return orderBy;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * With a limit, returns the records with the largest values of the
+     * attribute if descending, else the smallest, best first. -1 for any
+     * records.
+     */
+    public void setOrderBy(int attribute, boolean descending) {
+        this.orderBy = attribute;
+        this.descending = descending;
+    }
+
+    /**
+     * Whether the query returns the best limit records by an attribute.
+     */
+    public boolean isTopK() {
+        return limit != -1 && orderBy != -1 && aggregates == null;
+    }
+
+    /**
+     * Number of leading attributes of a record needed to check the
+     * predicates and read the projection or the aggregates, -1 if all of
+     * them are.
+     */
+    public int getNumAttributesNeeded() {
+        if (projection == null && aggregates == null) {
+            return -1;
+        }
+
+        int max = orderBy;
+        for (Predicate p : predicates) {
+            max = Math.max(max, p.attribute);
+        }
+        if (aggregates != null) {
+            for (Aggregate a : aggregates) {
+                max = Math.max(max, a.attribute);
+            }
+            for (int attr : groupBy) {
+                max = Math.max(max, attr);
+            }
+        } else {
+            for (int attr : projection) {
+                max = Math.max(max, attr);
+            }
+        }
+        return max + 1;
+    }
+
     public String getTable() {
         return this.table;
     }
@@ -100,71 +277,269 @@ public class Query implements Serializable {
     public boolean qualifies(IteratorRecord record) {
         loadKey();
 
+        CompiledPredicate[] ps = getCompiledPredicates();
+        numChecked++;
+        boolean timed = numChecked % timingInterval == 0;
         boolean qualify = true;
-        for (Predicate p : predicates) {
-            int attrIdx = p.attribute;
-            switch (p.type) {
-                case BOOLEAN:
-                    qualify &= p.isRelevant(record.getBooleanAttribute(attrIdx));
-                    break;
-                case INT:
-                    qualify &= p.isRelevant(record.getIntAttribute(attrIdx));
-                    break;
-                case LONG:
-                    qualify &= p.isRelevant(record.getLongAttribute(attrIdx));
-                    break;
-                case DOUBLE:
-                    qualify &= p.isRelevant(record.getDoubleAttribute(attrIdx));
-                    break;
-                case DATE:
-                    qualify &= p.isRelevant(record.getDateAttribute(attrIdx));
-                    break;
-                case STRING:
-                    qualify &= p.isRelevant(record.getStringAttribute(attrIdx));
-                    break;
-                case VARCHAR:
-                    qualify &= p.isRelevant(record.getStringAttribute(attrIdx));
-                    break;
-                default:
-                    throw new RuntimeException("Invalid data type!");
+        for (CompiledPredicate p : ps) {
+            long start = timed ? System.nanoTime() : 0;
+            qualify = p.isRelevant(record);
+            if (timed) {
+                p.addTiming(1, System.nanoTime() - start);
+            }
+            p.addObservation(1, qualify ? 1 : 0);
+            if (!qualify) {
+                break;
             }
+        }
 
-            if (!qualify) return false;
+        if (numChecked % reorderInterval == 0) {
+            reorder();
         }
         return qualify;
     }
 
+    /**
+     * Narrows the selection of the batch down to the records that qualify,
+     * one predicate at a time.
+     */
+    public void filter(RecordBatch batch) {
+        for (CompiledPredicate p : getCompiledPredicates()) {
+            int before = batch.getNumSelected();
+            if (before == 0) {
+                break;
+            }
+            long start = System.nanoTime();
+            p.filter(batch);
+            p.addTiming(before, System.nanoTime() - start);
+            p.addObservation(before, batch.getNumSelected());
+        }
+        reorder();
+    }
+
+    /**
+     * Orders the predicates by the rank observed so far, the cheap and
+     * selective ones first.
+     */
+    public void reorder() {
+        CompiledPredicate[] ps = getCompiledPredicates();
+        // Insertion sort, there are few predicates and they are mostly in
+        // order already.
+        for (int i = 1; i < ps.length; i++) {
+            CompiledPredicate p = ps[i];
+            double rank = p.getRank();
+            int j = i - 1;
+            for (; j >= 0 && ps[j].getRank() > rank; j--) {
+                ps[j + 1] = ps[j];
+            }
+            ps[j + 1] = p;
+        }
+    }
+
+    /**
+     * The statistics of the predicates, in their current order.
+     */
+    public List<String> getPredicateStats() {
+        List<String> stats = new ArrayList<String>();
+        for (CompiledPredicate p : getCompiledPredicates()) {
+            stats.add(p.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Orders the predicates by their rank estimated on the sample of the
+     * table, before any record is read. The order is kept when the query is
+     * serialized.
+     */
+    public void orderBySample(ParsedTupleList sample) {
+        if (sample == null || sample.size() == 0 || predicates.length < 2) {
+            return;
+        }
+
+        final Map<Integer, Double> ranks = new HashMap<Integer, Double>();
+        for (Predicate p : predicates) {
+            if (!ranks.containsKey(p.attribute)) {
+                ranks.put(p.attribute, estimateRank(p.attribute, sample));
+            }
+        }
+
+        // Stable, the predicates of an attribute stay together.
+        Arrays.sort(predicates, new Comparator<Predicate>() {
+            @Override
+            public int compare(Predicate p1, Predicate p2) {
+                return Double.compare(ranks.get(p1.attribute), ranks.get(p2.attribute));
+            }
+        });
+        compiled = null;
+        System.out.println("INFO: Predicate ranks " + ranks + ", order " + this);
+    }
+
+    private double estimateRank(int attribute, ParsedTupleList sample) {
+        List<Predicate> ps = new ArrayList<Predicate>();
+        for (Predicate p : predicates) {
+            if (p.attribute == attribute) {
+                ps.add(p);
+            }
+        }
+
+        TYPE type = ps.get(0).type;
+        double passRate;
+        if (type == TYPE.BOOLEAN || type == TYPE.VARCHAR) {
+            // Not ordered, no estimate.
+            passRate = 0.5;
+        } else {
+            long passed = 0;
+            for (Object[] tuple : sample.getValues()) {
+                boolean pass = true;
+                for (Predicate p : ps) {
+                    pass &= p.isRelevant(tuple[attribute]);
+                }
+                passed += pass ? 1 : 0;
+            }
+            passRate = (double) passed / sample.size();
+        }
+        return getRelativeCost(type) / Math.max(1 - passRate, 1e-6);
+    }
+
+    /**
+     * Rough cost of checking an attribute of the type, relative to an int.
+     */
+    private static double getRelativeCost(TYPE type) {
+        switch (type) {
+            case DOUBLE:
+                return 2;
+            case STRING:
+            case VARCHAR:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * The query string with the predicates normalized and sorted, the same
+     * for the queries that only differ in the order of their predicates.
+     */
+    public String getNormalizedString() {
+        Query normalized = new Query(toString());
+        Arrays.sort(normalized.predicates, new Comparator<Predicate>() {
+            @Override
+            public int compare(Predicate p1, Predicate p2) {
+                return p1.toString().compareTo(p2.toString());
+            }
+        });
+        return normalized.toString();
+    }
+
     @Override
     public String toString() {
         String stringPredicates = "";
         if (predicates.length != 0)
             stringPredicates = Joiner.on(";").join(predicates);
 
-        return table + "|" + stringPredicates;
+        String query = table + "|" + stringPredicates;
+        if (aggregates != null) {
+            query += "|" + (projection == null ? "*" : Joiner.on(",").join(Ints.asList(projection)));
+            query += "|" + Joiner.on(";").join(aggregates);
+            if (groupBy.length > 0)
+                query += "|" + Joiner.on(",").join(Ints.asList(groupBy));
+        } else if (projection != null) {
+            query += "|" + Joiner.on(",").join(Ints.asList(projection));
+        }
+        if (orderBy != -1)
+            query += "|ORDER:" + orderBy + ":" + (descending ? "DESC" : "ASC");
+        if (limit != -1)
+            query += "|LIMIT:" + limit;
+
+        return query;
     }
 
     /**
      * Generate a Spark query string.
-     * Uses count(*) for now as selection.
+     * Selects the aggregates and groups, else the projection, all the
+     * attributes if there is none.
      *
      * @return
      */
     public String createQueryString() {
-        String query = "SELECT * FROM " + table + " WHERE ";
         TableInfo tf = Globals.getTableInfo(table);
+        String select = "*";
+        String groupByString = "";
+        if (aggregates != null) {
+            List<String> names = new ArrayList<String>();
+            for (int attr : groupBy) {
+                names.add(tf.schema.getAttributeName(attr));
+            }
+            if (!names.isEmpty()) {
+                groupByString = " GROUP BY " + Joiner.on(", ").join(names);
+            }
+            for (Aggregate a : aggregates) {
+                names.add(a.func + "(" + (a.attribute == -1 ? "*"
+                        : tf.schema.getAttributeName(a.attribute)) + ")");
+            }
+            select = Joiner.on(", ").join(names);
+        } else if (projection != null) {
+            List<String> names = new ArrayList<String>();
+            for (int attr : projection) {
+                names.add(tf.schema.getAttributeName(attr));
+            }
+            select = names.isEmpty() ? "COUNT(*)" : Joiner.on(", ").join(names);
+        }
+        String query = "SELECT " + select + " FROM " + table + " WHERE ";
 
         for (int i = 0; i < predicates.length; i++) {
             Predicate p = predicates[i];
-            if (p.type == TypeUtils.TYPE.DATE || p.type == TypeUtils.TYPE.STRING)
-                query += tf.schema.getAttributeName(p.attribute) + " " + p.predtype.toString() + " \"" + p.value.toString() + "\"";
-            else
-                query += tf.schema.getAttributeName(p.attribute) + " " + p.predtype.toString() + " " + p.value.toString();
+            String name = tf.schema.getAttributeName(p.attribute);
+            switch (p.predtype) {
+                case IN: {
+                    List<String> literals = new ArrayList<String>();
+                    for (Object v : (Object[]) p.value) {
+                        literals.add(toLiteral(v, p.type));
+                    }
+                    query += name + " IN (" + Joiner.on(", ").join(literals) + ")";
+                    break;
+                }
+                case BETWEEN:
+                case OR: {
+                    Object[] bounds = (Object[]) p.value;
+                    List<String> ranges = new ArrayList<String>();
+                    for (int j = 0; j + 1 < bounds.length; j += 2) {
+                        if (bounds[j] == null && bounds[j + 1] == null) {
+                            ranges.add("TRUE");
+                        } else if (bounds[j] == null) {
+                            ranges.add(name + " <= " + toLiteral(bounds[j + 1], p.type));
+                        } else if (bounds[j + 1] == null) {
+                            ranges.add(name + " >= " + toLiteral(bounds[j], p.type));
+                        } else {
+                            ranges.add(name + " BETWEEN " + toLiteral(bounds[j], p.type)
+                                    + " AND " + toLiteral(bounds[j + 1], p.type));
+                        }
+                    }
+                    query += "(" + Joiner.on(" OR ").join(ranges) + ")";
+                    break;
+                }
+                default:
+                    query += name + " " + p.predtype.toString() + " " + toLiteral(p.value, p.type);
+            }
 
             if (i < predicates.length - 1)
                 query += " AND ";
         }
 
+        query += groupByString;
+        if (orderBy != -1)
+            query += " ORDER BY " + tf.schema.getAttributeName(orderBy)
+                    + (descending ? " DESC" : " ASC");
+        if (limit != -1)
+            query += " LIMIT " + limit;
         System.out.println(query);
         return query;
     }
+
+    private static String toLiteral(Object value, TYPE type) {
+        if (type == TYPE.DATE || type == TYPE.STRING)
+            return "\"" + value.toString() + "\"";
+        return value.toString();
+    }
 }
@@ -0,0 +1,232 @@
+package core.adapt;
+
+import com.google.common.collect.ArrayListMultimap;
+import core.adapt.iterator.RepartitionIterator;
+import core.common.index.RobustTree;
+import core.utils.CuratorUtils;
+import core.utils.HDFSUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.hadoop.fs.FileSystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the repartitioning planned by the optimizer in the background on the
+ * driver, so that the query that triggered it does not pay for it.
+ * <p/>
+ * A job reads the old buckets, writes the tuples into the buckets of the new
+ * index version and only then commits the version. Till then, readers keep
+ * using the current version whose buckets are untouched, so queries keep
+ * seeing a consistent layout. Jobs run one at a time, the buckets within a job are spread over
+ * a pool of threads.
+ * <p/>
+ * The threads don't keep the driver alive; when it exits, a shutdown hook
+ * waits for the queued jobs to finish.
+ */
+public class RepartitionWorker {
+    // Number of threads used to repartition the buckets of a job.
+    public static int numThreads = 4;
+
+    // Number of buckets given to a thread at a time.
+    public static int bucketsPerTask = 8;
+
+    private static ExecutorService coordinator;
+    private static ExecutorService workers;
+
+    // The pools are made again after a shutdown, the hook only once.
+    private static boolean hookAdded = false;
+
+    // Tables with a job queued or running.
+    private static Map<String, Integer> pending = new HashMap<String, Integer>();
+
+    public static synchronized boolean isPending(String table) {
+        return pending.containsKey(table);
+    }
+
+    public static synchronized void submit(final Job job) {
+        if (coordinator == null) {
+            coordinator = Executors.newSingleThreadExecutor(daemonThreads("repartition-coordinator"));
+            workers = Executors.newFixedThreadPool(numThreads, daemonThreads("repartition-worker"));
+        }
+        if (!hookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    shutdown();
+                }
+            }, "repartition-shutdown"));
+            hookAdded = true;
+        }
+
+        String table = job.query.getTable();
+        Integer count = pending.get(table);
+        pending.put(table, count == null ? 1 : count + 1);
+
+        System.out.println("INFO: Queued repartitioning of "
+                + job.bucketIds.length + " buckets of " + table);
+        coordinator.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } catch (Exception e) {
+                    System.out.println("ERR: Repartitioning failed, version not committed: "
+                            + e.getMessage());
+                    e.printStackTrace();
+                } finally {
+                    done(job.query.getTable());
+                }
+            }
+        });
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static synchronized void done(String table) {
+        int count = pending.get(table) - 1;
+        if (count == 0) {
+            pending.remove(table);
+        } else {
+            pending.put(table, count);
+        }
+    }
+
+    /**
+     * Waits for all the queued jobs to finish. Used when shutting down.
+     */
+    public static void shutdown() {
+        ExecutorService c;
+        ExecutorService w;
+        synchronized (RepartitionWorker.class) {
+            c = coordinator;
+            w = workers;
+            coordinator = null;
+        }
+
+        if (c == null) {
+            return;
+        }
+
+        c.shutdown();
+        try {
+            while (!c.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("INFO: Waiting for repartitioning to finish");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        w.shutdown();
+    }
+
+    /**
+     * A planned repartitioning: the buckets to be rewritten and the index
+     * they should be rewritten into.
+     */
+    public static class Job {
+        Query query;
+        int[] bucketIds;
+        RobustTree newIndex;
+        long version;
+        String workingDir;
+        String hadoopHome;
+        String zookeeperHosts;
+        short replication;
+
+        public Job(Query query, int[] bucketIds, RobustTree newIndex, long version,
+                   String workingDir, String hadoopHome, String zookeeperHosts,
+                   short replication) {
+            this.query = query;
+            this.bucketIds = bucketIds;
+            this.newIndex = newIndex;
+            this.version = version;
+            this.workingDir = workingDir;
+            this.hadoopHome = hadoopHome;
+            this.zookeeperHosts = zookeeperHosts;
+            this.replication = replication;
+        }
+
+        void run() throws Exception {
+            long start = System.currentTimeMillis();
+            final FileSystem fs = HDFSUtils.getFSByHadoopHome(hadoopHome);
+            final CuratorFramework client = CuratorUtils.createAndStartClient(zookeeperHosts);
+            final String tableDir = workingDir + "/" + query.getTable();
+            // Read the buckets as of the version the new one is based on.
+            final ArrayListMultimap<Integer, String[]> files = IndexVersions.getBucketFiles(
+                    fs, tableDir, IndexVersions.getCurrentVersion(fs, tableDir));
+
+            try {
+                List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+                for (int i = 0; i < bucketIds.length; i += bucketsPerTask) {
+                    final int from = i;
+                    final int to = Math.min(i + bucketsPerTask, bucketIds.length);
+                    tasks.add(workers.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            repartition(fs, client, files, from, to);
+                            return null;
+                        }
+                    }));
+                }
+
+                // Rethrows the failure of any task.
+                for (Future<Object> task : tasks) {
+                    task.get();
+                }
+            } catch (Exception e) {
+                // Let the next queries plan again.
+                IndexVersions.abandon(fs, tableDir, version);
+                throw e;
+            } finally {
+                CuratorUtils.stopClient(client);
+            }
+
+            // All the segments are published, now make them visible.
+            IndexVersions.commit(fs, tableDir, version, newIndex.getAllBucketIds(),
+                    replication);
+
+            System.out.println("INFO: Repartitioned " + bucketIds.length + " buckets of "
+                    + query.getTable() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        private void repartition(FileSystem fs, CuratorFramework client,
+                                 ArrayListMultimap<Integer, String[]> files,
+                                 int from, int to) {
+            RepartitionIterator itr = new RepartitionIterator(query, newIndex.getRoot());
+            itr.setZookeeper(zookeeperHosts);
+            itr.setIndexVersion(version);
+            itr.setTaskId("worker-" + from);
+            itr.setCommitOnFinish(false);
+            for (int i = from; i < to; i++) {
+                // Empty buckets have no file.
+                for (String[] entry : files.get(bucketIds[i])) {
+                    HDFSPartition partition = new HDFSPartition(fs, entry[1],
+                            replication, client);
+                    partition.loadNext();
+                    itr.setPartition(partition);
+                    while (itr.hasNext()) {
+                        // The iterator writes out the tuples as a side effect.
+                    }
+                }
+            }
+            itr.finish();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package core.adapt;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * Results of queries kept on the local disk of the driver, up to a budget,
+ * the least recently used deleted first.
+ * <p/>
+ * A result is keyed by the normalized query and by the version of the
+ * table: the version of its index, and the number of files and bytes under
+ * TABLE/data. Repartitioning or loading data gives new keys, and the results
+ * of the old ones age out.
+ */
+public class ResultCache {
+    private File dir;
+    private long budget;
+
+    public ResultCache(String dir, long budgetBytes) {
+        this.dir = new File(dir);
+        this.budget = budgetBytes;
+        this.dir.mkdirs();
+    }
+
+    public static String getKey(FileSystem fs, String tableDir, Query q) throws IOException {
+        ContentSummary data = fs.getContentSummary(new Path(tableDir + "/data"));
+        return q.getNormalizedString() + "@" + IndexVersions.getCurrentVersion(fs, tableDir)
+                + ":" + data.getFileCount() + ":" + data.getLength();
+    }
+
+    private File getFile(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            return new File(dir, String.format("%032x", new BigInteger(1, digest)));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The result cached for the key, null if none.
+     */
+    public Object get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (!key.equals(in.readObject())) {
+                return null;
+            }
+            Object result = in.readObject();
+            file.setLastModified(System.currentTimeMillis());
+            return result;
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("WARN: Skipping bad cached result " + file + ": " + e.getMessage());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Caches the result, deleting the least recently used ones to stay
+     * within the budget.
+     */
+    public void put(String key, Serializable result) {
+        File file = getFile(key);
+        File tmp = new File(dir, file.getName() + "." + UUID.randomUUID().toString());
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeObject(key);
+            out.writeObject(result);
+            out.close();
+        } catch (IOException e) {
+            System.out.println("WARN: Failed to cache result: " + e.getMessage());
+            IOUtils.closeQuietly(out);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long used = 0;
+        for (File f : files) {
+            used += f.length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && used > budget; i++) {
+            used -= files[i].length();
+            files[i].delete();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package core.adapt;
+
+import core.adapt.CompiledPredicate.Key;
+import core.adapt.iterator.RecordBatch;
+import core.common.key.RawIndexKey;
+import core.utils.TypeUtils.TYPE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The k best records by an attribute, the largest values if descending
+ * else the smallest, seen so far.
+ * <p/>
+ * The records are kept in a heap of at most k, the worst of them on top, and
+ * a record is only copied when it beats it. Ints, longs, dates and doubles
+ * are compared by their keys, other types as strings.
+ */
+public class TopK {
+    private int attribute;
+    private boolean descending;
+    private int k;
+    // Null for strings.
+    private Key key;
+    private RawIndexKey record;
+
+    private PriorityQueue<Entry> heap;
+    private Comparator<Entry> worstFirst;
+
+    public TopK(int attribute, TYPE type, boolean descending, int k, char delimiter) {
+        this.attribute = attribute;
+        this.descending = descending;
+        this.k = k;
+        this.key = ZoneMap.isSupported(type) ? Key.forType(type) : null;
+        this.record = new RawIndexKey(delimiter);
+        this.worstFirst = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return rank(a, b);
+            }
+        };
+        this.heap = new PriorityQueue<Entry>(Math.max(1, Math.min(k, 1024)), worstFirst);
+    }
+
+    /**
+     * Positive if a is better than b.
+     */
+    private int rank(Entry a, Entry b) {
+        int c = key == null ? a.string.compareTo(b.string) : Long.compare(a.key, b.key);
+        return descending ? c : -c;
+    }
+
+    /**
+     * Adds the selected records of the batch.
+     */
+    public void add(RecordBatch batch) {
+        int[] selection = batch.getSelection();
+        int n = batch.getNumSelected();
+        Entry e = new Entry();
+        for (int s = 0; s < n; s++) {
+            int i = selection[s];
+            if (key == null) {
+                e.string = batch.getString(i, attribute);
+            } else {
+                e.key = key.read(batch, i, attribute);
+            }
+            if (offer(e)) {
+                e.bytes = Arrays.copyOfRange(batch.getBytes(), batch.getOffset(i),
+                        batch.getOffset(i) + batch.getLength(i));
+                e = new Entry();
+            }
+        }
+    }
+
+    /**
+     * Adds a record, e.g. one of the best of another scan.
+     */
+    public void add(byte[] bytes) {
+        record.setBytes(bytes);
+        Entry e = new Entry();
+        if (key == null) {
+            e.string = record.getStringAttribute(attribute);
+        } else {
+            e.key = key.read(record, attribute);
+        }
+        if (offer(e)) {
+            e.bytes = bytes;
+        }
+    }
+
+    /**
+     * Puts the entry in the heap if it is among the k best so far.
+     */
+    private boolean offer(Entry e) {
+        if (k <= 0) {
+            return false;
+        }
+        if (heap.size() < k) {
+            heap.add(e);
+            return true;
+        }
+        if (rank(e, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(e);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isFull() {
+        return heap.size() >= k;
+    }
+
+    /**
+     * Whether a record with a value of the attribute in [min, max] could
+     * still be among the k best. Only for ints, longs, dates and doubles.
+     */
+    public boolean canImprove(Object min, Object max) {
+        if (!isFull()) {
+            return true;
+        }
+        long worst = heap.peek().key;
+        return descending ? key.toKey(max) > worst : key.toKey(min) < worst;
+    }
+
+    /**
+     * The records, best first.
+     */
+    public List<byte[]> getSorted() {
+        List<Entry> entries = new ArrayList<Entry>(heap);
+        Collections.sort(entries, Collections.reverseOrder(worstFirst));
+        List<byte[]> records = new ArrayList<byte[]>(entries.size());
+        for (Entry e : entries) {
+            records.add(e.bytes);
+        }
+        return records;
+    }
+
+    static class Entry {
+        long key;
+        String string;
+        byte[] bytes;
+    }
+}
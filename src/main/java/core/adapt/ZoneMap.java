@@ -0,0 +1,259 @@
+package core.adapt;
+
+import core.adapt.CompiledPredicate.Key;
+import com.google.common.primitives.Ints;
+import core.adapt.iterator.RecordBatch;
+import core.utils.HDFSUtils;
+import core.utils.TypeUtils;
+import core.utils.TypeUtils.TYPE;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Number of records and range of some attributes of a partition file, for
+ * answering aggregates without reading the file.
+ * <p/>
+ * A zone map is only valid for the length and modification time of the file
+ * it was computed for, appending to the file invalidates it. The first
+ * aggregate or top-k scan of a file that finds no valid zone map covering the
+ * attributes it reads computes one and keeps it in TABLE/zonemaps. Only the
+ * ordered fixed width types are covered: ints, longs, doubles and dates.
+ */
+public class ZoneMap {
+    private long length;
+    private long modificationTime;
+    private long count;
+
+    private int[] attributes;
+    private TYPE[] types;
+    private Key[] keys;
+    private long[] mins;
+    private long[] maxs;
+
+    public ZoneMap(FileStatus file, int[] attributes, TYPE[] types) {
+        this(file.getLen(), file.getModificationTime(), attributes, types);
+    }
+
+    private ZoneMap(long length, long modificationTime, int[] attributes, TYPE[] types) {
+        this.length = length;
+        this.modificationTime = modificationTime;
+        this.attributes = attributes;
+        this.types = types;
+        this.keys = new Key[attributes.length];
+        this.mins = new long[attributes.length];
+        this.maxs = new long[attributes.length];
+        for (int j = 0; j < attributes.length; j++) {
+            keys[j] = Key.forType(types[j]);
+            mins[j] = Long.MAX_VALUE;
+            maxs[j] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * An empty zone map of the file covering the attributes and those of
+     * the previous zone map of the file below numAttributes (-1 for all),
+     * so that scans reading different attributes keep each other's.
+     */
+    public static ZoneMap create(FileStatus file, ZoneMap previous, int numAttributes,
+                                 int[] attributes, TYPE[] types) {
+        Map<Integer, TYPE> all = new TreeMap<Integer, TYPE>();
+        if (previous != null) {
+            for (int j = 0; j < previous.attributes.length; j++) {
+                if (numAttributes == -1 || previous.attributes[j] < numAttributes) {
+                    all.put(previous.attributes[j], previous.types[j]);
+                }
+            }
+        }
+        for (int j = 0; j < attributes.length; j++) {
+            all.put(attributes[j], types[j]);
+        }
+        return new ZoneMap(file, Ints.toArray(all.keySet()),
+                all.values().toArray(new TYPE[all.size()]));
+    }
+
+    public static boolean isSupported(TYPE type) {
+        return type == TYPE.INT || type == TYPE.LONG || type == TYPE.DOUBLE
+                || type == TYPE.DATE;
+    }
+
+    public static String getZoneMapDir(String tableDir) {
+        return tableDir + "/zonemaps";
+    }
+
+    /**
+     * The zone map of a file under TABLE/data, named by its path there.
+     */
+    public static String getPath(String tableDir, String filePath) {
+        int i = filePath.lastIndexOf("/data/");
+        String name = i == -1 ? new Path(filePath).getName() : filePath.substring(i + 6);
+        return getZoneMapDir(tableDir) + "/" + name.replace('/', '-');
+    }
+
+    /**
+     * Adds all the records of the batch, selected or not.
+     */
+    public void add(RecordBatch batch) {
+        int n = batch.size();
+        count += n;
+        for (int j = 0; j < attributes.length; j++) {
+            int attr = attributes[j];
+            Key key = keys[j];
+            long min = mins[j];
+            long max = maxs[j];
+            for (int i = 0; i < n; i++) {
+                long x = key.read(batch, i, attr);
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            mins[j] = min;
+            maxs[j] = max;
+        }
+    }
+
+    public boolean isValid(FileStatus file) {
+        return file.getLen() == length && file.getModificationTime() == modificationTime;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean covers(int attribute) {
+        return indexOf(attribute) != -1;
+    }
+
+    public boolean covers(int[] attributes) {
+        for (int attr : attributes) {
+            if (!covers(attr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int attribute) {
+        for (int j = 0; j < attributes.length; j++) {
+            if (attributes[j] == attribute) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Smallest value of the attribute, null if there are no records.
+     */
+    public Object getMin(int attribute) {
+        int j = indexOf(attribute);
+        return count == 0 ? null : keys[j].fromKey(mins[j]);
+    }
+
+    public Object getMax(int attribute) {
+        int j = indexOf(attribute);
+        return count == 0 ? null : keys[j].fromKey(maxs[j]);
+    }
+
+    /**
+     * Whether every record of the file is accepted by the predicates, all
+     * of them on covered attributes.
+     */
+    public boolean isContainedIn(CompiledPredicate[] ps) {
+        if (count == 0) {
+            return true;
+        }
+
+        for (CompiledPredicate p : ps) {
+            int attr = p.getAttribute();
+            if (!covers(attr) || !p.contains(getMin(attr), getMax(attr))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Written as "length modificationTime count", then a line
+     * "attribute type min max" per attribute.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(length).append(' ').append(modificationTime).append(' ').append(count).append('\n');
+        for (int j = 0; j < attributes.length; j++) {
+            sb.append(attributes[j]).append(' ').append(types[j]).append(' ')
+                    .append(keys[j].toString(mins[j])).append(' ')
+                    .append(keys[j].toString(maxs[j])).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static ZoneMap parse(String zoneMapString) {
+        String[] lines = zoneMapString.trim().split("\n");
+        String[] tokens = lines[0].split(" ");
+        int[] attributes = new int[lines.length - 1];
+        TYPE[] types = new TYPE[lines.length - 1];
+        String[][] ranges = new String[lines.length - 1][];
+        for (int j = 0; j < attributes.length; j++) {
+            String[] line = lines[j + 1].split(" ");
+            attributes[j] = Integer.parseInt(line[0]);
+            types[j] = TYPE.valueOf(line[1]);
+            ranges[j] = new String[]{line[2], line[3]};
+        }
+
+        ZoneMap z = new ZoneMap(Long.parseLong(tokens[0]), Long.parseLong(tokens[1]),
+                attributes, types);
+        z.count = Long.parseLong(tokens[2]);
+        if (z.count > 0) {
+            for (int j = 0; j < attributes.length; j++) {
+                z.mins[j] = z.keys[j].toKey(TypeUtils.deserializeValue(types[j], ranges[j][0]));
+                z.maxs[j] = z.keys[j].toKey(TypeUtils.deserializeValue(types[j], ranges[j][1]));
+            }
+        }
+        return z;
+    }
+
+    /**
+     * Returns the zone map of the file if there is a valid one, else null.
+     */
+    public static ZoneMap read(FileSystem fs, String tableDir, FileStatus file) {
+        String path = getPath(tableDir, file.getPath().toString());
+        ZoneMap z;
+        try {
+            if (!fs.exists(new Path(path))) {
+                return null;
+            }
+            z = parse(new String(HDFSUtils.readFile(fs, path)));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("WARN: Skipping bad zone map " + path);
+            return null;
+        }
+
+        return z.isValid(file) ? z : null;
+    }
+
+    /**
+     * Saves the zone map of the file, replacing the previous one.
+     * Called on the executors, best effort.
+     */
+    public void write(FileSystem fs, String tableDir, String filePath, short replication) {
+        String path = getPath(tableDir, filePath);
+        String tmpPath = path + "." + UUID.randomUUID().toString();
+        byte[] bytes = toString().getBytes();
+        try {
+            HDFSUtils.writeFile(fs, tmpPath, replication, bytes, 0, bytes.length, false);
+            fs.delete(new Path(path), false);
+            if (!fs.rename(new Path(tmpPath), new Path(path))) {
+                // Another task wrote it first.
+                fs.delete(new Path(tmpPath), false);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("WARN: Failed to write zone map " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package core.adapt.iterator;
+
+import core.adapt.Aggregate;
+import core.adapt.Aggregate.FUNC;
+import core.adapt.CompiledPredicate;
+import core.adapt.ZoneMap;
+import core.utils.TypeUtils;
+import core.utils.TypeUtils.SimpleDate;
+import core.utils.TypeUtils.TYPE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the aggregates of a query over the records it selects, per group.
+ * <p/>
+ * Each group keeps a count and, per aggregate, a primitive accumulator:
+ * sums of ints and longs, and minimums and maximums of ints, longs and dates
+ * (as yyyymmdd) in a long, sums, minimums and maximums of doubles in a
+ * double, minimums and maximums of strings as strings. A scan hands out its
+ * accumulators as partial records, one per group; merging the partials of
+ * all the scans gives the result.
+ * <p/>
+ * A partial record has the values of the group by attributes, the count and
+ * the accumulator of each aggregate, separated by the table delimiter. The
+ * accumulators of minimums and maximums are empty when the count is 0.
+ */
+public class Aggregator {
+    // Beyond this the grouping is not low cardinality, and fails.
+    public static int maxGroups = 100000;
+
+    private Aggregate[] aggregates;
+    private int[] groupBy;
+    private TYPE[] groupByTypes;
+    private char delimiter;
+
+    private Map<String, Group> groups = new HashMap<String, Group>();
+    private List<Group> order = new ArrayList<Group>();
+
+    public Aggregator(Aggregate[] aggregates, int[] groupBy, TYPE[] groupByTypes,
+                      char delimiter) {
+        this.aggregates = aggregates;
+        this.groupBy = groupBy;
+        this.groupByTypes = groupByTypes;
+        this.delimiter = delimiter;
+        if (groupBy.length == 0) {
+            // Even over no records, e.g. a count of 0.
+            getGroup("");
+        }
+    }
+
+    private Group getGroup(String key) {
+        Group g = groups.get(key);
+        if (g == null) {
+            if (groups.size() == maxGroups) {
+                throw new RuntimeException("More than " + maxGroups + " groups");
+            }
+            g = new Group(key, aggregates.length);
+            groups.put(key, g);
+            order.add(g);
+        }
+        return g;
+    }
+
+    private String getGroupKey(RecordBatch batch, int i) {
+        if (groupBy.length == 1) {
+            return batch.getString(i, groupBy[0]);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < groupBy.length; j++) {
+            if (j > 0) {
+                sb.append(delimiter);
+            }
+            sb.append(batch.getString(i, groupBy[j]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Adds the selected records of the batch.
+     */
+    public void add(RecordBatch batch) {
+        int[] selection = batch.getSelection();
+        int n = batch.getNumSelected();
+        if (groupBy.length == 0) {
+            Group g = order.get(0);
+            for (int k = 0; k < n; k++) {
+                add(g, batch, selection[k]);
+            }
+        } else {
+            for (int k = 0; k < n; k++) {
+                int i = selection[k];
+                add(getGroup(getGroupKey(batch, i)), batch, i);
+            }
+        }
+    }
+
+    private void add(Group g, RecordBatch batch, int i) {
+        boolean first = g.count == 0;
+        g.count++;
+        for (int a = 0; a < aggregates.length; a++) {
+            Aggregate agg = aggregates[a];
+            if (agg.func == FUNC.COUNT) {
+                continue;
+            }
+
+            int attr = agg.attribute;
+            switch (agg.type) {
+                case INT:
+                case LONG:
+                case DATE:
+                    long x = agg.type == TYPE.INT ? batch.getInt(i, attr)
+                            : agg.type == TYPE.LONG ? batch.getLong(i, attr)
+                            : batch.getDate(i, attr);
+                    g.longs[a] = accumulate(agg.func, first, g.longs[a], x);
+                    break;
+                case DOUBLE:
+                    double d = batch.getDouble(i, attr);
+                    g.doubles[a] = accumulate(agg.func, first, g.doubles[a], d);
+                    break;
+                default:
+                    String s = batch.getString(i, attr);
+                    g.strings[a] = accumulate(agg.func, first, g.strings[a], s);
+            }
+        }
+    }
+
+    private static long accumulate(FUNC func, boolean first, long acc, long x) {
+        switch (func) {
+            case MIN:
+                return first ? x : Math.min(acc, x);
+            case MAX:
+                return first ? x : Math.max(acc, x);
+            default:
+                return acc + x;
+        }
+    }
+
+    private static double accumulate(FUNC func, boolean first, double acc, double x) {
+        switch (func) {
+            case MIN:
+                return first ? x : Math.min(acc, x);
+            case MAX:
+                return first ? x : Math.max(acc, x);
+            default:
+                return acc + x;
+        }
+    }
+
+    private static String accumulate(FUNC func, boolean first, String acc, String x) {
+        if (first || (func == FUNC.MIN ? x.compareTo(acc) < 0 : x.compareTo(acc) > 0)) {
+            return x;
+        }
+        return acc;
+    }
+
+    /**
+     * Whether the zone maps of a partition, when it is entirely inside the
+     * predicates, answer the aggregates: counts, minimums and maximums of
+     * the attributes the zone maps cover, without grouping.
+     */
+    public boolean isAnsweredByZoneMaps() {
+        if (groupBy.length > 0) {
+            return false;
+        }
+        for (Aggregate agg : aggregates) {
+            if (agg.func != FUNC.COUNT && agg.func != FUNC.MIN && agg.func != FUNC.MAX) {
+                return false;
+            }
+            if (agg.func != FUNC.COUNT && !ZoneMap.isSupported(agg.type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the records of a partition from its zone map, instead of
+     * scanning it. Only if isAnsweredByZoneMaps().
+     */
+    public void add(ZoneMap zoneMap) {
+        if (zoneMap.getCount() == 0) {
+            return;
+        }
+
+        Group g = order.get(0);
+        boolean first = g.count == 0;
+        g.count += zoneMap.getCount();
+        for (int a = 0; a < aggregates.length; a++) {
+            Aggregate agg = aggregates[a];
+            if (agg.func == FUNC.COUNT) {
+                continue;
+            }
+
+            Object v = agg.func == FUNC.MIN ? zoneMap.getMin(agg.attribute)
+                    : zoneMap.getMax(agg.attribute);
+            if (agg.type == TYPE.DOUBLE) {
+                g.doubles[a] = accumulate(agg.func, first, g.doubles[a], (Double) v);
+            } else {
+                g.longs[a] = accumulate(agg.func, first, g.longs[a], toLong(v));
+            }
+        }
+    }
+
+    private static long toLong(Object v) {
+        if (v instanceof SimpleDate) {
+            return CompiledPredicate.encodeDate((SimpleDate) v);
+        }
+        return ((Number) v).longValue();
+    }
+
+    /**
+     * The accumulators as partial records, one per group.
+     */
+    public List<String> getPartials() {
+        List<String> partials = new ArrayList<String>();
+        for (Group g : order) {
+            StringBuilder sb = new StringBuilder();
+            if (groupBy.length > 0) {
+                sb.append(g.key).append(delimiter);
+            }
+            sb.append(g.count);
+            for (int a = 0; a < aggregates.length; a++) {
+                sb.append(delimiter);
+                Aggregate agg = aggregates[a];
+                if (agg.func == FUNC.COUNT || (g.count == 0 && agg.func != FUNC.SUM
+                        && agg.func != FUNC.AVG)) {
+                    continue;
+                }
+                if (agg.type == TYPE.DOUBLE) {
+                    sb.append(g.doubles[a]);
+                } else if (agg.type == TYPE.STRING) {
+                    sb.append(g.strings[a]);
+                } else {
+                    sb.append(g.longs[a]);
+                }
+            }
+            partials.add(sb.toString());
+        }
+        return partials;
+    }
+
+    /**
+     * Merges in a partial record of a scan.
+     */
+    public void merge(String partial) {
+        String[] tokens = partial.split(Pattern.quote(String.valueOf(delimiter)), -1);
+        int t = 0;
+        StringBuilder key = new StringBuilder();
+        for (int j = 0; j < groupBy.length; j++) {
+            if (j > 0) {
+                key.append(delimiter);
+            }
+            key.append(tokens[t++]);
+        }
+
+        Group g = getGroup(key.toString());
+        long count = Long.parseLong(tokens[t++]);
+        if (count == 0) {
+            return;
+        }
+
+        boolean first = g.count == 0;
+        g.count += count;
+        for (int a = 0; a < aggregates.length; a++) {
+            String token = tokens[t++];
+            Aggregate agg = aggregates[a];
+            switch (agg.func) {
+                case COUNT:
+                    break;
+                case SUM:
+                case AVG:
+                    if (agg.type == TYPE.DOUBLE) {
+                        g.doubles[a] += Double.parseDouble(token);
+                    } else {
+                        g.longs[a] += Long.parseLong(token);
+                    }
+                    break;
+                default:
+                    if (agg.type == TYPE.DOUBLE) {
+                        g.doubles[a] = accumulate(agg.func, first, g.doubles[a],
+                                Double.parseDouble(token));
+                    } else if (agg.type == TYPE.STRING) {
+                        g.strings[a] = accumulate(agg.func, first, g.strings[a], token);
+                    } else {
+                        g.longs[a] = accumulate(agg.func, first, g.longs[a],
+                                Long.parseLong(token));
+                    }
+            }
+        }
+    }
+
+    /**
+     * The values of the group by attributes followed by the aggregates, per
+     * group. Counts and sums of ints and longs are longs, averages doubles,
+     * minimums and maximums of the type of their attribute. All but counts
+     * are null over no records.
+     */
+    public List<Object[]> getResults() {
+        List<Object[]> results = new ArrayList<Object[]>();
+        for (Group g : order) {
+            Object[] row = new Object[groupBy.length + aggregates.length];
+            String[] values = groupBy.length == 0 ? new String[0]
+                    : g.key.split(Pattern.quote(String.valueOf(delimiter)), -1);
+            for (int j = 0; j < groupBy.length; j++) {
+                row[j] = TypeUtils.deserializeValue(groupByTypes[j], values[j]);
+            }
+
+            for (int a = 0; a < aggregates.length; a++) {
+                Aggregate agg = aggregates[a];
+                Object result = null;
+                if (agg.func == FUNC.COUNT) {
+                    result = g.count;
+                } else if (g.count > 0) {
+                    result = getResult(agg, g, a);
+                }
+                row[groupBy.length + a] = result;
+            }
+            results.add(row);
+        }
+        return results;
+    }
+
+    private static Object getResult(Aggregate agg, Group g, int a) {
+        switch (agg.func) {
+            case AVG:
+                return (agg.type == TYPE.DOUBLE ? g.doubles[a] : (double) g.longs[a]) / g.count;
+            case SUM:
+                return agg.type == TYPE.DOUBLE ? (Object) g.doubles[a] : (Object) g.longs[a];
+            default:
+                switch (agg.type) {
+                    case INT:
+                        return (int) g.longs[a];
+                    case LONG:
+                        return g.longs[a];
+                    case DOUBLE:
+                        return g.doubles[a];
+                    case DATE:
+                        return new SimpleDate((int) (g.longs[a] / 10000),
+                                (int) (g.longs[a] / 100 % 100), (int) (g.longs[a] % 100));
+                    default:
+                        return g.strings[a];
+                }
+        }
+    }
+
+    static class Group {
+        String key;
+        long count;
+        long[] longs;
+        double[] doubles;
+        String[] strings;
+
+        Group(String key, int numAggregates) {
+            this.key = key;
+            this.longs = new long[numAggregates];
+            this.doubles = new double[numAggregates];
+            this.strings = new String[numAggregates];
+        }
+    }
+}
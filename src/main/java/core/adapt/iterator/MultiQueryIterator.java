@@ -0,0 +1,129 @@
+package core.adapt.iterator;
+
+import com.google.common.io.ByteStreams;
+import core.adapt.Predicate;
+import core.adapt.Query;
+import org.apache.hadoop.io.Text;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Scans partitions once for several queries on the same table.
+ * <p/>
+ * A batch is read with all its records selected; select then narrows it
+ * down to the records of one query at a time, so that each record is read
+ * once and checked against every query reading its partition. The queries
+ * are known by the ids the caller gave them, which route their records.
+ * <p/>
+ * getQuery() is the union of the queries: no predicates, and the leading
+ * attributes any of them reads.
+ */
+public class MultiQueryIterator extends PartitionIterator implements
+        Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int[] queryIds;
+    private Query[] queries;
+
+    public MultiQueryIterator() {
+
+    }
+
+    public MultiQueryIterator(int[] queryIds, Query[] queries) {
+        this.queryIds = queryIds;
+        this.queries = queries;
+        this.query = getUnion(queries);
+    }
+
+    public MultiQueryIterator(String iteratorString) {
+        try {
+            readFields(ByteStreams.newDataInput(iteratorString.getBytes()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to read the fields");
+        }
+    }
+
+    public static MultiQueryIterator read(DataInput in) throws IOException {
+        MultiQueryIterator it = new MultiQueryIterator();
+        it.readFields(in);
+        return it;
+    }
+
+    /**
+     * A query on the table of the queries, without predicates, reading the
+     * leading attributes all of them need.
+     */
+    public static Query getUnion(Query[] queries) {
+        Query union = new Query(queries[0].getTable(), new Predicate[0]);
+        int numAttrs = 0;
+        for (Query q : queries) {
+            if (q.getNumAttributesNeeded() == -1) {
+                return union;
+            }
+            numAttrs = Math.max(numAttrs, q.getNumAttributesNeeded());
+        }
+
+        int[] attrs = new int[numAttrs];
+        for (int i = 0; i < numAttrs; i++) {
+            attrs[i] = i;
+        }
+        union.setProjection(attrs);
+        return union;
+    }
+
+    public int getNumQueries() {
+        return queries.length;
+    }
+
+    public int getQueryId(int j) {
+        return queryIds[j];
+    }
+
+    public Query getQuery(int j) {
+        return queries[j];
+    }
+
+    /**
+     * Selects the records of the batch, as nextBatch read it, that qualify
+     * for query j.
+     */
+    public void select(RecordBatch batch, int j) {
+        batch.selectAll();
+        queries[j].filter(batch);
+    }
+
+    @Override
+    protected boolean isRelevant(IteratorRecord record) {
+        for (Query q : queries) {
+            if (q.qualifies(record)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(queries.length);
+        for (int j = 0; j < queries.length; j++) {
+            out.writeInt(queryIds[j]);
+            queries[j].write(out);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int n = in.readInt();
+        queryIds = new int[n];
+        queries = new Query[n];
+        for (int j = 0; j < n; j++) {
+            queryIds[j] = in.readInt();
+            queries[j] = new Query(Text.readString(in));
+        }
+        query = getUnion(queries);
+    }
+}
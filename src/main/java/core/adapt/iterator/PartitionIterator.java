@@ -6,6 +6,7 @@ import core.adapt.HDFSPartition;
 import core.adapt.Partition;
 import core.adapt.Predicate;
 import core.adapt.Query;
+import core.adapt.ZoneMap;
 import core.common.globals.Globals;
 import core.common.globals.TableInfo;
 import core.utils.BinaryUtils;
@@ -24,12 +25,14 @@ public class PartitionIterator implements Iterator<IteratorRecord> {
 
     protected IteratorRecord record;
     protected byte[] recordBytes;
+    protected int recordOffset, recordLength;
     protected byte[] brokenRecordBytes;
     protected byte[] bytes;
     protected int bytesLength, offset, previous;
     protected Partition partition;
     protected Predicate[] predicates;
     protected Query query;
+    protected ZoneMap zoneMap;
 
     public PartitionIterator() {
 
@@ -56,6 +59,10 @@ public class PartitionIterator implements Iterator<IteratorRecord> {
                 new Class<?>[]{String.class}, new Object[]{tokens[1]});
     }
 
+    public Query getQuery() {
+        return this.query;
+    }
+
     public void setPartition(Partition partition) {
         this.partition = partition;
         if (Globals.getTableInfo(query.getTable()) == null) {
@@ -90,47 +97,98 @@ public class PartitionIterator implements Iterator<IteratorRecord> {
 
     @Override
     public boolean hasNext() {
-        for (; offset < bytesLength; offset++) {
-            if (bytes[offset] == newLine) {
-                // record.setBytes(bytes, previous, offset-previous);
-                recordBytes = ArrayUtils.subarray(bytes, previous, offset);
-                if (brokenRecordBytes != null) {
-                    recordBytes = BinaryUtils.concatenate(brokenRecordBytes,
-                            recordBytes);
-                    brokenRecordBytes = null;
-                }
+        while (nextRecord()) {
+            try {
+                record.setBytes(recordBytes, recordOffset, recordLength);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                System.out.println("Index out of bounds while setting bytes: "
+                        + (new String(recordBytes, recordOffset, recordLength)));
+                throw e;
+            }
 
-                try {
-                    record.setBytes(recordBytes);
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    System.out.println("Index out of bounds while setting bytes: "
-                            + (new String(recordBytes)));
-                    throw e;
-                }
+            if (isRelevant(record)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills the batch with the next records of the partition and selects the
+     * relevant ones.
+     *
+     * @return false if the partition has no more records.
+     */
+    public boolean nextBatch(RecordBatch batch) {
+        batch.clear();
+        while (!batch.isFull() && nextRecord()) {
+            batch.add(recordBytes, recordOffset, recordLength);
+        }
+        if (batch.size() == 0) {
+            return false;
+        }
 
-                previous = ++offset;
-                if (isRelevant(record)) {
-                    // System.out.println("relevant record found ..");
+        batch.selectAll();
+        if (zoneMap != null) {
+            zoneMap.add(batch);
+        }
+        filter(batch);
+        return true;
+    }
+
+    /**
+     * Zone map to add all the records of the partition to, relevant or not;
+     * null for none.
+     */
+    public void setZoneMap(ZoneMap zoneMap) {
+        this.zoneMap = zoneMap;
+    }
+
+    /**
+     * Narrows the selection of the batch down to the relevant records, as
+     * isRelevant does for a single record.
+     */
+    protected void filter(RecordBatch batch) {
+    }
+
+    /**
+     * Finds the next record, whatever its relevance. It is left in
+     * recordBytes, at recordOffset, without the newline.
+     */
+    protected boolean nextRecord() {
+        while (true) {
+            for (; offset < bytesLength; offset++) {
+                if (bytes[offset] == newLine) {
+                    if (brokenRecordBytes != null) {
+                        recordBytes = BinaryUtils.concatenate(brokenRecordBytes,
+                                ArrayUtils.subarray(bytes, previous, offset));
+                        recordOffset = 0;
+                        recordLength = recordBytes.length;
+                        brokenRecordBytes = null;
+                    } else {
+                        recordBytes = bytes;
+                        recordOffset = previous;
+                        recordLength = offset - previous;
+                    }
+                    previous = ++offset;
                     return true;
-                } else
-                    continue;
+                }
             }
-        }
 
-        if (previous < bytesLength)
-            brokenRecordBytes = BinaryUtils.getBytes(bytes, previous,
-                    bytesLength - previous);
-        else
-            brokenRecordBytes = null;
+            if (previous < bytesLength)
+                brokenRecordBytes = BinaryUtils.getBytes(bytes, previous,
+                        bytesLength - previous);
+            else
+                brokenRecordBytes = null;
 
-        bytes = partition == null ? null : partition.getNextBytes();
-        if (bytes != null) {
+            bytes = partition == null ? null : partition.getNextBytes();
+            if (bytes == null) {
+                return false;
+            }
             bytesLength = bytes.length;
             offset = 0;
             previous = 0;
-            return hasNext();
-        } else
-            return false;
+        }
     }
 
     protected boolean isRelevant(IteratorRecord record) {
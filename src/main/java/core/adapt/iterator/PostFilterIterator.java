@@ -42,6 +42,11 @@ public class PostFilterIterator extends PartitionIterator implements
         return query.qualifies(record);
     }
 
+    @Override
+    protected void filter(RecordBatch batch) {
+        query.filter(batch);
+    }
+
     @Override
     public void write(DataOutput out) throws IOException {
         query.write(out);
@@ -0,0 +1,263 @@
+package core.adapt.iterator;
+
+/**
+ * A batch of records of a partition.
+ * <p/>
+ * The records are copied one after the other into a single buffer; record i
+ * starts at offsets[i] and is lengths[i] bytes long, and its attribute a
+ * starts at getFieldOffset(i, a). Filters work a column at a time and narrow
+ * down the selection vector, the indexes of the records still qualifying.
+ * <p/>
+ * Only the first numAttrs attributes of each record are located, the ones
+ * the query reads; the scan of a record stops at the delimiter after them.
+ */
+public class RecordBatch {
+    public static int defaultCapacity = 1024;
+
+    private char delimiter;
+    private int capacity;
+
+    private byte[] bytes = new byte[64 * 1024];
+    private int used;
+
+    private int size;
+    private int[] offsets;
+    private int[] lengths;
+
+    // Attribute offsets of the records, numAttrs + 1 per record; the last
+    // one is past the end of attribute numAttrs - 1 and its delimiter.
+    private int numAttrs;
+    private int stride;
+    private int[] fieldOffsets;
+
+    private int[] selection;
+    private int numSelected;
+
+    private IteratorRecord record;
+
+    // Buffer and record of the projected copy of a record.
+    private byte[] projectedBytes;
+    private IteratorRecord projectedRecord;
+
+    public RecordBatch(char delimiter) {
+        this(delimiter, defaultCapacity);
+    }
+
+    public RecordBatch(char delimiter, int capacity) {
+        this(delimiter, capacity, -1);
+    }
+
+    /**
+     * @param numAttrs number of leading attributes to locate, -1 for all.
+     */
+    public RecordBatch(char delimiter, int capacity, int numAttrs) {
+        this.delimiter = delimiter;
+        this.capacity = capacity;
+        this.numAttrs = numAttrs;
+        this.offsets = new int[capacity];
+        this.lengths = new int[capacity];
+        this.selection = new int[capacity];
+        this.record = new IteratorRecord(delimiter);
+    }
+
+    public void clear() {
+        used = 0;
+        size = 0;
+        numSelected = 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Copies in the next record.
+     */
+    public void add(byte[] source, int offset, int length) {
+        if (fieldOffsets == null) {
+            if (numAttrs == -1) {
+                numAttrs = 1;
+                for (int i = offset; i < offset + length; i++) {
+                    if (source[i] == delimiter) {
+                        numAttrs++;
+                    }
+                }
+            }
+            stride = numAttrs + 1;
+            fieldOffsets = new int[capacity * stride];
+        }
+
+        if (used + length > bytes.length) {
+            byte[] resized = new byte[Math.max(bytes.length * 2, used + length)];
+            System.arraycopy(bytes, 0, resized, 0, used);
+            bytes = resized;
+        }
+        System.arraycopy(source, offset, bytes, used, length);
+
+        offsets[size] = used;
+        lengths[size] = length;
+        int base = size * stride;
+        int end = used + length;
+        int attr = 0;
+        fieldOffsets[base] = used;
+        for (int i = used; i < end && attr < numAttrs; i++) {
+            if (bytes[i] == delimiter) {
+                fieldOffsets[base + ++attr] = i + 1;
+            }
+        }
+        if (attr < numAttrs) {
+            // The last attribute runs to the end of the record.
+            fieldOffsets[base + ++attr] = end + 1;
+        }
+
+        used += length;
+        size++;
+    }
+
+    public void selectAll() {
+        for (int i = 0; i < size; i++) {
+            selection[i] = i;
+        }
+        numSelected = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+    public int getFieldOffset(int i, int attr) {
+        return fieldOffsets[i * stride + attr];
+    }
+
+    /**
+     * End of the attribute, exclusive.
+     */
+    public int getFieldEnd(int i, int attr) {
+        return fieldOffsets[i * stride + attr + 1] - 1;
+    }
+
+    public int getInt(int i, int attr) {
+        return (int) parseLong(i, attr, true);
+    }
+
+    public long getLong(int i, int attr) {
+        return parseLong(i, attr, false);
+    }
+
+    public double getDouble(int i, int attr) {
+        int off = getFieldOffset(i, attr);
+        return Double.parseDouble(new String(bytes, off, getFieldEnd(i, attr) - off));
+    }
+
+    public String getString(int i, int attr) {
+        int off = getFieldOffset(i, attr);
+        return new String(bytes, off, getFieldEnd(i, attr) - off);
+    }
+
+    /**
+     * Parses a yyyy-MM-dd date into yyyymmdd, as RawIndexKey does.
+     */
+    public long getDate(int i, int attr) {
+        int off = getFieldOffset(i, attr);
+        int year = 1000 * (bytes[off] - '0') + 100 * (bytes[off + 1] - '0')
+                + 10 * (bytes[off + 2] - '0') + (bytes[off + 3] - '0');
+        int month = 10 * (bytes[off + 5] - '0') + (bytes[off + 6] - '0');
+        int day = 10 * (bytes[off + 8] - '0') + (bytes[off + 9] - '0');
+        return year * 10000L + month * 100 + day;
+    }
+
+    /**
+     * Parses a decimal number, falling back to the JDK for anything but
+     * plain digits so malformed values fail the same way they do on records.
+     */
+    private long parseLong(int i, int attr, boolean isInt) {
+        int start = getFieldOffset(i, attr);
+        int end = getFieldEnd(i, attr);
+        int j = start;
+        boolean negative = false;
+        if (j < end && bytes[j] == '-') {
+            negative = true;
+            j++;
+        }
+
+        long x = 0;
+        boolean valid = j < end && end - j <= 18;
+        for (; valid && j < end; j++) {
+            int digit = bytes[j] - '0';
+            if (digit < 0 || digit > 9) {
+                valid = false;
+            } else {
+                x = x * 10 + digit;
+            }
+        }
+        if (negative) {
+            x = -x;
+        }
+
+        if (!valid || (isInt && (x < Integer.MIN_VALUE || x > Integer.MAX_VALUE))) {
+            String s = new String(bytes, start, end - start);
+            return isInt ? Integer.parseInt(s) : Long.parseLong(s);
+        }
+        return x;
+    }
+
+    public int[] getSelection() {
+        return selection;
+    }
+
+    public int getNumSelected() {
+        return numSelected;
+    }
+
+    public void setNumSelected(int numSelected) {
+        this.numSelected = numSelected;
+    }
+
+    /**
+     * Returns record i. The record object is reused by the next call.
+     */
+    public IteratorRecord getRecord(int i) {
+        record.setBytes(bytes, offsets[i], lengths[i]);
+        return record;
+    }
+
+    /**
+     * Returns the given attributes of record i, in order, as a record of
+     * their own. The record object and its bytes are reused by the next call.
+     */
+    public IteratorRecord getRecord(int i, int[] attributes) {
+        int length = Math.max(attributes.length - 1, 0);
+        for (int attr : attributes) {
+            length += getFieldEnd(i, attr) - getFieldOffset(i, attr);
+        }
+        if (projectedBytes == null || projectedBytes.length < length) {
+            projectedBytes = new byte[Math.max(length, 256)];
+            projectedRecord = new IteratorRecord(delimiter);
+        }
+
+        int used = 0;
+        for (int j = 0; j < attributes.length; j++) {
+            if (j > 0) {
+                projectedBytes[used++] = (byte) delimiter;
+            }
+            int off = getFieldOffset(i, attributes[j]);
+            int len = getFieldEnd(i, attributes[j]) - off;
+            System.arraycopy(bytes, off, projectedBytes, used, len);
+            used += len;
+        }
+        projectedRecord.setBytes(projectedBytes, 0, used);
+        return projectedRecord;
+    }
+}
@@ -3,25 +3,36 @@ package core.adapt.iterator;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import core.adapt.HDFSPartition;
+import core.adapt.IndexVersions;
 import core.adapt.Partition;
 import core.adapt.Query;
 import core.common.globals.Globals;
 import core.common.index.RNode;
 import core.common.index.RobustTree;
+import core.utils.CuratorUtils;
 import core.utils.HDFSUtils;
+import org.apache.curator.framework.CuratorFramework;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.io.Text;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Repartitions the input partitions and writes it out.
  * Does this by reading the new index. For each tuple, gets its new bucket id.
  * Writes it out the corresponding bucket.
+ * Each task writes its own segments of the new buckets and publishes them for
+ * the new index version. The version is committed by the last of the tasks to
+ * finish, which need not have read anything: the table is passed along with
+ * the iterator.
  *
  * @author anil
  */
@@ -30,6 +41,19 @@ public class RepartitionIterator extends PartitionIterator {
     protected Map<Integer, Partition> newPartitions = new HashMap<Integer, Partition>();
     protected Map<Integer, Partition> oldPartitions = new HashMap<Integer, Partition>();
     private RNode newIndexTree;
+    // Version of the new index, 0 for the index of the upfront partitioner.
+    protected long indexVersion = 0;
+    private String tableDir;
+    private String hadoopHome;
+    private short replication;
+    // Identifies the task, its attempts all publish under the same id.
+    private String taskId;
+    // If set, the last task to finish commits the version.
+    private boolean commitOnFinish = true;
+    // Bytes written to the new partitions and the time spent writing them.
+    private long bytesWritten = 0;
+    private long writeNanos = 0;
+    private final String attemptId = UUID.randomUUID().toString();
 
     public RepartitionIterator() {
     }
@@ -62,14 +86,51 @@ public class RepartitionIterator extends PartitionIterator {
         this.zookeeperHosts = zookeeperHosts;
     }
 
-    public Query getQuery() {
-        return this.query;
+    /**
+     * Where the new version is written and committed, for tasks that read
+     * nothing.
+     */
+    public void setTable(String tableDir, String hadoopHome, short replication) {
+        this.tableDir = tableDir;
+        this.hadoopHome = hadoopHome;
+        this.replication = replication;
     }
 
     public RNode getIndexTree() {
         return this.newIndexTree;
     }
 
+    public long getIndexVersion() {
+        return indexVersion;
+    }
+
+    public void setIndexVersion(long indexVersion) {
+        this.indexVersion = indexVersion;
+    }
+
+    public void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public void setCommitOnFinish(boolean commitOnFinish) {
+        this.commitOnFinish = commitOnFinish;
+    }
+
+    /**
+     * Path of the counter of tasks yet to finish writing the given version.
+     */
+    public static String getCommitCounterPath(String table, long indexVersion) {
+        return "/index-commit-" + table + "-" + indexVersion;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
     /**
      * Gets a HDFS Partition as input.
      * Loads the new index. PartitionWriter::setPartition does the rest.
@@ -77,7 +138,7 @@ public class RepartitionIterator extends PartitionIterator {
     @Override
     public void setPartition(Partition partition) {
         super.setPartition(partition);
-        if (newIndexTree == null) {
+        if (tableDir == null) {
             String path = FilenameUtils.getPathNoEndSeparator(partition
                     .getPath());
 
@@ -90,18 +151,39 @@ public class RepartitionIterator extends PartitionIterator {
                 path = FilenameUtils.getPathNoEndSeparator(FilenameUtils.getPath(path));
             }
 
-            // Initialize RobustTree.
-            byte[] indexBytes = HDFSUtils.readFile(
-                    ((HDFSPartition) partition).getFS(), path + "/index");
-            RobustTree tree = new RobustTree(Globals.getTableInfo(query.getTable()));
-            tree.unmarshall(indexBytes);
-            newIndexTree = tree.getRoot();
+            tableDir = path;
+        }
+
+        if (newIndexTree == null) {
+            loadIndexTree(((HDFSPartition) partition).getFS());
         }
         oldPartitions.put(partition.getPartitionId(), partition);
     }
 
+    private void loadIndexTree(FileSystem fs) {
+        byte[] indexBytes = HDFSUtils.readFile(fs,
+                IndexVersions.getIndexPath(tableDir, indexVersion));
+        RobustTree tree = new RobustTree(Globals.getTableInfo(query.getTable()));
+        tree.unmarshall(indexBytes);
+        newIndexTree = tree.getRoot();
+    }
+
     @Override
     protected boolean isRelevant(IteratorRecord record) {
+        repartition(record);
+        return query.qualifies(record);
+    }
+
+    @Override
+    protected void filter(RecordBatch batch) {
+        // Every record goes to the new partitions, relevant or not.
+        for (int i = 0; i < batch.size(); i++) {
+            repartition(batch.getRecord(i));
+        }
+        query.filter(batch);
+    }
+
+    private void repartition(IteratorRecord record) {
         int id = newIndexTree.getBucketId(record);
         Partition p;
         if (newPartitions.containsKey(id)) {
@@ -109,38 +191,91 @@ public class RepartitionIterator extends PartitionIterator {
         } else {
             p = partition.clone();
             p.setPartitionId(id);
+            if (taskId != null && indexVersion > 0) {
+                ((HDFSPartition) p).setSegmentPrefix(taskId + "_" + attemptId);
+            }
             newPartitions.put(id, p);
         }
 
-        p.write(record.getBytes(), 0, record.getBytes().length);
-        return query.qualifies(record);
+        p.write(record.getBytes(), record.getOffset(), record.getLength());
     }
 
     @Override
     public void finish() {
         if (zookeeperHosts != null) {
+            List<String[]> segments = new ArrayList<String[]>();
+            HDFSPartition last = null;
             for (Partition p : newPartitions.values()) {
                 System.out.println("storing partition id " + p.getPartitionId());
                 p.store(true);
+                bytesWritten += p.getBytesStored();
+                writeNanos += p.getStoreNanos();
+                last = (HDFSPartition) p;
+                segments.addAll(last.getStoredSegments());
             }
 
-            for (Partition p : oldPartitions.values()) {
-                System.out.println("dropping old partition id "
-                        + p.getPartitionId());
-                p.drop();
-            }
-
+            // Old buckets are still used by the current version, the cleaner
+            // removes them once no reader needs them.
             oldPartitions = Maps.newHashMap();
             newPartitions = Maps.newHashMap();
+
+            if (indexVersion > 0 && taskId != null && last != null) {
+                if (!IndexVersions.publishSegments(last.getFS(), tableDir, indexVersion,
+                        taskId, segments, last.getReplication())) {
+                    // Another attempt of this task won, ours are garbage.
+                    for (String[] segment : segments) {
+                        HDFSUtils.deleteFile(last.getFS(), segment[1], false);
+                    }
+                    return;
+                }
+            }
+
+            if (indexVersion > 0 && commitOnFinish) {
+                commitIfLast(last);
+            }
         } else {
             System.out.println("INFO: Zookeeper Hosts NULL");
         }
     }
 
+    /**
+     * @param partition one of the new partitions written, null if none.
+     */
+    private void commitIfLast(HDFSPartition partition) {
+        CuratorFramework client = CuratorUtils.createAndStartClient(zookeeperHosts);
+        try {
+            int remaining = CuratorUtils.decrementAtomicCounter(client,
+                    getCommitCounterPath(query.getTable(), indexVersion));
+            if (remaining == 0) {
+                if (partition == null && (tableDir == null || hadoopHome == null)) {
+                    // Nothing was read by this task and it wasn't told where
+                    // the table lives; the version stays pending till it
+                    // expires.
+                    System.out.println("ERR: Can't commit version " + indexVersion);
+                    return;
+                }
+
+                FileSystem fs = partition != null ? partition.getFS()
+                        : HDFSUtils.getFSByHadoopHome(hadoopHome);
+                if (newIndexTree == null) {
+                    loadIndexTree(fs);
+                }
+                IndexVersions.commit(fs, tableDir, indexVersion, newIndexTree.getAllBucketIds(),
+                        partition != null ? partition.getReplication() : replication);
+            }
+        } finally {
+            CuratorUtils.stopClient(client);
+        }
+    }
+
     @Override
     public void write(DataOutput out) throws IOException {
         query.write(out);
         Text.writeString(out, zookeeperHosts);
+        Text.writeString(out, Long.toString(indexVersion));
+        Text.writeString(out, tableDir == null ? "" : tableDir);
+        Text.writeString(out, hadoopHome == null ? "" : hadoopHome);
+        Text.writeString(out, Short.toString(replication));
     }
 
     @Override
@@ -148,5 +283,11 @@ public class RepartitionIterator extends PartitionIterator {
         String predicateString = Text.readString(in);
         query = new Query(predicateString);
         zookeeperHosts = Text.readString(in);
+        indexVersion = Long.parseLong(Text.readString(in));
+        tableDir = Text.readString(in);
+        tableDir = tableDir.isEmpty() ? null : tableDir;
+        hadoopHome = Text.readString(in);
+        hadoopHome = hadoopHome.isEmpty() ? null : hadoopHome;
+        replication = Short.parseShort(Text.readString(in));
     }
 }
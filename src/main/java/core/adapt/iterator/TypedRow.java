@@ -0,0 +1,152 @@
+package core.adapt.iterator;
+
+import core.common.globals.Schema;
+import core.utils.TypeUtils.SimpleDate;
+import core.utils.TypeUtils.TYPE;
+
+import java.io.Serializable;
+
+/**
+ * Some of the attributes of a record, decoded once into their types.
+ * <p/>
+ * Unlike IteratorRecord, a row owns its values: it can be cached or shuffled
+ * without copying and reading an attribute parses nothing. Numbers, dates
+ * (as yyyymmdd) and booleans are kept in a long each, strings as strings.
+ * Attribute i of the row is the i-th of the requested columns.
+ */
+public class TypedRow implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private TYPE[] types;
+    private long[] values;
+    private String[] strings;
+
+    public TypedRow(IteratorRecord record, int[] attributes, TYPE[] types) {
+        this.types = types;
+        this.values = new long[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            int attr = attributes[i];
+            switch (types[i]) {
+                case BOOLEAN:
+                    values[i] = record.getBooleanAttribute(attr) ? 1 : 0;
+                    break;
+                case INT:
+                    values[i] = record.getIntAttribute(attr);
+                    break;
+                case LONG:
+                    values[i] = record.getLongAttribute(attr);
+                    break;
+                case DOUBLE:
+                    values[i] = Double.doubleToRawLongBits(record.getDoubleAttribute(attr));
+                    break;
+                case DATE:
+                    SimpleDate d = record.getDateAttribute(attr);
+                    values[i] = d.getYear() * 10000 + d.getMonth() * 100 + d.getDay();
+                    break;
+                default:
+                    if (strings == null) {
+                        strings = new String[attributes.length];
+                    }
+                    strings[i] = record.getStringAttribute(attr);
+            }
+        }
+    }
+
+    /**
+     * Attribute ids of the columns, in the order of the row.
+     */
+    public static int[] getAttributes(Schema schema, String[] columns) {
+        int[] attributes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            attributes[i] = schema.getAttributeId(columns[i]);
+            if (attributes[i] == -1) {
+                throw new IllegalArgumentException("Unknown column " + columns[i]);
+            }
+        }
+        return attributes;
+    }
+
+    public static TYPE[] getTypes(Schema schema, int[] attributes) {
+        TYPE[] types = new TYPE[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            types[i] = schema.getType(attributes[i]);
+        }
+        return types;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public TYPE getType(int i) {
+        return types[i];
+    }
+
+    public boolean getBoolean(int i) {
+        return values[i] != 0;
+    }
+
+    public int getInt(int i) {
+        return (int) values[i];
+    }
+
+    public long getLong(int i) {
+        return values[i];
+    }
+
+    public double getDouble(int i) {
+        return Double.longBitsToDouble(values[i]);
+    }
+
+    public int getYear(int i) {
+        return (int) (values[i] / 10000);
+    }
+
+    public int getMonth(int i) {
+        return (int) (values[i] / 100 % 100);
+    }
+
+    public int getDay(int i) {
+        return (int) (values[i] % 100);
+    }
+
+    public SimpleDate getDate(int i) {
+        return new SimpleDate(getYear(i), getMonth(i), getDay(i));
+    }
+
+    public String getString(int i) {
+        return strings[i];
+    }
+
+    /**
+     * Returns the value boxed, dates as SimpleDate.
+     */
+    public Object get(int i) {
+        switch (types[i]) {
+            case BOOLEAN:
+                return getBoolean(i);
+            case INT:
+                return getInt(i);
+            case LONG:
+                return getLong(i);
+            case DOUBLE:
+                return getDouble(i);
+            case DATE:
+                return getDate(i);
+            default:
+                return getString(i);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            sb.append(get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package core.adapt.opt;
+
+import core.common.globals.TableInfo;
+import core.utils.HDFSUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Calibrates the repartition cost multiplier of a table from what the
+ * executors actually observe.
+ * Every task drops one small observation file into TABLE/calibration with the
+ * bytes it scanned / wrote and the time it took. When the optimizer loads the
+ * index it folds these into a running estimate kept in the table info, and
+ * deletes them.
+ */
+public class CostCalibrator {
+    // Weight of a new observation in the running estimate.
+    public static double alpha = 0.2;
+
+    // Ignore observations smaller than this, they are dominated by latency.
+    public static long minBytes = 1 << 20;
+
+    public static String getCalibrationDir(String tableDir) {
+        return tableDir + "/calibration";
+    }
+
+    /**
+     * Records the throughput seen by a single task.
+     * Called on the executors.
+     */
+    public static void recordObservation(FileSystem fs, String tableDir, short replication,
+                                         long scanBytes, long scanNanos,
+                                         long writeBytes, long writeNanos) {
+        if (scanBytes < minBytes && writeBytes < minBytes) {
+            return;
+        }
+
+        String observation = scanBytes + " " + scanNanos + " " + writeBytes + " " + writeNanos;
+        byte[] bytes = observation.getBytes();
+        String path = getCalibrationDir(tableDir) + "/" + System.currentTimeMillis()
+                + "-" + UUID.randomUUID().toString();
+        try {
+            HDFSUtils.writeFile(fs, path, replication, bytes, 0, bytes.length, false);
+        } catch (RuntimeException e) {
+            // Calibration is best effort, never fail the query for it.
+            System.out.println("WARN: Failed to record calibration: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Folds all pending observations into the table's running estimate.
+     * Called on the driver.
+     *
+     * @return true if the estimate changed and the table info should be saved.
+     */
+    public static boolean calibrate(FileSystem fs, String tableDir, TableInfo tableInfo) {
+        Path dir = new Path(getCalibrationDir(tableDir));
+        FileStatus[] observations;
+        try {
+            if (!fs.exists(dir)) {
+                return false;
+            }
+            observations = fs.listStatus(dir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        boolean updated = false;
+        for (FileStatus status : observations) {
+            String path = status.getPath().toString();
+            try {
+                String[] tokens = new String(HDFSUtils.readFile(fs, path)).trim().split(" ");
+                long scanBytes = Long.parseLong(tokens[0]);
+                long scanNanos = Long.parseLong(tokens[1]);
+                long writeBytes = Long.parseLong(tokens[2]);
+                long writeNanos = Long.parseLong(tokens[3]);
+
+                if (scanBytes >= minBytes) {
+                    tableInfo.scanCostPerByte = update(tableInfo.scanCostPerByte,
+                            (double) scanNanos / scanBytes);
+                    updated = true;
+                }
+
+                if (writeBytes >= minBytes) {
+                    tableInfo.writeCostPerByte = update(tableInfo.writeCostPerByte,
+                            (double) writeNanos / writeBytes);
+                    updated = true;
+                }
+            } catch (RuntimeException e) {
+                System.out.println("WARN: Skipping bad calibration file " + path);
+            }
+
+            HDFSUtils.deleteFile(fs, path, false);
+        }
+
+        if (updated) {
+            System.out.println("INFO: Calibrated scan " + tableInfo.scanCostPerByte
+                    + " ns/byte, write " + tableInfo.writeCostPerByte
+                    + " ns/byte, repartition cost " + tableInfo.getRepartitionCost());
+        }
+        return updated;
+    }
+
+    private static double update(double estimate, double observed) {
+        if (estimate <= 0) {
+            return observed;
+        }
+        return (1 - alpha) * estimate + alpha * observed;
+    }
+}
@@ -1,8 +1,14 @@
 package core.adapt.opt;
 
+import com.google.common.primitives.Ints;
 import core.adapt.AccessMethod.PartitionSplit;
+import core.adapt.Compactor;
+import core.adapt.CompiledPredicate;
+import core.adapt.IndexVersions;
 import core.adapt.Predicate;
 import core.adapt.Query;
+import core.adapt.RepartitionWorker;
+import core.adapt.iterator.MultiQueryIterator;
 import core.adapt.iterator.PartitionIterator;
 import core.adapt.iterator.PostFilterIterator;
 import core.adapt.iterator.RepartitionIterator;
@@ -39,21 +45,44 @@ public class Optimizer {
     private String workingDir;
     private String hadoopHome;
     private short fileReplicationFactor;
+    private String zookeeperHosts;
+
+    // Version of the index loaded and the lease pinning it.
+    private long indexVersion = 0;
+    private String lease;
+    private long leaseTakenAt;
+
+    // If set, the query is answered from the current layout and the
+    // repartitioning is done by the RepartitionWorker.
+    private boolean asyncRepartition = false;
+
+    // Per query repartitioning budget, negative means no limit.
+    private double budgetBytes = -1;
+    private double budgetSeconds = -1;
 
     private List<Query> queryWindow = new ArrayList<Query>();
 
+    // Queries the benefit of a plan is measured over, the recent queries of
+    // the window if null.
+    private List<Query> plannedQueries;
+
     public Optimizer(SparkQueryConf cfg) {
         // Working Directory for the Optimizer.
         // Each table is a folder under this directory.
         this.workingDir = cfg.getWorkingDir();
         this.hadoopHome = cfg.getHadoopHome();
         this.fileReplicationFactor = cfg.getHDFSReplicationFactor();
+        this.zookeeperHosts = cfg.getZookeeperHosts();
+        this.budgetBytes = cfg.getRepartitionBudgetBytes();
+        this.budgetSeconds = cfg.getRepartitionBudgetSeconds();
+        this.asyncRepartition = cfg.getAsyncRepartition();
     }
 
     public Optimizer(ConfUtils cfg) {
         this.workingDir = cfg.getHDFS_WORKING_DIR();
         this.hadoopHome = cfg.getHADOOP_HOME();
         this.fileReplicationFactor = cfg.getHDFS_REPLICATION_FACTOR();
+        this.zookeeperHosts = cfg.getZOOKEEPER_HOSTS();
     }
 
     /**
@@ -83,73 +112,53 @@ public class Optimizer {
         return true;
     }
 
-    static float getNumTuplesAccessed(RNode changed, Query q) {
+    double getNumBytesAccessed(RNode changed, Query q) {
         // First traverse to parent to see if query accesses node
-        // If yes, find the number of tuples accessed.
-        Predicate[] ps = q.getPredicates();
+        // If yes, find the number of bytes accessed.
+        CompiledPredicate[] ps = q.getCompiledPredicates();
 
-        RNode node = changed;
-        boolean accessed = true;
-        while (node.parent != null) {
-            for (Predicate p : ps) {
-                if (p.attribute == node.parent.attribute) {
+        // The values of the node on the attribute of each predicate, bounded
+        // by its closest ancestors on it.
+        Object[] lows = new Object[ps.length];
+        Object[] highs = new Object[ps.length];
+        for (int i = 0; i < ps.length; i++) {
+            for (RNode node = changed; node.parent != null; node = node.parent) {
+                if (ps[i].getAttribute() == node.parent.attribute) {
                     if (node.parent.leftChild == node) {
-                        switch (p.predtype) {
-                            case EQ:
-                            case GEQ:
-                                if (TypeUtils.compareTo(p.value, node.parent.value,
-                                        node.parent.type) > 0)
-                                    accessed = false;
-                                break;
-                            case GT:
-                                if (TypeUtils.compareTo(p.value, node.parent.value,
-                                        node.parent.type) >= 0)
-                                    accessed = false;
-                                break;
-                            default:
-                                break;
-                        }
+                        highs[i] = highs[i] == null ? node.parent.value : highs[i];
                     } else {
-                        switch (p.predtype) {
-                            case EQ:
-                            case LEQ:
-                                if (TypeUtils.compareTo(p.value, node.parent.value,
-                                        node.parent.type) <= 0)
-                                    accessed = false;
-                                break;
-                            case LT:
-                                if (TypeUtils.compareTo(p.value, node.parent.value,
-                                        node.parent.type) <= 0)
-                                    accessed = false;
-                                break;
-                            default:
-                                break;
-                        }
+                        lows[i] = lows[i] == null ? node.parent.value : lows[i];
                     }
                 }
-
-                if (!accessed)
-                    break;
             }
-
-            if (!accessed)
-                break;
-            node = node.parent;
+            if (!ps[i].intersects(lows[i], highs[i]))
+                return 0;
         }
 
-        List<RNode> nodesAccessed = changed.search(ps);
-        float tCount = 0;
+        List<RNode> nodesAccessed = changed.search(ps, lows, highs);
+        double bytes = 0;
         for (RNode n : nodesAccessed) {
-            tCount += n.bucket.getEstimatedNumTuples();
+            bytes += n.bucket.getEstimatedNumBytes(rt.getRowWidthScale());
         }
 
-        return tCount;
+        return bytes;
     }
 
     public void loadIndex(TableInfo tableInfo) {
         FileSystem fs = HDFSUtils.getFSByHadoopHome(hadoopHome);
         String tableDir = this.workingDir + "/" + tableInfo.tableName;
-        String pathToIndex = tableDir + "/index";
+
+        // Pin the current version, the buckets it refers to must stay around
+        // till the query is done.
+        this.lease = IndexVersions.pinCurrent(fs, tableDir);
+        this.indexVersion = IndexVersions.getLeaseVersion(this.lease);
+        this.leaseTakenAt = System.currentTimeMillis();
+        if (this.indexVersion > 0) {
+            IndexVersions.startCleaner(fs, tableDir);
+            Compactor.startCompactor(fs, tableDir, this.fileReplicationFactor);
+        }
+
+        String pathToIndex = IndexVersions.getIndexPath(tableDir, this.indexVersion);
         String pathToSample = tableDir + "/sample";
 
         byte[] indexBytes = HDFSUtils.readFile(fs, pathToIndex);
@@ -158,12 +167,43 @@ public class Optimizer {
 
         byte[] sampleBytes = HDFSUtils.readFile(fs, pathToSample);
         this.rt.loadSample(tableInfo, sampleBytes);
+
+        // Fold in the throughput observed by the previous queries.
+        if (CostCalibrator.calibrate(fs, tableDir, tableInfo)) {
+            tableInfo.save(this.workingDir, this.fileReplicationFactor, fs);
+        }
     }
 
     public RobustTree getIndex() {
         return rt;
     }
 
+    public long getIndexVersion() {
+        return indexVersion;
+    }
+
+    /**
+     * Releases the pin on the index version, if any.
+     */
+    public void releaseIndex() {
+        if (lease != null) {
+            IndexVersions.release(HDFSUtils.getFSByHadoopHome(hadoopHome), lease);
+            lease = null;
+        }
+    }
+
+    /**
+     * Releases the pin on the index version, if any, once the jobs reading
+     * it are done, see IndexVersions.releaseHeld.
+     */
+    public void releaseIndexAfterJobs() {
+        if (lease != null) {
+            IndexVersions.releaseAfterJobs(HDFSUtils.getFSByHadoopHome(hadoopHome), lease,
+                    leaseTakenAt);
+            lease = null;
+        }
+    }
+
     public int[] getBidFromRNodes(List<RNode> nodes) {
         int[] bids = new int[nodes.size()];
         Iterator<RNode> it = nodes.iterator();
@@ -174,14 +214,14 @@ public class Optimizer {
     }
 
     public PartitionSplit[] buildAccessPlan(final Query fq) {
-        List<RNode> nodes = this.rt.getRoot().search(fq.getPredicates());
+        List<RNode> nodes = this.rt.getRoot().search(fq.getCompiledPredicates());
 
         double tcost = 0;
         for (RNode r : nodes) {
-            tcost += r.bucket.getEstimatedNumTuples();
+            tcost += r.bucket.getEstimatedNumBytes(rt.getRowWidthScale());
         }
 
-        System.out.println("INFO: Total Cost " + tcost);
+        System.out.println("INFO: Total Cost " + tcost + " bytes");
 
         PartitionIterator pi = new PostFilterIterator(fq);
         int[] bids = this.getBidFromRNodes(nodes);
@@ -202,23 +242,37 @@ public class Optimizer {
         System.out.println("INFO: Running query " + q.toString());
         this.queryWindow.add(q);
 
+        // Don't plan on top of a layout which is about to change.
+        FileSystem fs = HDFSUtils.getFSByHadoopHome(hadoopHome);
+        String tableDir = this.workingDir + "/" + q.getTable();
+        if (RepartitionWorker.isPending(q.getTable())
+                || IndexVersions.hasPendingVersion(fs, tableDir)) {
+            System.out.println("INFO: Repartitioning pending, not adapting");
+            this.persistQueryToDisk(fs, q);
+            return buildAccessPlan(q);
+        }
+
         Predicate[] ps = q.getPredicates();
         LinkedList<Predicate> choices = new LinkedList<Predicate>();
 
-        // Initialize the set of choices for predicates.
+        // Initialize the set of choices for predicates. IN, BETWEEN and OR
+        // offer the cutpoints of their values.
         for (int i = 0; i < ps.length; i++) {
-            choices.add(ps[i]);
+            choices.addAll(ps[i].getCutpointPredicates());
         }
 
         double benefit = 0;
         List<RNode> buckets = rt.getMatchingBuckets(ps);
         int[] bucketIds = new int[buckets.size()];
-        double[] bucketTupleCounts = new double[buckets.size()];
+        double[] bucketSizes = new double[buckets.size()];
         for (int i = 0; i<buckets.size(); i++) {
             bucketIds[i] = buckets.get(i).bucket.getBucketId();
-            bucketTupleCounts[i] = buckets.get(i).bucket.getEstimatedNumTuples();
+            bucketSizes[i] = buckets.get(i).bucket.getEstimatedNumBytes(rt.getRowWidthScale());
         }
 
+        double budget = getRepartitionBudget();
+        double spent = 0;
+
         // Till we get no better plan, try to add a predicate into the tree.
         List<Predicate> predicatesInserted = new ArrayList<>();
         while (true) {
@@ -227,10 +281,19 @@ public class Optimizer {
                 break;
             }
 
+            if (budget >= 0) {
+                best = fitToBudget(best, budget - spent);
+                if (best == null) {
+                    System.out.println("INFO: Repartitioning budget used up, spent " + spent);
+                    break;
+                }
+            }
+
             Predicate inserted = getPredicateInserted(best);
             if (inserted == null) {
                 break;
             } else {
+                spent += best.cost;
                 benefit += best.benefit;
                 this.updateIndex(best, q.getPredicates());
                 choices.remove(inserted);
@@ -239,6 +302,7 @@ public class Optimizer {
         }
 
         int[] newBuckets = rt.getAllBucketIds();
+        double c = rt.tableInfo.getRepartitionCost();
         double cost = 0;
         double tcost = 0;
         List<Integer> modifiedBuckets = new ArrayList<>();
@@ -256,19 +320,34 @@ public class Optimizer {
 
             if (found) {
                 unmodifiedBuckets.add(bucketIds[i]);
-                tcost += bucketTupleCounts[i];
+                tcost += bucketSizes[i];
             } else {
                 modifiedBuckets.add(bucketIds[i]);
-                cost += Globals.c * bucketTupleCounts[i];
-                tcost += Globals.c * bucketTupleCounts[i];
+                cost += c * bucketSizes[i];
+                tcost += c * bucketSizes[i];
             }
         }
 
-        FileSystem fs = HDFSUtils.getFSByHadoopHome(hadoopHome);
         this.persistQueryToDisk(fs, q);
         List<PartitionSplit> lps = new ArrayList<>();
         System.out.println("INFO: Benefit " + benefit + " Cost " + cost + " Total Cost " + tcost);
-        if (benefit > cost) {
+        if (benefit > cost && asyncRepartition && modifiedBuckets.size() > 0) {
+            // Answer from the current layout, the index on disk is swapped
+            // once the new buckets have been written.
+            int[] bids = new int[modifiedBuckets.size()];
+            int counter = 0;
+            for (Integer i : modifiedBuckets) {
+                bids[counter] = i;
+                counter++;
+            }
+            System.out.println("INFO: Predicates inserted: " + predicatesInserted.toString());
+            long version = this.persistIndexToDisk(fs);
+            RepartitionWorker.submit(new RepartitionWorker.Job(q, bids, rt, version,
+                    workingDir, hadoopHome, zookeeperHosts, fileReplicationFactor));
+
+            PartitionSplit psplit = new PartitionSplit(bucketIds, new PostFilterIterator(q));
+            lps.add(psplit);
+        } else if (benefit > cost) {
             if (unmodifiedBuckets.size() > 0) {
                 PartitionIterator pi = new PostFilterIterator(q);
                 int[] bids = new int[unmodifiedBuckets.size()];
@@ -282,7 +361,7 @@ public class Optimizer {
             }
 
             if (modifiedBuckets.size() > 0) {
-                PartitionIterator pi = new RepartitionIterator(q);
+                RepartitionIterator pi = new RepartitionIterator(q);
                 int[] bids = new int[modifiedBuckets.size()];
                 int counter = 0;
                 for (Integer i : modifiedBuckets) {
@@ -295,7 +374,8 @@ public class Optimizer {
                 System.out.println("INFO: Predicates inserted: " + predicatesInserted.toString());
 
                 System.out.println("INFO: Index being updated");
-                this.persistIndexToDisk(fs);
+                // Becomes visible when the last repartitioning task is done.
+                pi.setIndexVersion(this.persistIndexToDisk(fs));
             }
         } else {
             PartitionIterator pi = new PostFilterIterator(q);
@@ -317,6 +397,232 @@ public class Optimizer {
         return splits;
     }
 
+    /**
+     * Plans a joint adaptation of the tree to a batch of queries on the same
+     * table, e.g. a set of reports queued together. Instead of adapting to
+     * each query in turn, the transformations are searched for over the
+     * predicates of all of them: each step applies the one with the largest
+     * benefit minus cost, the benefit measured over the whole batch, while
+     * that is positive. The buckets changed are then repartitioned together,
+     * once. The repartitioning budget is that of the queries of the batch
+     * together.
+     *
+     * @return the splits repartitioning the changed buckets, handing out all
+     * their records, none if no transformation pays off or the repartitioning
+     * is done asynchronously.
+     */
+    public PartitionSplit[] buildBatchPlan(final Query[] queries) {
+        FileSystem fs = HDFSUtils.getFSByHadoopHome(hadoopHome);
+        for (Query q : queries) {
+            System.out.println("INFO: Planning batch query " + q.toString());
+            this.queryWindow.add(q);
+            this.persistQueryToDisk(fs, q);
+        }
+
+        String table = queries[0].getTable();
+        String tableDir = this.workingDir + "/" + table;
+        if (RepartitionWorker.isPending(table)
+                || IndexVersions.hasPendingVersion(fs, tableDir)) {
+            System.out.println("INFO: Repartitioning pending, not adapting");
+            return new PartitionSplit[0];
+        }
+
+        // The buckets any of the queries reads, and their sizes.
+        Map<Integer, Double> bucketSizes = new LinkedHashMap<Integer, Double>();
+        LinkedList<Predicate> choices = new LinkedList<Predicate>();
+        for (Query q : queries) {
+            for (RNode n : rt.getMatchingBuckets(q.getPredicates())) {
+                bucketSizes.put(n.bucket.getBucketId(), n.bucket.getEstimatedNumBytes(rt.getRowWidthScale()));
+            }
+            for (Predicate p : q.getPredicates()) {
+                choices.addAll(p.getCutpointPredicates());
+            }
+        }
+
+        double budget = getRepartitionBudget();
+        if (budget >= 0) {
+            budget *= queries.length;
+        }
+        double spent = 0;
+        double benefit = 0;
+        List<Predicate> predicatesInserted = new ArrayList<Predicate>();
+        this.plannedQueries = Arrays.asList(queries);
+        try {
+            while (true) {
+                // Plans only change the subtrees their query reads, try the
+                // choices in those of each query.
+                Plan best = null;
+                Query bestQuery = null;
+                for (Predicate choice : choices) {
+                    for (Query q : queries) {
+                        Plan option = getBestPlanForPredicate(choice, q.getPredicates());
+                        if (option != null && option.benefit > option.cost && (best == null
+                                || option.benefit - option.cost > best.benefit - best.cost)) {
+                            best = option;
+                            bestQuery = q;
+                        }
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+
+                if (budget >= 0) {
+                    best = fitToBudget(best, budget - spent);
+                    if (best == null) {
+                        System.out.println("INFO: Repartitioning budget used up, spent " + spent);
+                        break;
+                    }
+                }
+
+                Predicate inserted = getPredicateInserted(best);
+                if (inserted == null) {
+                    break;
+                }
+                spent += best.cost;
+                benefit += best.benefit;
+                this.updateIndex(best, bestQuery.getPredicates());
+                choices.remove(inserted);
+                predicatesInserted.add(inserted);
+            }
+        } finally {
+            this.plannedQueries = null;
+        }
+
+        Set<Integer> newBuckets = new HashSet<Integer>(Ints.asList(rt.getAllBucketIds()));
+        double c = rt.tableInfo.getRepartitionCost();
+        double cost = 0;
+        List<Integer> modifiedBuckets = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Double> e : bucketSizes.entrySet()) {
+            if (!newBuckets.contains(e.getKey())) {
+                modifiedBuckets.add(e.getKey());
+                cost += c * e.getValue();
+            }
+        }
+
+        System.out.println("INFO: Batch of " + queries.length + " queries, Benefit " + benefit
+                + " Cost " + cost);
+        if (modifiedBuckets.isEmpty() || benefit <= cost) {
+            return new PartitionSplit[0];
+        }
+
+        System.out.println("INFO: Predicates inserted: " + predicatesInserted.toString());
+        // Hands out all the records, the queries are run on the new layout.
+        Query union = MultiQueryIterator.getUnion(queries);
+        int[] bids = Ints.toArray(modifiedBuckets);
+        long version = this.persistIndexToDisk(fs);
+        if (asyncRepartition) {
+            RepartitionWorker.submit(new RepartitionWorker.Job(union, bids, rt, version,
+                    workingDir, hadoopHome, zookeeperHosts, fileReplicationFactor));
+            return new PartitionSplit[0];
+        }
+
+        System.out.println("INFO: Index being updated");
+        RepartitionIterator pi = new RepartitionIterator(union);
+        // Becomes visible when the last repartitioning task is done.
+        pi.setIndexVersion(version);
+        return new PartitionSplit[]{new PartitionSplit(bids, pi)};
+    }
+
+    /**
+     * Returns how much repartitioning a single query may do, in the units of
+     * the cost model (repartition cost times bytes). Negative if no limit.
+     */
+    private double getRepartitionBudget() {
+        double c = rt.tableInfo.getRepartitionCost();
+        double budget = -1;
+        if (budgetBytes >= 0) {
+            budget = budgetBytes * c;
+        }
+
+        if (budgetSeconds >= 0) {
+            if (rt.tableInfo.scanCostPerByte > 0 && rt.tableInfo.writeCostPerByte > 0) {
+                double bytes = budgetSeconds * 1e9
+                        / (rt.tableInfo.scanCostPerByte + rt.tableInfo.writeCostPerByte);
+                budget = budget < 0 ? bytes * c : Math.min(budget, bytes * c);
+            } else {
+                System.out.println("WARN: Table not calibrated, ignoring budget of "
+                        + budgetSeconds + " seconds");
+            }
+        }
+
+        return budget;
+    }
+
+    /**
+     * Breaks the plan into independent transformations (subtrees whose action
+     * is not a re-use of the children's plans), and keeps the ones with the
+     * best benefit / cost that fit in the budget. The rest are left for later
+     * queries.
+     *
+     * @return the reduced plan, null if nothing fits.
+     */
+    private Plan fitToBudget(Plan plan, double budget) {
+        List<Action> transforms = new ArrayList<Action>();
+        collectTransforms(plan.actions, transforms);
+        Collections.sort(transforms, new Comparator<Action>() {
+            @Override
+            public int compare(Action a1, Action a2) {
+                // Same as a2.benefit / a2.cost vs a1.benefit / a1.cost,
+                // without the divide by zero.
+                return Double.compare(a2.benefit * a1.cost, a1.benefit * a2.cost);
+            }
+        });
+
+        Set<Action> kept = new HashSet<Action>();
+        Plan ret = new Plan();
+        ret.benefit = 0;
+        for (Action a : transforms) {
+            if (ret.cost + a.cost <= budget) {
+                kept.add(a);
+                ret.cost += a.cost;
+                ret.benefit += a.benefit;
+            }
+        }
+
+        if (kept.isEmpty()) {
+            return null;
+        }
+
+        if (kept.size() < transforms.size()) {
+            System.out.println("INFO: Budget allows " + kept.size() + " of "
+                    + transforms.size() + " transformations");
+        }
+
+        ret.actions = keepActions(plan.actions, kept);
+        return ret;
+    }
+
+    private void collectTransforms(Action a, List<Action> transforms) {
+        if (a == null) {
+            return;
+        }
+
+        if (a.option == 5) {
+            collectTransforms(a.left, transforms);
+            collectTransforms(a.right, transforms);
+        } else if (a.option != 0) {
+            transforms.add(a);
+        }
+    }
+
+    private Action keepActions(Action a, Set<Action> kept) {
+        if (a == null) {
+            return null;
+        }
+
+        if (a.option != 5) {
+            return kept.contains(a) ? a : null;
+        }
+
+        Action ret = new Action();
+        ret.pid = a.pid;
+        ret.option = 5;
+        ret.left = keepActions(a.left, kept);
+        ret.right = keepActions(a.right, kept);
+        return ret;
+    }
+
     private Predicate getPredicateInserted(Plan plan) {
         LinkedList<Action> queue = new LinkedList<Action>();
         queue.add(plan.actions);
@@ -362,6 +668,10 @@ public class Optimizer {
         if (n.parent == null)
             isRoot = true;
 
+        if (a == null) {
+            return;
+        }
+
         if (a.left != null) {
             this.applyActions(n.leftChild, a.left, ps);
         }
@@ -520,23 +830,29 @@ public class Optimizer {
     }
 
     /**
-     * Gives the number of tuples accessed
+     * Gives the number of bytes accessed
      *
      * @param changed
      * @return
      */
-    private double getNumTuplesAccessed(RNode changed) {
+    private double getNumBytesAccessed(RNode changed) {
         // First traverse to parent to see if query accesses node
-        // If yes, find the number of tuples accessed.
-        double numTuples = 0;
+        // If yes, find the number of bytes accessed.
+        double numBytes = 0;
+        if (plannedQueries != null) {
+            for (Query q : plannedQueries) {
+                numBytes += getNumBytesAccessed(changed, q);
+            }
+            return numBytes;
+        }
 
         // Access the last 20 queries at max.
         for (int i = queryWindow.size() - 1; i >= Math.max(queryWindow.size() - Globals.window_size, 0); i--) {
             Query q = queryWindow.get(i);
-            numTuples += getNumTuplesAccessed(changed, q);
+            numBytes += getNumBytesAccessed(changed, q);
         }
 
-        return numTuples;
+        return numBytes;
     }
 
     /**
@@ -563,7 +879,9 @@ public class Optimizer {
 
     private Plan getBestPlanForPredicate(Predicate choice, Predicate[] ps) {
         RNode root = rt.getRoot();
-        Plans plans = getBestPlanForSubtree(root, choice, ps);
+        CompiledPredicate[] compiled = CompiledPredicate.compile(ps);
+        Plans plans = getBestPlanForSubtree(root, choice, compiled,
+                new Object[compiled.length], new Object[compiled.length]);
         return plans.Best;
     }
 
@@ -593,7 +911,12 @@ public class Optimizer {
         }
     }
 
-    private Plans getBestPlanForSubtree(RNode node, Predicate choice, Predicate[] ps) {
+    /**
+     * The values of the subtree on the attribute of ps[i] are in
+     * (lows[i], highs[i]], as in RNode.search.
+     */
+    private Plans getBestPlanForSubtree(RNode node, Predicate choice, CompiledPredicate[] ps,
+                                        Object[] lows, Object[] highs) {
         // Option Index
         // 1 => Replace
         // 2 => Swap down X
@@ -623,44 +946,20 @@ public class Optimizer {
             // Check if both sides are accessed
             boolean goLeft = true;
             boolean goRight = true;
+            Object[] leftHighs = highs.clone();
+            Object[] rightLows = lows.clone();
             for (int i = 0; i < ps.length; i++) {
-                Predicate pd = ps[i];
-                if (pd.attribute == node.attribute) {
-                    switch (pd.predtype) {
-                        case GEQ:
-                            if (TypeUtils
-                                    .compareTo(pd.value, node.value, node.type) > 0)
-                                goLeft = false;
-                            break;
-                        case LEQ:
-                            if (TypeUtils
-                                    .compareTo(pd.value, node.value, node.type) <= 0)
-                                goRight = false;
-                            break;
-                        case GT:
-                            if (TypeUtils
-                                    .compareTo(pd.value, node.value, node.type) >= 0)
-                                goLeft = false;
-                            break;
-                        case LT:
-                            if (TypeUtils
-                                    .compareTo(pd.value, node.value, node.type) < 0)
-                                goRight = false;
-                            break;
-                        case EQ:
-                            if (TypeUtils
-                                    .compareTo(pd.value, node.value, node.type) <= 0)
-                                goRight = false;
-                            else
-                                goLeft = false;
-                            break;
-                    }
+                if (ps[i].getAttribute() == node.attribute) {
+                    goLeft &= ps[i].intersects(lows[i], node.value);
+                    goRight &= ps[i].intersects(node.value, highs[i]);
+                    leftHighs[i] = node.value;
+                    rightLows[i] = node.value;
                 }
             }
 
             Plans leftPlan;
             if (goLeft) {
-                leftPlan = getBestPlanForSubtree(node.leftChild, choice, ps);
+                leftPlan = getBestPlanForSubtree(node.leftChild, choice, ps, lows, leftHighs);
             } else {
                 leftPlan = new Plans();
                 leftPlan.Best = null;
@@ -670,7 +969,7 @@ public class Optimizer {
 
             Plans rightPlan;
             if (goRight) {
-                rightPlan = getBestPlanForSubtree(node.rightChild, choice, ps);
+                rightPlan = getBestPlanForSubtree(node.rightChild, choice, ps, rightLows, highs);
             } else {
                 rightPlan = new Plans();
                 rightPlan.Best = null;
@@ -690,7 +989,7 @@ public class Optimizer {
                 // cutoff point less than
                 // that of predicate, we can do this
                 if (checkValidToRoot(node, p.attribute, p.type, testVal)) {
-                    double numAccessedOld = getNumTuplesAccessed(node);
+                    double numAccessedOld = getNumBytesAccessed(node);
 
                     RNode r = node.clone();
                     r.attribute = p.attribute;
@@ -699,7 +998,7 @@ public class Optimizer {
                     replaceInTree(node, r);
 
                     populateBucketEstimates(r);
-                    double numAccessedNew = getNumTuplesAccessed(r);
+                    double numAccessedNew = getNumBytesAccessed(r);
                     double benefit = numAccessedOld - numAccessedNew;
 
                     if (benefit > 0) {
@@ -713,6 +1012,8 @@ public class Optimizer {
                         ac.pid = choice;
                         ac.option = 1;
                         pl.actions = ac;
+                        ac.cost = pl.cost;
+                        ac.benefit = pl.benefit;
 
                         updatePlan(pTop, pl);
                         updatePlan(best, pl);
@@ -735,6 +1036,8 @@ public class Optimizer {
                 ac.left = leftPlan.PTop.actions;
                 ac.right = rightPlan.PTop.actions;
                 pl.actions = ac;
+                ac.cost = pl.cost;
+                ac.benefit = pl.benefit;
                 updatePlan(pTop, pl);
                 updatePlan(best, pl);
             }
@@ -754,6 +1057,8 @@ public class Optimizer {
                         ac.option = 3;
                         ac.right = rightPlan.PTop.actions;
                         pl.actions = ac;
+                        ac.cost = pl.cost;
+                        ac.benefit = pl.benefit;
                         updatePlan(pTop, pl);
                         updatePlan(best, pl);
                     }
@@ -768,6 +1073,8 @@ public class Optimizer {
                         ac.option = 3;
                         ac.left = leftPlan.PTop.actions;
                         pl.actions = ac;
+                        ac.cost = pl.cost;
+                        ac.benefit = pl.benefit;
                         updatePlan(pTop, pl);
                         updatePlan(best, pl);
                     }
@@ -787,7 +1094,7 @@ public class Optimizer {
                         }
 
                         if (allGood) {
-                            double numAccessedOld = getNumTuplesAccessed(node);
+                            double numAccessedOld = getNumBytesAccessed(node);
 
                             RNode r = node.clone();
                             r.attribute = p.attribute;
@@ -796,7 +1103,7 @@ public class Optimizer {
                             replaceInTree(node, r);
 
                             populateBucketEstimates(r);
-                            double numAcccessedNew = getNumTuplesAccessed(r);
+                            double numAcccessedNew = getNumBytesAccessed(r);
                             double benefit = numAccessedOld - numAcccessedNew;
 
                             if (benefit > 0) {
@@ -811,6 +1118,8 @@ public class Optimizer {
                                 ac.pid = choice;
                                 ac.option = 1;
                                 pl.actions = ac;
+                                ac.cost = pl.cost;
+                                ac.benefit = pl.benefit;
 
                                 updatePlan(pTop, pl);
                                 updatePlan(best, pl);
@@ -818,6 +1127,7 @@ public class Optimizer {
 
                             // Restore
                             replaceInTree(r, node);
+                            populateBucketEstimates(node);
                         }
                     }
                 }
@@ -834,6 +1144,8 @@ public class Optimizer {
                 ac.left = leftPlan.Best.actions;
                 ac.right = rightPlan.Best.actions;
                 pl.actions = ac;
+                ac.cost = pl.cost;
+                ac.benefit = pl.benefit;
                 updatePlan(best, pl);
             } else if (rightPlan.Best != null) {
                 Plan pl = new Plan();
@@ -844,6 +1156,8 @@ public class Optimizer {
                 ac.option = 5;
                 ac.right = rightPlan.Best.actions;
                 pl.actions = ac;
+                ac.cost = pl.cost;
+                ac.benefit = pl.benefit;
                 updatePlan(best, pl);
             } else if (leftPlan.Best != null) {
                 Plan pl = new Plan();
@@ -854,6 +1168,8 @@ public class Optimizer {
                 ac.option = 5;
                 ac.left = leftPlan.Best.actions;
                 pl.actions = ac;
+                ac.cost = pl.cost;
+                ac.benefit = pl.benefit;
                 updatePlan(best, pl);
             }
 
@@ -867,29 +1183,47 @@ public class Optimizer {
     }
 
     private double computeCost(RNode r) {
-        double numTuples = r.numTuplesInSubtree();
-        return Globals.c * numTuples;
+        double numBytes = r.numBytesInSubtree(rt.getRowWidthScale());
+        return rt.tableInfo.getRepartitionCost() * numBytes;
+    }
+
+    /**
+     * Records a query answered without planning, e.g. from the result
+     * cache, so that adaptation still sees the demand for it.
+     */
+    public void recordQuery(Query q) {
+        this.queryWindow.add(q);
+        this.persistQueryToDisk(HDFSUtils.getFSByHadoopHome(hadoopHome), q);
     }
 
     public void loadQueries() {
         FileSystem fs = HDFSUtils.getFSByHadoopHome(hadoopHome);
         String tableDir = this.workingDir + "/" + rt.tableInfo.tableName;
-        String pathToQueries = tableDir + "/queries";
+        queryWindow.addAll(readQueries(fs, tableDir + "/queries"));
+    }
+
+    /**
+     * Reads a query log, one query per line as persistQueryToDisk writes
+     * them. Empty if there is none.
+     */
+    public static List<Query> readQueries(FileSystem fs, String pathToQueries) {
+        List<Query> queries = new ArrayList<Query>();
         try {
             if (fs.exists(new Path(pathToQueries))) {
                 byte[] queryBytes = HDFSUtils.readFile(fs, pathToQueries);
-                String queries = new String(queryBytes);
-                Scanner sc = new Scanner(queries);
+                String log = new String(queryBytes);
+                Scanner sc = new Scanner(log);
                 while (sc.hasNextLine()) {
                     String query = sc.nextLine();
                     Query f = new Query(query);
-                    queryWindow.add(f);
+                    queries.add(f);
                 }
                 sc.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return queries;
     }
 
     private void persistQueryToDisk(FileSystem fs, Query q) {
@@ -899,31 +1233,14 @@ public class Optimizer {
         HDFSUtils.appendLine(fs, pathToQueries, q.toString());
     }
 
-    private void persistIndexToDisk(FileSystem fs) {
-        String pathToIndex = this.workingDir + "/" + rt.tableInfo.tableName + "/index";
-        try {
-            if (fs.exists(new Path(pathToIndex))) {
-                // If index file exists, move it to a new filename
-                long currentMillis = System.currentTimeMillis();
-                String oldIndexPath = pathToIndex + "." + currentMillis;
-                boolean successRename = fs.rename(new Path(pathToIndex),
-                        new Path(oldIndexPath));
-                if (!successRename) {
-                    System.out.println("Index rename to " + oldIndexPath
-                            + " failed");
-                }
-            }
-            HDFSUtils.safeCreateFile(fs, pathToIndex,
-                    this.fileReplicationFactor);
-        } catch (IOException e) {
-            System.out.println("ERR: Writing Index failed: " + e.getMessage());
-            e.printStackTrace();
-        }
-
-        byte[] indexBytes = this.rt.marshall();
-        HDFSUtils.writeFile(fs,
-                pathToIndex, this.fileReplicationFactor, this.rt.marshall(), 0,
-                indexBytes.length, false);
+    /**
+     * Writes out the index as a new version. The version is not visible to
+     * readers till it is committed.
+     */
+    private long persistIndexToDisk(FileSystem fs) {
+        String tableDir = this.workingDir + "/" + rt.tableInfo.tableName;
+        return IndexVersions.createVersion(fs, tableDir, this.fileReplicationFactor,
+                this.rt.marshall());
     }
 
     private static class Plan {
@@ -942,6 +1259,8 @@ public class Optimizer {
         public int option; // Says which if I used to create this plan
         public Action left;
         public Action right;
+        public double cost; // Cost and benefit of the plan rooted here
+        public double benefit;
     }
 
     public static class Plans {
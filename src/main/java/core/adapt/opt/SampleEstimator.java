@@ -0,0 +1,339 @@
+package core.adapt.opt;
+
+import core.adapt.Aggregate;
+import core.adapt.Aggregate.FUNC;
+import core.adapt.Predicate;
+import core.adapt.Query;
+import core.common.index.RNode;
+import core.common.index.RobustTree;
+import core.common.key.ParsedTupleList;
+import core.utils.TypeUtils.SimpleDate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Estimates the COUNT, SUM and AVG aggregates of a query from the samples of
+ * the buckets it reads, with confidence intervals, without reading the data.
+ * <p/>
+ * Each bucket is a stratum: the mean over its sample of the value of the
+ * records that match (0 for the others) is scaled by its estimated number of
+ * tuples, and the variances of the strata add up. Averages are ratios of the
+ * sum to the count, their variance is linearized. Buckets whose exact
+ * aggregates were read are added in with no variance, so reading the
+ * buckets with the most variance narrows the intervals the fastest. The
+ * variance of a bucket with fewer than two records in its sample can't be
+ * told, the intervals are unbounded till it is read.
+ */
+public class SampleEstimator {
+    // Normal quantile of the confidence intervals, 95%.
+    public static double zScore = 1.96;
+
+    private Aggregate[] aggregates;
+    // Sums read by the exact query, per aggregate, -1 for counts.
+    private int[] sumIndexes;
+    private List<Stratum> strata = new ArrayList<Stratum>();
+
+    // Of the buckets read.
+    private Set<Integer> exactBuckets = new HashSet<Integer>();
+    private double exactCount;
+    private double[] exactSums;
+
+    public SampleEstimator(RobustTree index, Query q) {
+        if (!q.isAggregate() || q.getGroupBy().length > 0) {
+            throw new IllegalArgumentException("Only aggregates without grouping are estimated: " + q);
+        }
+        aggregates = q.getAggregates();
+        sumIndexes = new int[aggregates.length];
+        int numSums = 0;
+        for (int a = 0; a < aggregates.length; a++) {
+            FUNC func = aggregates[a].func;
+            if (func != FUNC.COUNT && func != FUNC.SUM && func != FUNC.AVG) {
+                throw new IllegalArgumentException("Can't estimate " + aggregates[a]);
+            }
+            sumIndexes[a] = func == FUNC.COUNT ? -1 : numSums++;
+        }
+        exactSums = new double[numSums];
+
+        for (RNode n : index.getMatchingBuckets(q.getPredicates())) {
+            strata.add(new Stratum(n, q.getPredicates()));
+        }
+    }
+
+    /**
+     * The query the buckets are read with: the count, then the sum of the
+     * attribute of each SUM and AVG.
+     */
+    public Query getExactQuery(Query q) {
+        Aggregate[] exact = new Aggregate[exactSums.length + 1];
+        exact[0] = Aggregate.count();
+        for (int a = 0; a < aggregates.length; a++) {
+            if (sumIndexes[a] != -1) {
+                exact[sumIndexes[a] + 1] = new Aggregate(FUNC.SUM, aggregates[a].attribute,
+                        aggregates[a].type);
+            }
+        }
+
+        Query exactQuery = new Query(q.toString());
+        exactQuery.setProjection(null);
+        exactQuery.setLimit(-1);
+        exactQuery.setOrderBy(-1, false);
+        exactQuery.setAggregates(exact, null);
+        return exactQuery;
+    }
+
+    /**
+     * Adds in the result of the exact query over the buckets, a row of the
+     * count and the sums.
+     */
+    public void addExact(int[] buckets, Object[] row) {
+        for (int b : buckets) {
+            exactBuckets.add(b);
+        }
+        exactCount += ((Number) row[0]).doubleValue();
+        for (int j = 0; j < exactSums.length; j++) {
+            exactSums[j] += row[j + 1] == null ? 0 : ((Number) row[j + 1]).doubleValue();
+        }
+    }
+
+    /**
+     * The buckets not read yet, those contributing the most variance to the
+     * estimates first.
+     */
+    public int[] getBucketsToRead() {
+        List<Stratum> unread = new ArrayList<Stratum>();
+        double countVar = 0;
+        final double[] sumVars = new double[exactSums.length];
+        for (Stratum s : strata) {
+            if (!exactBuckets.contains(s.bucketId)) {
+                unread.add(s);
+                if (s.unbounded) {
+                    continue;
+                }
+                countVar += s.getVarianceFactor() * s.varMatch;
+                for (int j = 0; j < sumVars.length; j++) {
+                    sumVars[j] += s.getVarianceFactor() * s.vars[j];
+                }
+            }
+        }
+
+        final double totalCountVar = countVar;
+        Collections.sort(unread, new Comparator<Stratum>() {
+            @Override
+            public int compare(Stratum a, Stratum b) {
+                return Double.compare(b.getWeight(totalCountVar, sumVars),
+                        a.getWeight(totalCountVar, sumVars));
+            }
+        });
+
+        int[] buckets = new int[unread.size()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = unread.get(i).bucketId;
+        }
+        return buckets;
+    }
+
+    /**
+     * The estimate of each aggregate.
+     */
+    public Estimate[] estimate() {
+        // Totals and their variances, of the count and the sums.
+        double count = exactCount;
+        double countVar = 0;
+        double[] sums = exactSums.clone();
+        double[] sumVars = new double[sums.length];
+        List<Stratum> sampled = new ArrayList<Stratum>();
+        boolean unbounded = false;
+        for (Stratum s : strata) {
+            if (exactBuckets.contains(s.bucketId)) {
+                continue;
+            }
+            sampled.add(s);
+            unbounded |= s.unbounded;
+            count += s.numTuples * s.meanMatch;
+            countVar += s.getVarianceFactor() * s.varMatch;
+            for (int j = 0; j < sums.length; j++) {
+                sums[j] += s.numTuples * s.means[j];
+                sumVars[j] += s.getVarianceFactor() * s.vars[j];
+            }
+        }
+
+        Estimate[] estimates = new Estimate[aggregates.length];
+        for (int a = 0; a < aggregates.length; a++) {
+            int j = sumIndexes[a];
+            switch (aggregates[a].func) {
+                case COUNT:
+                    estimates[a] = new Estimate(count, zScore * Math.sqrt(countVar));
+                    break;
+                case SUM:
+                    estimates[a] = new Estimate(sums[j], zScore * Math.sqrt(sumVars[j]));
+                    break;
+                default:
+                    if (count <= 0) {
+                        estimates[a] = new Estimate(Double.NaN, Double.POSITIVE_INFINITY);
+                        break;
+                    }
+                    double avg = sums[j] / count;
+                    double var = 0;
+                    for (Stratum s : sampled) {
+                        var += s.getVarianceFactor() * (s.vars[j] - 2 * avg * s.covs[j]
+                                + avg * avg * s.varMatch);
+                    }
+                    estimates[a] = new Estimate(avg,
+                            zScore * Math.sqrt(Math.max(var, 0)) / count);
+            }
+            if (unbounded) {
+                estimates[a].error = Double.POSITIVE_INFINITY;
+            }
+        }
+        return estimates;
+    }
+
+    /**
+     * An estimate and the half width of its confidence interval.
+     */
+    public static class Estimate {
+        public double value;
+        public double error;
+
+        public Estimate(double value, double error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        /**
+         * Half width of the interval relative to the estimate.
+         */
+        public double getRelativeError() {
+            if (error == 0) {
+                return 0;
+            }
+            if (value == 0 || Double.isNaN(value) || Double.isInfinite(error)) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return Math.abs(error / value);
+        }
+
+        @Override
+        public String toString() {
+            return value + " +/- " + error;
+        }
+    }
+
+    /**
+     * Moments over the sample of a bucket of whether a record matches and
+     * of the attribute of each sum, 0 for the records that don't match.
+     */
+    private class Stratum {
+        int bucketId;
+        double numTuples;
+        int sampleSize;
+        // Too few records sampled to tell the variance.
+        boolean unbounded;
+        double meanMatch;
+        double varMatch;
+        double[] means;
+        double[] vars;
+        // With whether the record matches.
+        double[] covs;
+
+        Stratum(RNode n, Predicate[] predicates) {
+            bucketId = n.bucket.getBucketId();
+            numTuples = n.bucket.getEstimatedNumTuples();
+            means = new double[exactSums.length];
+            vars = new double[exactSums.length];
+            covs = new double[exactSums.length];
+
+            ParsedTupleList sample = n.bucket.getSample();
+            List<Object[]> tuples = sample == null ? new ArrayList<Object[]>() : sample.getValues();
+            sampleSize = tuples.size();
+            unbounded = sampleSize < 2;
+            if (sampleSize == 0) {
+                return;
+            }
+
+            double[] xs = new double[exactSums.length];
+            double[] sumXs = new double[exactSums.length];
+            double[] sumXXs = new double[exactSums.length];
+            double[] sumXZs = new double[exactSums.length];
+            double matches = 0;
+            for (Object[] tuple : tuples) {
+                boolean match = true;
+                for (Predicate p : predicates) {
+                    if (tuple[p.attribute] == null) {
+                        throw new IllegalArgumentException("Attribute " + p.attribute
+                                + " is not in the samples");
+                    }
+                    match &= p.isRelevant(tuple[p.attribute]);
+                }
+                for (int a = 0; a < aggregates.length; a++) {
+                    int j = sumIndexes[a];
+                    if (j != -1) {
+                        xs[j] = match ? toDouble(tuple[aggregates[a].attribute]) : 0;
+                    }
+                }
+
+                matches += match ? 1 : 0;
+                for (int j = 0; j < xs.length; j++) {
+                    sumXs[j] += xs[j];
+                    sumXXs[j] += xs[j] * xs[j];
+                    sumXZs[j] += match ? xs[j] : 0;
+                }
+            }
+
+            meanMatch = matches / sampleSize;
+            varMatch = getCovariance(matches, matches, matches, sampleSize);
+            for (int j = 0; j < xs.length; j++) {
+                means[j] = sumXs[j] / sampleSize;
+                vars[j] = Math.max(0, getCovariance(sumXs[j], sumXs[j], sumXXs[j], sampleSize));
+                covs[j] = getCovariance(sumXs[j], matches, sumXZs[j], sampleSize);
+            }
+        }
+
+        /**
+         * Scales the variance of a record to that of the estimated total of
+         * the bucket, with the finite population correction.
+         */
+        double getVarianceFactor() {
+            int n = Math.max(sampleSize, 1);
+            return numTuples * numTuples / n * Math.max(0, 1 - n / Math.max(numTuples, n));
+        }
+
+        /**
+         * How much reading the bucket would narrow the intervals: its share
+         * of the variance of the count and of each sum.
+         */
+        double getWeight(double countVar, double[] sumVars) {
+            if (unbounded) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double weight = countVar > 0 ? getVarianceFactor() * varMatch / countVar : 0;
+            for (int j = 0; j < vars.length; j++) {
+                weight += sumVars[j] > 0 ? getVarianceFactor() * vars[j] / sumVars[j] : 0;
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * Sample covariance of x and y given their sums and the sum of their
+     * products.
+     */
+    private static double getCovariance(double sumX, double sumY, double sumXY, int n) {
+        if (n < 2) {
+            return 0;
+        }
+        return (sumXY - sumX * sumY / n) / (n - 1);
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof SimpleDate) {
+            throw new IllegalArgumentException("Can't sum dates");
+        }
+        return ((Number) value).doubleValue();
+    }
+}
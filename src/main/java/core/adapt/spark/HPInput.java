@@ -9,9 +9,14 @@ import core.adapt.AccessMethod.PartitionSplit;
 import core.adapt.Query;
 import core.adapt.iterator.PostFilterIterator;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
@@ -20,22 +25,97 @@ public class HPInput {
     protected AccessMethod am;
     protected ArrayListMultimap<Integer, FileStatus> partitionIdFileMap;
     protected Map<Integer, Long> partitionIdSizeMap;
+    // Bytes of each partition held by each host, from the block locations.
+    protected Map<Integer, Map<String, Long>> partitionIdHostMap;
 
     public void initialize(List<FileStatus> files, AccessMethod am) {
         this.am = am;
         partitionIdFileMap = ArrayListMultimap.create();
         partitionIdSizeMap = Maps.newHashMap();
+        partitionIdHostMap = Maps.newHashMap();
         for (FileStatus file : files) {
             try {
-                int id = Integer.parseInt(FilenameUtils.getName(file.getPath()
-                        .toString()));
+                int id = getBucketId(file.getPath());
                 partitionIdFileMap.put(id, file);
                 long currentSize = partitionIdSizeMap.containsKey(id) ? partitionIdSizeMap
                         .get(id) : 0;
                 partitionIdSizeMap.put(id, currentSize + file.getLen());
+                addHosts(id, file);
             } catch (NumberFormatException e) {
             }
         }
+
+        if (am != null) {
+            am.setPartitionSizes(partitionIdSizeMap);
+        }
+    }
+
+    private void addHosts(int id, FileStatus file) {
+        if (!(file instanceof LocatedFileStatus)) {
+            return;
+        }
+
+        BlockLocation[] blocks = ((LocatedFileStatus) file).getBlockLocations();
+        if (blocks == null) {
+            return;
+        }
+
+        Map<String, Long> hostBytes = partitionIdHostMap.get(id);
+        if (hostBytes == null) {
+            hostBytes = Maps.newHashMap();
+            partitionIdHostMap.put(id, hostBytes);
+        }
+
+        try {
+            for (BlockLocation block : blocks) {
+                for (String host : block.getHosts()) {
+                    Long bytes = hostBytes.get(host);
+                    hostBytes.put(host, (bytes == null ? 0 : bytes) + block.getLength());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("WARN: No hosts for " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Buckets are either a single file named by the bucket id or a directory
+     * named by the bucket id holding the segments written by each task.
+     */
+    public static int getBucketId(Path path) {
+        String name = FilenameUtils.getName(path.toString());
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(FilenameUtils.getName(FilenameUtils
+                    .getPathNoEndSeparator(path.toString())));
+        }
+    }
+
+    /**
+     * Counts the files cached on executors as held by their hosts, twice
+     * over, so that reading them from memory wins over reading a replica
+     * from local disk.
+     *
+     * @param cachedFiles the hosts caching each file
+     */
+    public void addCachedHosts(Map<String, List<String>> cachedFiles) {
+        for (Map.Entry<Integer, FileStatus> e : partitionIdFileMap.entries()) {
+            List<String> hosts = cachedFiles.get(e.getValue().getPath().toString());
+            if (hosts == null) {
+                continue;
+            }
+
+            Map<String, Long> hostBytes = partitionIdHostMap.get(e.getKey());
+            if (hostBytes == null) {
+                hostBytes = Maps.newHashMap();
+                partitionIdHostMap.put(e.getKey(), hostBytes);
+            }
+            for (String host : hosts) {
+                Long bytes = hostBytes.get(host);
+                hostBytes.put(host, (bytes == null ? 0 : bytes) + 2 * e.getValue().getLen());
+            }
+        }
     }
 
     public PartitionSplit[] getFullScan(Query q) {
@@ -49,6 +129,14 @@ public class HPInput {
         return am.getPartitionSplits(q, justAccess);
     }
 
+    public PartitionSplit[] getSharedScan(Query[] queries) {
+        return am.getSharedPartitionSplits(queries);
+    }
+
+    public PartitionSplit[] getBatchRepartitionScan(Query[] queries) {
+        return am.getBatchRepartitionSplits(queries);
+    }
+
     // utility methods
 
     public Path[] getPaths(int[] partitionIds) {
@@ -120,6 +208,59 @@ public class HPInput {
         return length;
     }
 
+    /**
+     * Returns the hosts holding the most bytes of the partitions, most first.
+     */
+    public String[] getHosts(int[] partitionIds, int maxHosts) {
+        final Map<String, Long> hostBytes = getHostBytes(partitionIds);
+        List<String> hosts = Lists.newArrayList(hostBytes.keySet());
+        Collections.sort(hosts, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return hostBytes.get(b).compareTo(hostBytes.get(a));
+            }
+        });
+        hosts = hosts.subList(0, Math.min(maxHosts, hosts.size()));
+        return hosts.toArray(new String[hosts.size()]);
+    }
+
+    /**
+     * Bytes of the partitions stored on the host.
+     */
+    public long getLocalBytes(int[] partitionIds, String host) {
+        Long bytes = getHostBytes(partitionIds).get(host);
+        return bytes == null ? 0 : bytes;
+    }
+
+    private Map<String, Long> getHostBytes(int[] partitionIds) {
+        Map<String, Long> hostBytes = Maps.newHashMap();
+        for (int id : partitionIds) {
+            if (!partitionIdHostMap.containsKey(id)) {
+                continue;
+            }
+            for (Map.Entry<String, Long> e : partitionIdHostMap.get(id).entrySet()) {
+                Long bytes = hostBytes.get(e.getKey());
+                hostBytes.put(e.getKey(), (bytes == null ? 0 : bytes) + e.getValue());
+            }
+        }
+        return hostBytes;
+    }
+
+    /**
+     * Returns the host holding the most bytes of each partition, for the
+     * partitions whose locations are known.
+     */
+    public Map<Integer, String> getPrimaryHosts() {
+        Map<Integer, String> primaryHosts = Maps.newHashMap();
+        for (int id : partitionIdHostMap.keySet()) {
+            String[] hosts = getHosts(new int[]{id}, 1);
+            if (hosts.length > 0) {
+                primaryHosts.put(id, hosts[0]);
+            }
+        }
+        return primaryHosts;
+    }
+
     public int getNumPartitions() {
         return partitionIdSizeMap.size();
     }
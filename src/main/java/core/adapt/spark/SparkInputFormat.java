@@ -1,17 +1,25 @@
 package core.adapt.spark;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
 import com.google.common.primitives.Ints;
 import core.adapt.AccessMethod;
 import core.adapt.AccessMethod.PartitionSplit;
+import core.adapt.BucketCache;
+import core.adapt.IndexVersions;
+import core.adapt.Query;
 import core.adapt.iterator.IteratorRecord;
 import core.adapt.iterator.PartitionIterator;
 import core.adapt.iterator.RepartitionIterator;
+import core.utils.CuratorUtils;
+import core.utils.HDFSUtils;
 import core.utils.ReflectionUtils;
+import org.apache.curator.framework.CuratorFramework;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
@@ -35,29 +43,81 @@ public class SparkInputFormat extends
 
     private static final Log LOG = LogFactory.getLog(FileInputFormat.class);
 
+    // Preferred hosts given to Spark for each split.
+    private static final int MAX_SPLIT_HOSTS = 3;
+
     SparkQueryConf queryConf;
 
     @Override
     public List<InputSplit> getSplits(JobContext job) throws IOException {
-        List<InputSplit> finalSplits = new ArrayList<InputSplit>();
         queryConf = new SparkQueryConf(job.getConfiguration());
 
         AccessMethod am = new AccessMethod();
         am.init(queryConf);
+        try {
+            return getSplits(job, am);
+        } finally {
+            // The buckets of the version must stay till the job has read
+            // them, SparkQuery releases the pin then.
+            am.releaseIndexAfterJobs();
+        }
+    }
 
+    private List<InputSplit> getSplits(JobContext job, AccessMethod am) throws IOException {
+        List<InputSplit> finalSplits = new ArrayList<InputSplit>();
+
+        // The tasks start with the predicates in the order the sample
+        // suggests, and adapt it to what they see.
+        Query query = queryConf.getQuery();
+        query.orderBySample(am.getIndex().sample);
+
+        FileSystem fs = HDFSUtils.getFSByHadoopHome(queryConf.getHadoopHome());
+        String tableDir = queryConf.getWorkingDir() + "/" + queryConf.getQuery().getTable();
         HPInput hpInput = new HPInput();
-        hpInput.initialize(listStatus(job), am);
+        if (IndexVersions.hasManifest(fs, tableDir, am.getIndexVersion())) {
+            // Of a version > 0, only the segments in the manifest are visible.
+            hpInput.initialize(getManifestFiles(fs, tableDir, am.getIndexVersion()), am);
+        } else {
+            hpInput.initialize(listStatus(job), am);
+        }
+        if (queryConf.getBucketCacheBytes() > 0) {
+            hpInput.addCachedHosts(BucketCache.getCachedFiles(fs, tableDir));
+        }
 
         // get the splits based on the query configuration
         PartitionSplit[] splits;
-        if (queryConf.getFullScan())
-            splits = hpInput.getFullScan(queryConf.getQuery());
-        else
-            splits = hpInput.getIndexScan(queryConf.getJustAccess(),
-                    queryConf.getQuery());
-
-        splits = resizeSplits(splits, hpInput.getPartitionIdSizeMap(),
-                queryConf.getMaxSplitSize(), queryConf.getMinSplitSize());
+        Query[] sharedQueries = queryConf.getSharedQueries();
+        if (sharedQueries != null && queryConf.getRepartitionScan()) {
+            splits = hpInput.getBatchRepartitionScan(sharedQueries);
+        } else if (sharedQueries != null) {
+            for (Query q : sharedQueries) {
+                q.orderBySample(am.getIndex().sample);
+            }
+            splits = hpInput.getSharedScan(sharedQueries);
+        } else if (queryConf.getFullScan())
+            splits = hpInput.getFullScan(query);
+        else if ((query.getLimit() != -1 || queryConf.getBuckets() != null)
+                && !queryConf.getJustAccess()) {
+            // The scans may stop early or read only some buckets, they must
+            // not repartition.
+            System.out.println("INFO: Query with a limit or on given buckets, not adapting");
+            splits = hpInput.getIndexScan(true, query);
+        } else
+            splits = hpInput.getIndexScan(queryConf.getJustAccess(), query);
+
+        if (queryConf.getBuckets() != null) {
+            splits = restrictToBuckets(splits, queryConf.getBuckets());
+        }
+
+        if (query.getLimit() != -1 && !query.isAggregate()) {
+            // The most promising buckets first.
+            splits = new SplitPlanner(hpInput.getPartitionIdSizeMap(), hpInput.getPrimaryHosts())
+                    .planByPriority(splits, SplitPlanner.getPriorities(am.getIndex(), query),
+                            queryConf.getParallelism(), queryConf.getMaxSplitSize());
+        } else
+            splits = resizeSplits(splits, hpInput.getPartitionIdSizeMap(),
+                    hpInput.getPrimaryHosts(), queryConf.getMaxSplitSize(),
+                    queryConf.getParallelism());
         System.out.println("Number of splits= " + splits.length);
 
         for (PartitionSplit split : splits) {
@@ -66,21 +126,52 @@ public class SparkInputFormat extends
                     + Arrays.toString(split.getPartitions()));
         }
 
+        // The last repartitioning task to finish commits the new index
+        // version, count them down in zookeeper.
+        int numRepartitionSplits = 0;
+        long indexVersion = 0;
+        for (PartitionSplit split : splits) {
+            if (split.getIterator() instanceof RepartitionIterator) {
+                numRepartitionSplits++;
+                indexVersion = ((RepartitionIterator) split.getIterator()).getIndexVersion();
+            }
+        }
+        if (numRepartitionSplits > 0 && indexVersion > 0) {
+            CuratorFramework client = CuratorUtils.createAndStartClient(
+                    queryConf.getZookeeperHosts());
+            CuratorUtils.setAtomicCounter(client, RepartitionIterator.getCommitCounterPath(
+                    queryConf.getQuery().getTable(), indexVersion), numRepartitionSplits);
+            CuratorUtils.stopClient(client);
+        }
+
         // create the InputSplit (HDFS object) from the PartitionSplit (internal
         // hyper partitioning object)
+        long totalBytes = 0;
+        long localBytes = 0;
         for (PartitionSplit split : splits) {
             PartitionIterator itr = split.getIterator();
             // hack to set the zookeeper hosts
             if (itr instanceof RepartitionIterator) {
                 ((RepartitionIterator) itr).setZookeeper(queryConf
                         .getZookeeperHosts());
+                ((RepartitionIterator) itr).setTable(tableDir, queryConf.getHadoopHome(),
+                        queryConf.getHDFSReplicationFactor());
             }
 
-            SparkFileSplit thissplit = new SparkFileSplit(
-                    hpInput.getPaths(split.getPartitions()),
-                    hpInput.getLengths(split.getPartitions()), itr);
+            Path[] paths = hpInput.getPaths(split.getPartitions());
+            String[] hosts = hpInput.getHosts(split.getPartitions(), MAX_SPLIT_HOSTS);
+            SparkFileSplit thissplit = new SparkFileSplit(paths, new long[paths.length],
+                    hpInput.getLengths(split.getPartitions()), hosts, itr);
             finalSplits.add(thissplit);
+
+            // Spark runs the task on the first host when it can.
+            totalBytes += getPartitionSplitSize(split, hpInput.getPartitionIdSizeMap());
+            if (hosts.length > 0) {
+                localBytes += hpInput.getLocalBytes(split.getPartitions(), hosts[0]);
+            }
         }
+        System.out.println("INFO: Node local bytes " + localBytes + " of " + totalBytes
+                + " (" + (totalBytes == 0 ? 0 : 100 * localBytes / totalBytes) + "%)");
 
         job.getConfiguration().setLong(NUM_INPUT_FILES,
                 hpInput.getNumPartitions());
@@ -90,6 +181,23 @@ public class SparkInputFormat extends
         return finalSplits;
     }
 
+    private static PartitionSplit[] restrictToBuckets(PartitionSplit[] splits, int[] buckets) {
+        Set<Integer> keep = new HashSet<Integer>(Ints.asList(buckets));
+        List<PartitionSplit> restricted = new ArrayList<PartitionSplit>();
+        for (PartitionSplit split : splits) {
+            List<Integer> partitions = new ArrayList<Integer>();
+            for (int p : split.getPartitions()) {
+                if (keep.contains(p)) {
+                    partitions.add(p);
+                }
+            }
+            if (!partitions.isEmpty()) {
+                restricted.add(new PartitionSplit(Ints.toArray(partitions), split.getIterator()));
+            }
+        }
+        return restricted.toArray(new PartitionSplit[restricted.size()]);
+    }
+
     private long getPartitionSplitSize(PartitionSplit split,
                                        Map<Integer, Long> partitionIdSizeMap) {
         if (partitionIdSizeMap == null) {
@@ -130,22 +238,44 @@ public class SparkInputFormat extends
     // }
 
     /**
-     * The goal of this method is to check the size of each and break large
-     * splits into multiple smaller splits.
+     * Reads the bucket files from the manifest of the index version, in one
+     * read instead of listing the data directory. The hosts recorded in the
+     * manifest become the block locations of the files.
+     */
+    private List<FileStatus> getManifestFiles(FileSystem fs, String tableDir,
+                                              long indexVersion) throws IOException {
+        List<FileStatus> files = new ArrayList<FileStatus>();
+        for (String[] entry : IndexVersions.getBucketFiles(fs, tableDir, indexVersion).values()) {
+            long length = Long.parseLong(entry[2]);
+            FileStatus status = new FileStatus(length, false, 0, 0, 0, new Path(entry[1]));
+            if (entry.length > 3) {
+                String[] hosts = entry[3].split(",");
+                status = new LocatedFileStatus(status, new BlockLocation[]{
+                        new BlockLocation(hosts, hosts, 0, length)});
+            }
+            files.add(status);
+        }
+        return files;
+    }
+
+    /**
+     * The goal of this method is to turn the splits of the access method into
+     * splits of about equal size, none larger than the max split size.
      * <p/>
      * The maximum split size is read from the configuration and it depends on
-     * the size of each machine.
+     * the size of each machine. The number of splits also follows the
+     * parallelism of the cluster, see SplitPlanner.
      *
      * @param initialSplits
+     * @param primaryHosts  host holding the most bytes of each bucket
+     * @param parallelism   number of tasks the cluster runs at a time, -1 if
+     *                      unknown
      * @return
      */
     public PartitionSplit[] resizeSplits(PartitionSplit[] initialSplits,
-                                         Map<Integer, Long> partitionSizes, long maxSplitSize,
-                                         long minSplitSize) {
-        List<PartitionSplit> resizedSplits = Lists.newArrayList();
-        ArrayListMultimap<String, PartitionSplit> smallSplits = ArrayListMultimap
-                .create();
-
+                                         Map<Integer, Long> partitionSizes,
+                                         Map<Integer, String> primaryHosts, long maxSplitSize,
+                                         int parallelism) {
         // For statistics count the size of data per iterator.
         Map<String, Long> accessSizes = new HashMap<String, Long>();
 
@@ -157,19 +287,6 @@ public class SparkInputFormat extends
             Long existingCount = accessSizes.containsKey(iterName) ?
                     accessSizes.get(iterName) : (long) 0;
             accessSizes.put(iterName, existingCount + splitSize);
-
-            if (splitSize > maxSplitSize) {
-                // create smaller splits
-                resizedSplits.addAll(createSmaller(split, partitionSizes,
-                        maxSplitSize));
-            } else if (splitSize < minSplitSize) {
-                // create larger splits
-                smallSplits.put(split.getIterator().getClass().getName(), split);
-            } else {
-                // just accept as it is
-                PartitionIterator itr = split.getIterator();
-                resizedSplits.add(new PartitionSplit(split.getPartitions(), itr));
-            }
         }
 
         // Print statistics.
@@ -178,72 +295,8 @@ public class SparkInputFormat extends
             System.out.println(entry.getKey() + " : " + entry.getValue());
         }
 
-        for (String key : smallSplits.keySet())
-            resizedSplits.addAll(createLarger(smallSplits.get(key),
-                    partitionSizes, maxSplitSize));
-
-        return resizedSplits.toArray(new PartitionSplit[resizedSplits.size()]);
-    }
-
-    private List<PartitionSplit> createLarger(List<PartitionSplit> splits,
-                                              Map<Integer, Long> partitionSizes, long maxSplitSize) {
-        List<PartitionSplit> largerSplits = Lists.newArrayList();
-
-        Multimap<Integer, Integer> largerSplitPartitionIds = ArrayListMultimap
-                .create();
-        long currentSize = 0;
-        int largerSplitId = 0;
-
-        for (PartitionSplit split : splits) {
-            for (Integer p : split.getPartitions()) {
-                long pSize = partitionSizes.containsKey(p) ? partitionSizes
-                        .get(p) : 0;
-                if (currentSize + pSize > maxSplitSize) {
-                    largerSplitId++;
-                    currentSize = 0;
-                }
-                currentSize += pSize;
-                largerSplitPartitionIds.put(largerSplitId, p);
-            }
-        }
-
-        for (Integer k : largerSplitPartitionIds.keySet()) {
-            PartitionIterator itr = splits.get(0).getIterator();
-            largerSplits.add(new PartitionSplit(Ints
-                    .toArray(largerSplitPartitionIds.get(k)), itr));
-        }
-
-        return largerSplits;
-    }
-
-    private List<PartitionSplit> createSmaller(PartitionSplit split,
-                                               Map<Integer, Long> partitionSizes, long maxSplitSize) {
-        List<PartitionSplit> smallerSplits = Lists.newArrayList();
-
-        int[] partitions = split.getPartitions();
-        long currentSize = 0;
-        Multimap<Integer, Integer> splitPartitionIds = ArrayListMultimap
-                .create();
-        int splitId = 0;
-
-        for (int i = 0; i < partitions.length; i++) {
-            long pSize = partitionSizes.containsKey(partitions[i]) ? partitionSizes
-                    .get(partitions[i]) : 0;
-            if (currentSize + pSize > maxSplitSize) {
-                splitId++;
-                currentSize = 0;
-            }
-            currentSize += pSize;
-            splitPartitionIds.put(splitId, partitions[i]);
-        }
-
-        for (Integer k : splitPartitionIds.keySet()) {
-            PartitionIterator itr = split.getIterator();
-            smallerSplits.add(new PartitionSplit(Ints.toArray(splitPartitionIds
-                    .get(k)), itr));
-        }
-
-        return smallerSplits;
+        SplitPlanner planner = new SplitPlanner(partitionSizes, primaryHosts);
+        return planner.plan(initialSplits, parallelism, maxSplitSize);
     }
 
     public PartitionSplit[] resizeSplits(PartitionSplit[] initialSplits,
@@ -272,7 +325,7 @@ public class SparkInputFormat extends
                     currentSize += pSize;
                 }
 
-                if (from < partitions.length - 1) { // the last split
+                if (from < partitions.length) { // the last split
                     int[] subPartitions = Arrays.copyOfRange(partitions, from,
                             partitions.length);
                     PartitionIterator itr = split.getIterator();
@@ -281,7 +334,6 @@ public class SparkInputFormat extends
             } else {
                 PartitionIterator itr = split.getIterator();
                 resizedSplits.add(new PartitionSplit(split.getPartitions(), itr));
-                resizedSplits.add(split);
             }
         }
 
@@ -1,18 +1,46 @@
 package core.adapt.spark;
 
+import core.adapt.IndexVersions;
 import core.adapt.Query;
+import core.adapt.ResultCache;
+import core.adapt.TopK;
+import core.adapt.iterator.Aggregator;
 import core.adapt.iterator.IteratorRecord;
+import core.adapt.iterator.MultiQueryIterator;
+import core.adapt.iterator.TypedRow;
+import core.adapt.opt.Optimizer;
+import core.adapt.opt.SampleEstimator;
+import core.common.globals.Globals;
+import core.common.globals.TableInfo;
 import core.utils.ConfUtils;
+import core.utils.HDFSUtils;
+import core.utils.TypeUtils.TYPE;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.spark.JavaSparkListener;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.scheduler.SparkListenerJobEnd;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
 
 public class SparkQuery {
     protected SparkQueryConf queryConf;
     protected JavaSparkContext ctx;
     protected ConfUtils cfg;
+    // Null if not caching results.
+    protected ResultCache resultCache;
 
     public SparkQuery(ConfUtils config) {
         this.cfg = config;
@@ -30,7 +58,11 @@ public class SparkQuery {
                 FileInputFormat.INPUT_DIR_RECURSIVE, true);
         ctx.hadoopConfiguration().set("fs.hdfs.impl",
                 org.apache.hadoop.hdfs.DistributedFileSystem.class.getName());
+        ctx.sc().addSparkListener(new LeaseReleaser());
         queryConf = new SparkQueryConf(ctx.hadoopConfiguration());
+        if (cfg.getRESULT_CACHE_BYTES() > 0) {
+            resultCache = new ResultCache(cfg.getRESULT_CACHE_DIR(), cfg.getRESULT_CACHE_BYTES());
+        }
     }
 
     private JavaPairRDD<LongWritable, IteratorRecord> createRDD(String hdfsPath,
@@ -40,9 +72,317 @@ public class SparkQuery {
 
     public JavaPairRDD<LongWritable, IteratorRecord> createRDD(String hdfsPath,
                                                                int replicaId, Query q) {
+        configure(hdfsPath, replicaId, q);
+        return newRDD(hdfsPath, q);
+    }
+
+    private JavaPairRDD<LongWritable, IteratorRecord> newRDD(String hdfsPath, Query q) {
+        return ctx.newAPIHadoopFile(cfg.getHADOOP_NAMENODE() + hdfsPath + "/" + q.getTable() + "/data",
+                SparkInputFormat.class, LongWritable.class,
+                IteratorRecord.class, ctx.hadoopConfiguration());
+    }
+
+    /**
+     * Like createRDD, but the records are decoded into typed rows of the
+     * projection of the query, all the columns if it has none. Uses the
+     * access mode set last.
+     *
+     * @param hdfsPath
+     * @param q
+     * @return
+     */
+    public JavaPairRDD<LongWritable, TypedRow> createTypedRDD(String hdfsPath, Query q) {
+        configure(hdfsPath, 0, q);
+
+        return ctx.newAPIHadoopFile(cfg.getHADOOP_NAMENODE() + hdfsPath + "/" + q.getTable() + "/data",
+                SparkTypedInputFormat.class, LongWritable.class,
+                TypedRow.class, ctx.hadoopConfiguration());
+    }
+
+    /**
+     * Runs an aggregate query: each split aggregates its records and hands
+     * out partial aggregates, merged here. Uses the access mode set last.
+     * The result is cached if the result cache is on.
+     *
+     * @param hdfsPath
+     * @param q
+     * @return the values of the group by attributes followed by the
+     * aggregates, per group.
+     */
+    public List<Object[]> aggregate(String hdfsPath, Query q) {
+        List<Object[]> cached = getCachedResult(hdfsPath, q);
+        if (cached != null) {
+            return cached;
+        }
+
+        List<String> partials = createRDD(hdfsPath, q).map(new RecordToString()).collect();
+
+        Globals.loadTableInfo(q.getTable(), hdfsPath,
+                HDFSUtils.getFSByHadoopHome(cfg.getHADOOP_HOME()));
+        return cacheResult(hdfsPath, q, merge(q, Globals.getTableInfo(q.getTable()), partials));
+    }
+
+    private static List<Object[]> merge(Query q, TableInfo tableInfo, List<String> partials) {
+        int[] groupBy = q.getGroupBy();
+        TYPE[] groupByTypes = TypedRow.getTypes(tableInfo.schema, groupBy);
+        Aggregator aggregator = new Aggregator(q.getAggregates(), groupBy, groupByTypes,
+                tableInfo.delimiter);
+        for (String partial : partials) {
+            aggregator.merge(partial);
+        }
+        return aggregator.getResults();
+    }
+
+    /**
+     * Estimates the COUNT, SUM and AVG aggregates of a query, without
+     * grouping, from the samples of the buckets it reads. As long as the
+     * half width of a 95% confidence interval is above maxRelativeError of
+     * its estimate, the buckets contributing the most variance are read,
+     * each round twice as many, and their exact aggregates replace their
+     * estimates. The data is not repartitioned.
+     *
+     * @param hdfsPath
+     * @param q
+     * @param maxRelativeError the error bound, e.g. 0.05, or a negative
+     *                         value to answer from the samples alone
+     * @return the estimates of the aggregates
+     */
+    public SampleEstimator.Estimate[] approximate(String hdfsPath, Query q,
+                                                  double maxRelativeError) {
+        configure(hdfsPath, 0, q);
+        FileSystem fs = HDFSUtils.getFSByHadoopHome(cfg.getHADOOP_HOME());
+        Globals.loadTableInfo(q.getTable(), hdfsPath, fs);
+        TableInfo tableInfo = Globals.getTableInfo(q.getTable());
+        Optimizer opt = new Optimizer(queryConf);
+        opt.loadIndex(tableInfo);
+        try {
+            SampleEstimator estimator = new SampleEstimator(opt.getIndex(), q);
+            SampleEstimator.Estimate[] estimates = estimator.estimate();
+            Query exactQuery = estimator.getExactQuery(q);
+            String tableDir = hdfsPath + "/" + q.getTable();
+            int numToRead = 1;
+            while (!isWithin(estimates, maxRelativeError)) {
+                int[] unread = estimator.getBucketsToRead();
+                if (unread.length == 0) {
+                    break;
+                }
+                if (IndexVersions.getCurrentVersion(fs, tableDir) != opt.getIndexVersion()) {
+                    System.out.println("WARN: Layout changed, not refining the estimates further");
+                    break;
+                }
+
+                int[] buckets = Arrays.copyOf(unread, Math.min(numToRead, unread.length));
+                configure(hdfsPath, 0, exactQuery);
+                queryConf.setBuckets(buckets);
+                List<String> partials = newRDD(hdfsPath, exactQuery)
+                        .map(new RecordToString()).collect();
+                estimator.addExact(buckets, merge(exactQuery, tableInfo, partials).get(0));
+
+                estimates = estimator.estimate();
+                System.out.println("INFO: Read " + buckets.length + " buckets, estimates "
+                        + Arrays.toString(estimates));
+                numToRead *= 2;
+            }
+            return estimates;
+        } finally {
+            opt.releaseIndex();
+        }
+    }
+
+    private static boolean isWithin(SampleEstimator.Estimate[] estimates, double maxRelativeError) {
+        if (maxRelativeError < 0) {
+            return true;
+        }
+        for (SampleEstimator.Estimate e : estimates) {
+            if (e.getRelativeError() > maxRelativeError) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs a query with a limit. Spark reads the splits, the most promising
+     * first, a few at a time until it has enough records, and each split
+     * stops once it has enough. For the top k by an attribute every split
+     * hands out its own k best, merged here. Uses the access mode set last;
+     * the data is not repartitioned. The result is cached if the result
+     * cache is on.
+     *
+     * @param hdfsPath
+     * @param q
+     * @return the records, of the projection of the query if it has one,
+     * best first if ordered.
+     */
+    public List<String> limit(String hdfsPath, Query q) {
+        List<String> cached = getCachedResult(hdfsPath, q);
+        if (cached != null) {
+            return cached;
+        }
+
+        int limit = (int) Math.min(q.getLimit(), Integer.MAX_VALUE);
+        JavaRDD<String> records = createRDD(hdfsPath, q).map(new RecordToString());
+        if (!q.isTopK()) {
+            return cacheResult(hdfsPath, q, records.take(limit));
+        }
+
+        List<String> candidates = records.collect();
+        Globals.loadTableInfo(q.getTable(), hdfsPath,
+                HDFSUtils.getFSByHadoopHome(cfg.getHADOOP_HOME()));
+        TableInfo tableInfo = Globals.getTableInfo(q.getTable());
+        TopK topK = new TopK(q.getOrderBy(), tableInfo.schema.getType(q.getOrderBy()),
+                q.isDescending(), limit, tableInfo.delimiter);
+        for (String record : candidates) {
+            topK.add(record.getBytes());
+        }
+
+        // The splits hand out whole records.
+        String delimiter = String.valueOf(tableInfo.delimiter);
+        int[] projection = q.getProjection();
+        List<String> best = new ArrayList<String>();
+        for (byte[] record : topK.getSorted()) {
+            String s = new String(record);
+            if (projection != null) {
+                String[] fields = s.split(Pattern.quote(delimiter), -1);
+                StringBuilder sb = new StringBuilder();
+                for (int j = 0; j < projection.length; j++) {
+                    if (j > 0) {
+                        sb.append(delimiter);
+                    }
+                    sb.append(fields[projection[j]]);
+                }
+                s = sb.toString();
+            }
+            best.add(s);
+        }
+        return cacheResult(hdfsPath, q, best);
+    }
+
+    /**
+     * Runs several selections on the same table with a shared scan: each
+     * bucket any of them reads is read once, and its records are checked
+     * against all the queries reading it. Uses the current layout, the data
+     * is not repartitioned.
+     * <p/>
+     * The scanned records are cached as they are routed to the queries, so
+     * that the scan runs once for all the returned RDDs while the cache
+     * holds them.
+     *
+     * @param hdfsPath
+     * @param queries  selections and projections, no aggregates or limits
+     * @return the records of each query, of its projection if it has one.
+     */
+    public List<JavaRDD<String>> createSharedRDDs(String hdfsPath, List<Query> queries) {
+        List<JavaRDD<String>> outputs = new ArrayList<JavaRDD<String>>();
+        if (queries.isEmpty()) {
+            return outputs;
+        }
+
+        Query[] shared = toShared(queries);
+        Query union = MultiQueryIterator.getUnion(shared);
+        configure(hdfsPath, 0, union);
+        queryConf.setSharedQueries(shared);
+        JavaPairRDD<Long, String> records = newRDD(hdfsPath, union)
+                .mapToPair(new TagRecord()).cache();
+        for (int i = 0; i < shared.length; i++) {
+            outputs.add(records.filter(new IsOfQuery(i)).values());
+        }
+        return outputs;
+    }
+
+    /**
+     * Runs a batch of selections on the same table, e.g. a set of reports
+     * queued together, after adapting the layout to all of them at once: the
+     * tree transformations are chosen by their benefit minus cost over the
+     * batch, the buckets they change are repartitioned in a single job, and
+     * then the queries run on the new layout with a shared scan. If nothing
+     * pays off, or the repartitioning is asynchronous, the queries run on
+     * the current layout.
+     *
+     * @param hdfsPath
+     * @param queries  selections and projections, no aggregates or limits
+     * @return the records of each query, as createSharedRDDs.
+     */
+    public List<JavaRDD<String>> createBatchAdaptRDDs(String hdfsPath, List<Query> queries) {
+        if (queries.isEmpty()) {
+            return new ArrayList<JavaRDD<String>>();
+        }
+
+        Query[] shared = toShared(queries);
+        Query union = MultiQueryIterator.getUnion(shared);
+        configure(hdfsPath, 0, union);
+        queryConf.setSharedQueries(shared);
+        queryConf.setRepartitionScan(true);
+        // The new version is committed by the last task to finish.
+        long moved = newRDD(hdfsPath, union).count();
+        System.out.println("INFO: Repartitioned " + moved + " records for the batch");
+        return createSharedRDDs(hdfsPath, queries);
+    }
+
+    private static Query[] toShared(List<Query> queries) {
+        Query[] shared = queries.toArray(new Query[queries.size()]);
+        for (Query q : shared) {
+            if (!q.getTable().equals(shared[0].getTable())) {
+                throw new IllegalArgumentException("Shared scans are of a single table: " + q);
+            }
+            if (q.isAggregate() || q.getLimit() != -1) {
+                throw new IllegalArgumentException("Shared scans only select and project: " + q);
+            }
+        }
+        return shared;
+    }
+
+    private String getResultKey(String hdfsPath, Query q) {
+        try {
+            return ResultCache.getKey(HDFSUtils.getFSByHadoopHome(cfg.getHADOOP_HOME()),
+                    hdfsPath + "/" + q.getTable(), q);
+        } catch (IOException e) {
+            System.out.println("WARN: No result cache key for " + q + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The cached result of the query on the current version of the table,
+     * null if none. A hit is still recorded in the workload of the table.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> getCachedResult(String hdfsPath, Query q) {
+        if (resultCache == null) {
+            return null;
+        }
+        String key = getResultKey(hdfsPath, q);
+        List<T> result = key == null ? null : (List<T>) resultCache.get(key);
+        if (result != null) {
+            System.out.println("INFO: Answered " + q + " from the result cache");
+            configure(hdfsPath, 0, q);
+            new Optimizer(queryConf).recordQuery(q);
+        }
+        return result;
+    }
+
+    /**
+     * Caches the result under the version of the table after the query,
+     * which may have repartitioned it.
+     */
+    private <T> List<T> cacheResult(String hdfsPath, Query q, List<T> result) {
+        if (resultCache == null) {
+            return result;
+        }
+        String key = getResultKey(hdfsPath, q);
+        if (key != null) {
+            resultCache.put(key, new ArrayList<T>(result));
+        }
+        return result;
+    }
+
+    private void configure(String hdfsPath, int replicaId, Query q) {
         queryConf.setWorkingDir(hdfsPath);
         queryConf.setReplicaId(replicaId);
         queryConf.setQuery(q);
+        queryConf.setBuckets(null);
+        queryConf.setSharedQueries(null);
+        queryConf.setRepartitionScan(false);
         queryConf.setHadoopHome(cfg.getHADOOP_HOME());
         queryConf.setZookeeperHosts(cfg.getZOOKEEPER_HOSTS());
         queryConf.setMaxSplitSize(8l << 30); // 8GB
@@ -50,10 +390,8 @@ public class SparkQuery {
         // 8gb is the max size for each
         // split (with 8 threads in parallel)
         queryConf.setHDFSReplicationFactor(cfg.getHDFS_REPLICATION_FACTOR());
-
-        return ctx.newAPIHadoopFile(cfg.getHADOOP_NAMENODE() + hdfsPath + "/" + q.getTable() + "/data",
-                SparkInputFormat.class, LongWritable.class,
-                IteratorRecord.class, ctx.hadoopConfiguration());
+        queryConf.setBucketCacheBytes(cfg.getBUCKET_CACHE_BYTES());
+        queryConf.setParallelism(ctx.defaultParallelism());
     }
 
     /**
@@ -97,4 +435,71 @@ public class SparkQuery {
         return createRDD(hdfsPath, q);
     }
 
-}
\ No newline at end of file
+    /**
+     * Releases the pins planning took on the index versions once the jobs
+     * reading them are done: when no job is left running, those taken
+     * before the last job started.
+     */
+    static class LeaseReleaser extends JavaSparkListener {
+        private int numRunning = 0;
+        private long lastStart = 0;
+
+        @Override
+        public synchronized void onJobStart(SparkListenerJobStart jobStart) {
+            numRunning++;
+            lastStart = Math.max(lastStart, jobStart.time());
+        }
+
+        @Override
+        public void onJobEnd(SparkListenerJobEnd jobEnd) {
+            long time;
+            synchronized (this) {
+                numRunning--;
+                if (numRunning > 0) {
+                    return;
+                }
+                time = lastStart;
+            }
+            IndexVersions.releaseHeld(time);
+        }
+    }
+
+    /**
+     * The records are reused by the reader, their bytes don't travel.
+     */
+    static class RecordToString implements Function<Tuple2<LongWritable, IteratorRecord>, String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String call(Tuple2<LongWritable, IteratorRecord> t) throws Exception {
+            return t._2().getKeyString();
+        }
+    }
+
+    /**
+     * The records of a shared scan are keyed by the index of their query.
+     */
+    static class TagRecord implements PairFunction<Tuple2<LongWritable, IteratorRecord>, Long, String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Tuple2<Long, String> call(Tuple2<LongWritable, IteratorRecord> t) throws Exception {
+            return new Tuple2<Long, String>(t._1().get(), t._2().getKeyString());
+        }
+    }
+
+    static class IsOfQuery implements Function<Tuple2<Long, String>, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private long queryId;
+
+        IsOfQuery(long queryId) {
+            this.queryId = queryId;
+        }
+
+        @Override
+        public Boolean call(Tuple2<Long, String> t) throws Exception {
+            return t._1() == queryId;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package core.adapt.spark;
 
+import com.google.common.base.Joiner;
+import com.google.common.primitives.Ints;
 import core.adapt.Query;
 import org.apache.hadoop.conf.Configuration;
 
@@ -18,6 +20,13 @@ public class SparkQueryConf {
     public final static String HDFS_REPLICATION_FACTOR = "HDFS_REPLICATION_FACTOR";
     public final static String SCHEMA = "SCHEMA";
     public final static String CARTILAGE_PROPERTIES = "CARTILAGE_PROPERTIES";
+    public final static String REPARTITION_BUDGET_BYTES = "REPARTITION_BUDGET_BYTES";
+    public final static String REPARTITION_BUDGET_SECONDS = "REPARTITION_BUDGET_SECONDS";
+    public final static String ASYNC_REPARTITION = "ASYNC_REPARTITION";
+    public final static String PARALLELISM = "PARALLELISM";
+    public final static String BUCKETS = "BUCKETS";
+    public final static String BUCKET_CACHE_BYTES = "BUCKET_CACHE_BYTES";
+    public final static String SHARED_QUERIES = "SHARED_QUERIES";
 
     private Configuration conf;
 
@@ -41,6 +50,18 @@ public class SparkQueryConf {
         conf.setBoolean(FULL_SCAN, flag);
     }
 
+    /**
+     * Whether the scan only repartitions the buckets, adapting the layout to
+     * the shared queries together.
+     */
+    public boolean getRepartitionScan() {
+        return conf.getBoolean(REPARTITION_SCAN, false);
+    }
+
+    public void setRepartitionScan(boolean flag) {
+        conf.setBoolean(REPARTITION_SCAN, flag);
+    }
+
     public boolean getJustAccess() {
         return conf.getBoolean(JUST_ACCESS, true); // don't adapt by default,
         // i.e. just access
@@ -110,6 +131,107 @@ public class SparkQueryConf {
         conf.set(REPLICA_ID, String.valueOf(numReplicas));
     }
 
+    /**
+     * Max bytes a single adaptive query may repartition, -1 for no limit.
+     */
+    public long getRepartitionBudgetBytes() {
+        return conf.getLong(REPARTITION_BUDGET_BYTES, -1);
+    }
+
+    public void setRepartitionBudgetBytes(long bytes) {
+        conf.setLong(REPARTITION_BUDGET_BYTES, bytes);
+    }
+
+    /**
+     * Max estimated seconds a single adaptive query may spend repartitioning,
+     * -1 for no limit. Only used once the table has been calibrated.
+     */
+    public double getRepartitionBudgetSeconds() {
+        return Double.parseDouble(conf.get(REPARTITION_BUDGET_SECONDS, "-1"));
+    }
+
+    public void setRepartitionBudgetSeconds(double seconds) {
+        conf.set(REPARTITION_BUDGET_SECONDS, Double.toString(seconds));
+    }
+
+    public boolean getAsyncRepartition() {
+        return conf.getBoolean(ASYNC_REPARTITION, false); // repartition inline
+        // by default
+    }
+
+    public void setAsyncRepartition(boolean flag) {
+        conf.setBoolean(ASYNC_REPARTITION, flag);
+    }
+
+    /**
+     * Number of tasks the cluster runs at a time, -1 if unknown.
+     */
+    public int getParallelism() {
+        return conf.getInt(PARALLELISM, -1);
+    }
+
+    public void setParallelism(int parallelism) {
+        conf.setInt(PARALLELISM, parallelism);
+    }
+
+    /**
+     * Buckets the scan is restricted to, null for all the buckets the query
+     * reads.
+     */
+    public int[] getBuckets() {
+        String buckets = conf.get(BUCKETS, "");
+        if (buckets.equals("")) {
+            return null;
+        }
+        String[] ids = buckets.split(",");
+        int[] ret = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ret[i] = Integer.parseInt(ids[i]);
+        }
+        return ret;
+    }
+
+    public void setBuckets(int[] buckets) {
+        conf.set(BUCKETS, buckets == null ? "" : Joiner.on(",").join(Ints.asList(buckets)));
+    }
+
+    /**
+     * Bytes of bucket files each executor caches off the heap, 0 for none.
+     */
+    public long getBucketCacheBytes() {
+        return conf.getLong(BUCKET_CACHE_BYTES, 0);
+    }
+
+    public void setBucketCacheBytes(long bytes) {
+        conf.setLong(BUCKET_CACHE_BYTES, bytes);
+    }
+
+    /**
+     * Queries a shared scan reads for, null if the scan is for the query
+     * alone.
+     */
+    public Query[] getSharedQueries() {
+        int n = conf.getInt(SHARED_QUERIES, 0);
+        if (n == 0) {
+            return null;
+        }
+        Query[] queries = new Query[n];
+        for (int i = 0; i < n; i++) {
+            queries[i] = new Query(conf.get(SHARED_QUERIES + "." + i));
+        }
+        return queries;
+    }
+
+    public void setSharedQueries(Query[] queries) {
+        conf.setInt(SHARED_QUERIES, queries == null ? 0 : queries.length);
+        if (queries == null) {
+            return;
+        }
+        for (int i = 0; i < queries.length; i++) {
+            conf.set(SHARED_QUERIES + "." + i, queries[i].toString());
+        }
+    }
+
     public Configuration getConf() {
         return conf;
     }
@@ -1,12 +1,29 @@
 package core.adapt.spark;
 
+import com.google.common.primitives.Ints;
+import core.adapt.Aggregate;
+import core.adapt.BucketCache;
 import core.adapt.HDFSPartition;
+import core.adapt.Predicate;
+import core.adapt.Query;
+import core.adapt.TopK;
+import core.adapt.ZoneMap;
+import core.adapt.iterator.Aggregator;
 import core.adapt.iterator.IteratorRecord;
+import core.adapt.iterator.MultiQueryIterator;
 import core.adapt.iterator.PartitionIterator;
+import core.adapt.iterator.RecordBatch;
+import core.adapt.iterator.RepartitionIterator;
+import core.adapt.iterator.TypedRow;
+import core.adapt.opt.CostCalibrator;
 import core.adapt.spark.SparkInputFormat.SparkFileSplit;
+import core.common.globals.Globals;
+import core.common.globals.TableInfo;
 import core.utils.CuratorUtils;
+import core.utils.TypeUtils.TYPE;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
@@ -15,6 +32,10 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class SparkRecordReader extends
         RecordReader<LongWritable, IteratorRecord> {
@@ -28,6 +49,48 @@ public class SparkRecordReader extends
     long recordId;
     boolean hasNext;
 
+    // Records are read a batch at a time, position is the current one in
+    // the selection of the batch.
+    RecordBatch batch;
+    int position;
+
+    // Attributes of the records handed out, null for all of them.
+    int[] projection;
+
+    // At most this many records are handed out, -1 for all of them.
+    long limit;
+
+    // For aggregate queries, the split hands out the partial aggregates of
+    // all its records instead of the records. For top-k queries, its k best
+    // records, whole.
+    Aggregator aggregator;
+    TopK topK;
+    List<byte[]> results;
+    IteratorRecord resultRecord;
+
+    // For a shared scan, the records of each batch are handed out for each
+    // of its queries in turn, keyed by the id of the query; the index of
+    // the current one.
+    MultiQueryIterator shared;
+    int sharedQuery;
+
+    // Attributes the zone maps of the partitions should cover, null if the
+    // query can't use zone maps. The zone map being computed for the current
+    // partition, if any.
+    int[] zoneMapAttributes;
+    TYPE[] zoneMapTypes;
+    ZoneMap zoneMap;
+    Path zoneMapPath;
+
+    // Hot bucket files of this executor, null if not caching.
+    BucketCache cache;
+    // The partition being read, closed if the split stops before its end.
+    HDFSPartition partition;
+
+    // Bytes read and time spent reading them, used for calibration.
+    long scanBytes;
+    long scanNanos;
+
     CuratorFramework client;
 
     @Override
@@ -38,31 +101,187 @@ public class SparkRecordReader extends
                 .get(SparkQueryConf.ZOOKEEPER_HOSTS));
         sparkSplit = (SparkFileSplit) split;
         iterator = sparkSplit.getIterator();
+        if (iterator instanceof RepartitionIterator) {
+            // Same for all the attempts of this task.
+            ((RepartitionIterator) iterator).setTaskId(context
+                    .getTaskAttemptID().getTaskID().toString());
+        }
+        cache = BucketCache.get(new SparkQueryConf(conf).getBucketCacheBytes());
         currentFile = 0;
+        scanBytes = 0;
+        scanNanos = 0;
+        Query query = iterator.getQuery();
+        limit = query.isAggregate() ? -1 : query.getLimit();
+        if (iterator instanceof MultiQueryIterator) {
+            shared = (MultiQueryIterator) iterator;
+            sharedQuery = shared.getNumQueries();
+        } else if (query.isAggregate()) {
+            initializeAggregates();
+        } else if (query.isTopK()) {
+            initializeTopK();
+        }
+        long start = System.nanoTime();
         hasNext = initializeNext();
+        scanNanos += System.nanoTime() - start;
         key = new LongWritable();
         recordId = 0;
     }
 
+    private TableInfo loadTableInfo() throws IOException {
+        String table = iterator.getQuery().getTable();
+        FileSystem fs = sparkSplit.getNumPaths() > 0
+                ? sparkSplit.getPath(0).getFileSystem(conf) : FileSystem.get(conf);
+        Globals.loadTableInfo(table, conf.get(SparkQueryConf.WORKING_DIR), fs);
+        return Globals.getTableInfo(table);
+    }
+
+    private void initializeAggregates() throws IOException {
+        Query query = iterator.getQuery();
+        TableInfo tableInfo = loadTableInfo();
+
+        int[] groupBy = query.getGroupBy();
+        TYPE[] groupByTypes = new TYPE[groupBy.length];
+        for (int j = 0; j < groupBy.length; j++) {
+            groupByTypes[j] = tableInfo.schema.getType(groupBy[j]);
+        }
+        aggregator = new Aggregator(query.getAggregates(), groupBy, groupByTypes,
+                tableInfo.delimiter);
+        resultRecord = new IteratorRecord(tableInfo.delimiter);
+
+        if (!aggregator.isAnsweredByZoneMaps()) {
+            return;
+        }
+        // The predicate attributes, to tell if a partition is inside the
+        // predicates, and the attributes of the minimums and maximums.
+        Set<Integer> attributes = new TreeSet<Integer>();
+        for (Predicate p : query.getPredicates()) {
+            if (!ZoneMap.isSupported(p.type)) {
+                return;
+            }
+            attributes.add(p.attribute);
+        }
+        for (Aggregate a : query.getAggregates()) {
+            if (a.attribute != -1) {
+                attributes.add(a.attribute);
+            }
+        }
+        zoneMapAttributes = Ints.toArray(attributes);
+        zoneMapTypes = TypedRow.getTypes(tableInfo.schema, zoneMapAttributes);
+    }
+
+    private void initializeTopK() throws IOException {
+        Query query = iterator.getQuery();
+        TableInfo tableInfo = loadTableInfo();
+        TYPE type = tableInfo.schema.getType(query.getOrderBy());
+        topK = new TopK(query.getOrderBy(), type, query.isDescending(),
+                (int) Math.min(query.getLimit(), Integer.MAX_VALUE), tableInfo.delimiter);
+        resultRecord = new IteratorRecord(tableInfo.delimiter);
+
+        // The range of the attribute tells if a partition can't beat the
+        // records found so far.
+        if (ZoneMap.isSupported(type)) {
+            zoneMapAttributes = new int[]{query.getOrderBy()};
+            zoneMapTypes = new TYPE[]{type};
+        }
+    }
+
+    /**
+     * Adds the partition to the aggregates from its zone map, if it has a
+     * valid one and all its records are inside the predicates, or skips it
+     * if none of its records can be among the top k found so far. Else
+     * starts computing its zone map if it has none covering the attributes.
+     * A repartitioning scan reads every partition, its records being
+     * written to the new buckets.
+     *
+     * @return true if the partition need not be read.
+     */
+    boolean answerFromZoneMap(FileSystem fs, Path filePath) throws IOException {
+        zoneMap = null;
+        if (zoneMapAttributes == null || iterator instanceof RepartitionIterator) {
+            return false;
+        }
+
+        Query query = iterator.getQuery();
+        String tableDir = conf.get(SparkQueryConf.WORKING_DIR) + "/" + query.getTable();
+        FileStatus status = fs.getFileStatus(filePath);
+        ZoneMap z = ZoneMap.read(fs, tableDir, status);
+        if (z == null || !z.covers(zoneMapAttributes)) {
+            zoneMap = ZoneMap.create(status, z, query.getNumAttributesNeeded(),
+                    zoneMapAttributes, zoneMapTypes);
+            zoneMapPath = filePath;
+            return false;
+        }
+
+        if (aggregator != null && z.isContainedIn(query.getCompiledPredicates())) {
+            System.out.println("INFO: Answered " + filePath.toString() + " from its zone map");
+            aggregator.add(z);
+            return true;
+        }
+
+        int attr = query.getOrderBy();
+        if (topK != null && (z.getCount() == 0
+                || !topK.canImprove(z.getMin(attr), z.getMax(attr)))) {
+            System.out.println("INFO: Skipped " + filePath.toString() + " by its zone map");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Saves the zone map of the partition just read, if it was computed.
+     */
+    private void saveZoneMap() throws IOException {
+        if (zoneMap == null) {
+            return;
+        }
+
+        FileSystem fs = zoneMapPath.getFileSystem(conf);
+        zoneMap.write(fs, conf.get(SparkQueryConf.WORKING_DIR) + "/" + iterator.getQuery().getTable(),
+                zoneMapPath.toString(),
+                Short.parseShort(conf.get(SparkQueryConf.HDFS_REPLICATION_FACTOR)));
+        zoneMap = null;
+    }
+
     protected boolean initializeNext() throws IOException {
 //		if (currentFile > 0)
 //			System.out.println("Records read = " + recordId);
 
+        saveZoneMap();
+        Path filePath = null;
+        FileSystem fs = null;
+        while (currentFile < sparkSplit.getStartOffsets().length) {
+            filePath = sparkSplit.getPath(currentFile);
+            fs = filePath.getFileSystem(conf);
+            if (!answerFromZoneMap(fs, filePath)) {
+                break;
+            }
+            currentFile++;
+        }
+
         if (currentFile >= sparkSplit.getStartOffsets().length)
             return false;
         else {
-            Path filePath = sparkSplit.getPath(currentFile);
-            final FileSystem fs = filePath.getFileSystem(conf);
-            HDFSPartition partition = new HDFSPartition(fs, filePath.toString(),
+            partition = new HDFSPartition(fs, filePath.toString(),
                     Short.parseShort(conf.get(SparkQueryConf.HDFS_REPLICATION_FACTOR)),
                     client);
             System.out.println("INFO: Loading path: " + filePath.toString());
             try {
+                partition.setCache(cache);
                 partition.loadNext();
                 iterator.setPartition(partition);
+                iterator.setZoneMap(zoneMap);
+                if (batch == null) {
+                    // Only the attributes the query reads are located.
+                    Query query = iterator.getQuery();
+                    batch = new RecordBatch(Globals.getTableInfo(query.getTable()).delimiter,
+                            RecordBatch.defaultCapacity, query.getNumAttributesNeeded());
+                    projection = query.getProjection();
+                }
+                scanBytes += sparkSplit.getLength(currentFile);
                 currentFile++;
                 return true;
             } catch (java.lang.OutOfMemoryError e) {
+                partition.close();
                 System.out.println("ERR: Failed to load " + filePath.toString());
                 System.out.println(e.getMessage());
                 e.printStackTrace();
@@ -73,13 +292,31 @@ public class SparkRecordReader extends
 
     @Override
     public boolean nextKeyValue() throws IOException, InterruptedException {
+        if (aggregator != null || topK != null) {
+            return nextResult();
+        }
+        if (shared != null) {
+            return nextShared();
+        }
+        if (limit != -1 && recordId >= limit) {
+            // The rest of the split is not read.
+            return false;
+        }
+
+        long start = System.nanoTime();
         while (hasNext) {
-            if (iterator.hasNext()) {
+            if (++position < batch.getNumSelected()) {
                 recordId++;
+                scanNanos += System.nanoTime() - start;
                 return true;
             }
+            if (iterator.nextBatch(batch)) {
+                position = -1;
+                continue;
+            }
             hasNext = initializeNext();
         }
+        scanNanos += System.nanoTime() - start;
         /*
 		 * do{ if(iterator.hasNext()){ recordId++; return true; } }
 		 * while(initializeNext());
@@ -89,18 +326,92 @@ public class SparkRecordReader extends
         return false;
     }
 
+    /**
+     * Hands out the records of each batch that qualify for each of the
+     * queries of the shared scan, one query after the other.
+     */
+    private boolean nextShared() throws IOException {
+        long start = System.nanoTime();
+        while (hasNext) {
+            if (++position < batch.getNumSelected()) {
+                recordId++;
+                scanNanos += System.nanoTime() - start;
+                return true;
+            }
+            if (sharedQuery + 1 < shared.getNumQueries()) {
+                selectShared(sharedQuery + 1);
+                continue;
+            }
+            if (iterator.nextBatch(batch)) {
+                selectShared(0);
+                continue;
+            }
+            hasNext = initializeNext();
+        }
+        scanNanos += System.nanoTime() - start;
+        return false;
+    }
+
+    private void selectShared(int j) {
+        sharedQuery = j;
+        shared.select(batch, j);
+        projection = shared.getQuery(j).getProjection();
+        position = -1;
+    }
+
+    /**
+     * Aggregates all the records of the split, or keeps the best ones, on
+     * the first call, then hands out the partial aggregates or the records.
+     */
+    private boolean nextResult() throws IOException {
+        if (results == null) {
+            long start = System.nanoTime();
+            while (hasNext) {
+                if (iterator.nextBatch(batch)) {
+                    if (aggregator != null) {
+                        aggregator.add(batch);
+                    } else {
+                        topK.add(batch);
+                    }
+                    continue;
+                }
+                hasNext = initializeNext();
+            }
+            scanNanos += System.nanoTime() - start;
+            if (aggregator != null) {
+                results = new ArrayList<byte[]>();
+                for (String partial : aggregator.getPartials()) {
+                    results.add(partial.getBytes());
+                }
+            } else {
+                results = topK.getSorted();
+            }
+            position = -1;
+        }
+
+        if (++position < results.size()) {
+            recordId++;
+            resultRecord.setBytes(results.get(position));
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public LongWritable getCurrentKey() throws IOException,
             InterruptedException {
-        key.set(recordId);
+        key.set(shared == null ? recordId : shared.getQueryId(sharedQuery));
         return key;
     }
 
     @Override
     public IteratorRecord getCurrentValue() throws IOException,
             InterruptedException {
-        IteratorRecord record = iterator.next();
-        return record;
+        if (results != null) {
+            return resultRecord;
+        }
+        int i = batch.getSelection()[position];
+        return projection == null ? batch.getRecord(i) : batch.getRecord(i, projection);
     }
 
     @Override
@@ -114,5 +425,62 @@ public class SparkRecordReader extends
         // the entire split does not fit in main-memory
         // counter.close();
         // locker.cleanup();
+        if (partition != null) {
+            // Read in full unless the split stopped early.
+            partition.close();
+        }
+
+        // Selectivity and cost the predicates were ordered by.
+        for (String stats : iterator.getQuery().getPredicateStats()) {
+            System.out.println("INFO: Predicate " + stats);
+        }
+        for (int j = 0; shared != null && j < shared.getNumQueries(); j++) {
+            for (String stats : shared.getQuery(j).getPredicateStats()) {
+                System.out.println("INFO: Query " + shared.getQueryId(j) + " predicate " + stats);
+            }
+        }
+
+        recordCalibration();
+        reportCache();
+    }
+
+    /**
+     * Lets the planner place the next splits reading the cached buckets on
+     * this host.
+     */
+    protected void reportCache() {
+        String workingDir = conf.get(SparkQueryConf.WORKING_DIR);
+        if (cache == null || workingDir == null || sparkSplit.getNumPaths() == 0) {
+            return;
+        }
+
+        System.out.println("INFO: Bucket cache " + cache.getStats());
+        try {
+            FileSystem fs = sparkSplit.getPath(0).getFileSystem(conf);
+            cache.report(fs, workingDir + "/" + iterator.getQuery().getTable(),
+                    Short.parseShort(conf.get(SparkQueryConf.HDFS_REPLICATION_FACTOR)));
+        } catch (IOException e) {
+            System.out.println("WARN: Failed to report cached buckets: " + e.getMessage());
+        }
+    }
+
+    protected void recordCalibration() throws IOException {
+        long writeBytes = 0;
+        long writeNanos = 0;
+        if (iterator instanceof RepartitionIterator) {
+            writeBytes = ((RepartitionIterator) iterator).getBytesWritten();
+            writeNanos = ((RepartitionIterator) iterator).getWriteNanos();
+        }
+
+        String workingDir = conf.get(SparkQueryConf.WORKING_DIR);
+        if (workingDir == null || sparkSplit.getNumPaths() == 0) {
+            return;
+        }
+
+        FileSystem fs = sparkSplit.getPath(0).getFileSystem(conf);
+        CostCalibrator.recordObservation(fs,
+                workingDir + "/" + iterator.getQuery().getTable(),
+                Short.parseShort(conf.get(SparkQueryConf.HDFS_REPLICATION_FACTOR)),
+                scanBytes, scanNanos, writeBytes, writeNanos);
     }
 }
@@ -0,0 +1,35 @@
+package core.adapt.spark;
+
+import core.adapt.iterator.TypedRow;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Same splits as SparkInputFormat, but the records come out as typed rows of
+ * the columns set in the query conf.
+ */
+public class SparkTypedInputFormat extends
+        FileInputFormat<LongWritable, TypedRow> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        return new SparkInputFormat().getSplits(job);
+    }
+
+    @Override
+    public RecordReader<LongWritable, TypedRow> createRecordReader(
+            InputSplit arg0, TaskAttemptContext arg1) throws IOException,
+            InterruptedException {
+        return new SparkTypedRecordReader();
+    }
+}
@@ -0,0 +1,77 @@
+package core.adapt.spark;
+
+import core.adapt.Query;
+import core.adapt.iterator.TypedRow;
+import core.common.globals.Globals;
+import core.common.globals.Schema;
+import core.utils.TypeUtils.TYPE;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.IOException;
+
+/**
+ * Reads the records like SparkRecordReader and decodes the projection of the
+ * query, all the columns if there is none, into a new TypedRow.
+ */
+public class SparkTypedRecordReader extends RecordReader<LongWritable, TypedRow> {
+
+    protected SparkRecordReader reader = new SparkRecordReader();
+    protected int[] attributes;
+    protected TYPE[] types;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context)
+            throws IOException, InterruptedException {
+        reader.initialize(split, context);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        return reader.nextKeyValue();
+    }
+
+    @Override
+    public LongWritable getCurrentKey() throws IOException,
+            InterruptedException {
+        return reader.getCurrentKey();
+    }
+
+    @Override
+    public TypedRow getCurrentValue() throws IOException,
+            InterruptedException {
+        if (attributes == null) {
+            // The table info is loaded once the first partition is read.
+            Query query = reader.iterator.getQuery();
+            Schema schema = Globals.getTableInfo(query.getTable()).schema;
+            int[] projection = query.getProjection();
+            if (projection == null) {
+                projection = new int[schema.fields.length];
+                for (int i = 0; i < projection.length; i++) {
+                    projection[i] = i;
+                }
+            }
+            types = TypedRow.getTypes(schema, projection);
+
+            // The records hold just the projected attributes, in order.
+            attributes = new int[projection.length];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = i;
+            }
+        }
+
+        return new TypedRow(reader.getCurrentValue(), attributes, types);
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        return reader.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,409 @@
+package core.adapt.spark;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import core.adapt.AccessMethod.PartitionSplit;
+import core.adapt.CompiledPredicate;
+import core.adapt.Predicate;
+import core.adapt.Query;
+import core.adapt.iterator.MultiQueryIterator;
+import core.adapt.iterator.PartitionIterator;
+import core.common.index.RNode;
+import core.common.index.RobustTree;
+import core.common.key.ParsedTupleList;
+import core.utils.TypeUtils.SimpleDate;
+import core.utils.TypeUtils.TYPE;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Packs the buckets to be read into splits of about equal size.
+ * <p/>
+ * Buckets read through different kinds of iterators are never mixed. Those of
+ * a kind are spread over a number of splits proportional to their share of the
+ * bytes read, so that the whole query uses the parallelism of the cluster, and
+ * so that no split exceeds the max split size. Only a bucket larger than the
+ * max split size makes a larger split, of its own.
+ * <p/>
+ * Buckets are cut into runs of buckets adjacent in the index, each a fraction
+ * of a split, and the runs are assigned largest first to the least loaded
+ * split (longest processing time first). A run goes to a split on the host of
+ * its first bucket instead, if that split has room for it. Every bucket
+ * larger than a split gets a split of its own, and the rest are balanced
+ * around it.
+ * <p/>
+ * Queries with a limit may finish before reading all the buckets. Their
+ * buckets are packed in order of priority instead, the most promising first,
+ * so that the first splits, which Spark runs first, are the most likely to
+ * finish the query.
+ */
+public class SplitPlanner {
+    // Runs are at most this fraction of a split.
+    public static int runsPerSplit = 4;
+
+    // Splits are let grow this much above their share to keep runs local.
+    public static double slack = 0.1;
+
+    private Map<Integer, Long> partitionSizes;
+    private Map<Integer, String> primaryHosts;
+
+    public SplitPlanner(Map<Integer, Long> partitionSizes,
+                        Map<Integer, String> primaryHosts) {
+        this.partitionSizes = partitionSizes;
+        this.primaryHosts = primaryHosts;
+    }
+
+    /**
+     * @param parallelism  the number of splits the query should be spread
+     *                     over, -1 if unknown
+     * @param maxSplitSize the max bytes of a split
+     */
+    public PartitionSplit[] plan(PartitionSplit[] initialSplits, int parallelism,
+                                 long maxSplitSize) {
+        long totalSize = 0;
+        for (PartitionSplit split : initialSplits) {
+            totalSize += getSize(split.getPartitions());
+        }
+
+        List<PartitionSplit> planned = Lists.newArrayList();
+        for (List<PartitionSplit> group : groupByIterator(initialSplits).values()) {
+            int[] partitions = new int[0];
+            for (PartitionSplit split : group) {
+                partitions = Ints.concat(partitions, split.getPartitions());
+            }
+
+            long size = getSize(partitions);
+            int numSplits = getNumSplits(size, totalSize, parallelism, maxSplitSize,
+                    partitions.length);
+            PartitionIterator itr = group.get(0).getIterator();
+            for (int[] ids : pack(partitions, numSplits, maxSplitSize)) {
+                planned.add(new PartitionSplit(ids, itr));
+            }
+        }
+
+        return planned.toArray(new PartitionSplit[planned.size()]);
+    }
+
+    /**
+     * Like plan, but each split gets the next buckets in order of priority,
+     * highest first, up to its share of the bytes, and the splits are
+     * returned in order of the priority of their first bucket.
+     *
+     * @param priorities the priority of each bucket, see getPriorities
+     */
+    public PartitionSplit[] planByPriority(PartitionSplit[] initialSplits,
+                                           final Map<Integer, Double> priorities,
+                                           int parallelism, long maxSplitSize) {
+        final Comparator<Integer> byPriority = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(getPriority(priorities, b), getPriority(priorities, a));
+            }
+        };
+
+        long totalSize = 0;
+        for (PartitionSplit split : initialSplits) {
+            totalSize += getSize(split.getPartitions());
+        }
+
+        List<PartitionSplit> planned = Lists.newArrayList();
+        for (List<PartitionSplit> group : groupByIterator(initialSplits).values()) {
+            List<Integer> partitions = Lists.newArrayList();
+            for (PartitionSplit split : group) {
+                partitions.addAll(Ints.asList(split.getPartitions()));
+            }
+            // Stable, equal priorities stay in index order.
+            Collections.sort(partitions, byPriority);
+
+            long size = getSize(Ints.toArray(partitions));
+            int numSplits = getNumSplits(size, totalSize, parallelism, maxSplitSize,
+                    partitions.size());
+            long share = Math.min((size + numSplits - 1) / numSplits, maxSplitSize);
+            PartitionIterator itr = group.get(0).getIterator();
+            List<Integer> current = Lists.newArrayList();
+            long currentSize = 0;
+            for (int p : partitions) {
+                if (!current.isEmpty() && currentSize + getSize(p) > share) {
+                    planned.add(new PartitionSplit(Ints.toArray(current), itr));
+                    current.clear();
+                    currentSize = 0;
+                }
+                current.add(p);
+                currentSize += getSize(p);
+            }
+            if (!current.isEmpty()) {
+                planned.add(new PartitionSplit(Ints.toArray(current), itr));
+            }
+        }
+
+        Collections.sort(planned, new Comparator<PartitionSplit>() {
+            @Override
+            public int compare(PartitionSplit a, PartitionSplit b) {
+                return byPriority.compare(a.getPartitions()[0], b.getPartitions()[0]);
+            }
+        });
+        return planned.toArray(new PartitionSplit[planned.size()]);
+    }
+
+    private static double getPriority(Map<Integer, Double> priorities, int partition) {
+        Double priority = priorities.get(partition);
+        return priority == null ? Double.NEGATIVE_INFINITY : priority;
+    }
+
+    /**
+     * The splits by the kind of their iterator, and by their queries for a
+     * shared scan, keeping the buckets in index order.
+     */
+    private static Map<String, List<PartitionSplit>> groupByIterator(PartitionSplit[] splits) {
+        Map<String, List<PartitionSplit>> groups = Maps.newLinkedHashMap();
+        for (PartitionSplit split : splits) {
+            String iterName = split.getIterator().getClass().getName();
+            if (split.getIterator() instanceof MultiQueryIterator) {
+                MultiQueryIterator shared = (MultiQueryIterator) split.getIterator();
+                for (int j = 0; j < shared.getNumQueries(); j++) {
+                    iterName += ":" + shared.getQueryId(j);
+                }
+            }
+            if (!groups.containsKey(iterName)) {
+                groups.put(iterName, Lists.<PartitionSplit>newArrayList());
+            }
+            groups.get(iterName).add(split);
+        }
+        return groups;
+    }
+
+    /**
+     * How promising each bucket of the tree is for a query with a limit.
+     * For the top k by an ordered attribute, the bound of the attribute the
+     * tree puts on the bucket: the upper one if descending, minus the lower
+     * one if ascending, infinite if open, as the best records can only be in
+     * the buckets with the best bounds. Else the records expected to match
+     * per byte, from the sample of the bucket.
+     */
+    public static Map<Integer, Double> getPriorities(RobustTree tree, Query q) {
+        Map<Integer, Double> priorities = Maps.newHashMap();
+        int attr = q.getOrderBy();
+        for (RNode n : tree.getRoot().getAllBuckets()) {
+            double priority;
+            if (q.isTopK() && isOrdered(n, attr)) {
+                Object bound = getBound(n, attr, q.isDescending());
+                priority = bound == null ? Double.POSITIVE_INFINITY
+                        : q.isDescending() ? toDouble(bound) : -toDouble(bound);
+            } else {
+                priority = getMatchesPerByte(n, q.getPredicates(), tree.getRowWidthScale());
+            }
+            priorities.put(n.bucket.getBucketId(), priority);
+        }
+        return priorities;
+    }
+
+    /**
+     * Whether the ancestors of the bucket split on the attribute by ordered
+     * numeric values.
+     */
+    private static boolean isOrdered(RNode bucket, int attr) {
+        for (RNode p = bucket.parent; p != null; p = p.parent) {
+            if (p.attribute == attr) {
+                return p.type == TYPE.INT || p.type == TYPE.LONG
+                        || p.type == TYPE.DOUBLE || p.type == TYPE.DATE;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The closest ancestor splitting on the attribute with the bucket below
+     * it gives the tightest bound: the upper one if the bucket is to its
+     * left, the lower one if to its right. Null if there is none.
+     */
+    private static Object getBound(RNode bucket, int attr, boolean upper) {
+        RNode child = bucket;
+        for (RNode p = bucket.parent; p != null; child = p, p = p.parent) {
+            if (p.attribute == attr && (p.leftChild == child) == upper) {
+                return p.value;
+            }
+        }
+        return null;
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof SimpleDate) {
+            return CompiledPredicate.encodeDate((SimpleDate) value);
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    private static double getMatchesPerByte(RNode n, Predicate[] predicates,
+                                            double rowWidthScale) {
+        double passRate = 1;
+        ParsedTupleList sample = n.bucket.getSample();
+        if (sample != null && sample.size() > 0) {
+            long passed = 0;
+            for (Object[] tuple : sample.getValues()) {
+                boolean pass = true;
+                for (Predicate p : predicates) {
+                    // Not ordered, no estimate.
+                    if (p.type != TYPE.BOOLEAN && p.type != TYPE.VARCHAR) {
+                        pass &= p.isRelevant(tuple[p.attribute]);
+                    }
+                }
+                passed += pass ? 1 : 0;
+            }
+            passRate = (double) passed / sample.size();
+        }
+        return n.bucket.getEstimatedNumTuples() * passRate
+                / Math.max(1, n.bucket.getEstimatedNumBytes(rowWidthScale));
+    }
+
+    static int getNumSplits(long size, long totalSize, int parallelism,
+                            long maxSplitSize, int numPartitions) {
+        long numSplits = (size + maxSplitSize - 1) / maxSplitSize;
+        if (parallelism > 0 && totalSize > 0) {
+            numSplits = Math.max(numSplits, Math.round((double) parallelism * size / totalSize));
+        }
+        return (int) Math.max(1, Math.min(numSplits, numPartitions));
+    }
+
+    /**
+     * Packs the partitions into numSplits groups, more if they would not fit
+     * in maxSplitSize bytes each.
+     */
+    List<int[]> pack(int[] partitions, int numSplits, long maxSplitSize) {
+        final Map<Integer, Integer> positions = Maps.newHashMap();
+        for (int i = 0; i < partitions.length; i++) {
+            positions.put(partitions[i], i);
+        }
+
+        long size = getSize(partitions);
+        long share = (size + numSplits - 1) / numSplits;
+        long capacity = Math.min((long) (share * (1 + slack)), maxSplitSize);
+
+        List<Run> runs = getRuns(partitions, Math.max(1, share / runsPerSplit));
+        Collections.sort(runs, new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                return Long.compare(b.size, a.size);
+            }
+        });
+
+        PriorityQueue<Bin> bins = new PriorityQueue<Bin>();
+        List<Bin> allBins = Lists.newArrayList();
+        for (int i = 0; i < numSplits; i++) {
+            Bin bin = new Bin(i);
+            bins.add(bin);
+            allBins.add(bin);
+        }
+
+        for (Run run : runs) {
+            Bin target = null;
+            String host = primaryHosts.get(run.partitions.get(0));
+            if (host != null) {
+                for (Bin bin : allBins) {
+                    if (host.equals(bin.host) && bin.size + run.size <= capacity
+                            && (target == null || bin.size < target.size)) {
+                        target = bin;
+                    }
+                }
+            }
+
+            if (target == null) {
+                target = bins.peek();
+                if (!target.partitions.isEmpty() && target.size + run.size > maxSplitSize) {
+                    // Full, even the least loaded.
+                    target = new Bin(allBins.size());
+                    allBins.add(target);
+                    bins.add(target);
+                }
+            }
+
+            bins.remove(target);
+            target.add(run, host);
+            bins.add(target);
+        }
+
+        List<int[]> packed = Lists.newArrayList();
+        for (Bin bin : allBins) {
+            if (!bin.partitions.isEmpty()) {
+                // Back in index order.
+                Collections.sort(bin.partitions, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return positions.get(a).compareTo(positions.get(b));
+                    }
+                });
+                packed.add(Ints.toArray(bin.partitions));
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Cuts the partitions, in order, into runs of up to maxRunSize bytes on
+     * the same host.
+     */
+    private List<Run> getRuns(int[] partitions, long maxRunSize) {
+        List<Run> runs = Lists.newArrayList();
+        Run run = null;
+        for (int p : partitions) {
+            long pSize = getSize(p);
+            String host = primaryHosts.get(p);
+            if (run == null || run.size + pSize > maxRunSize
+                    || (host != null && !host.equals(primaryHosts.get(run.partitions.get(0))))) {
+                run = new Run();
+                runs.add(run);
+            }
+            run.partitions.add(p);
+            run.size += pSize;
+        }
+        return runs;
+    }
+
+    private long getSize(int partition) {
+        Long size = partitionSizes.get(partition);
+        return size == null ? 0 : size;
+    }
+
+    private long getSize(int[] partitions) {
+        long size = 0;
+        for (int p : partitions) {
+            size += getSize(p);
+        }
+        return size;
+    }
+
+    private static class Run {
+        List<Integer> partitions = Lists.newArrayList();
+        long size = 0;
+    }
+
+    private static class Bin implements Comparable<Bin> {
+        int id;
+        List<Integer> partitions = Lists.newArrayList();
+        long size = 0;
+        // Host of the first run, where the split will most likely run.
+        String host;
+
+        Bin(int id) {
+            this.id = id;
+        }
+
+        void add(Run run, String runHost) {
+            if (partitions.isEmpty()) {
+                host = runHost;
+            }
+            partitions.addAll(run.partitions);
+            size += run.size;
+        }
+
+        @Override
+        public int compareTo(Bin o) {
+            int c = Long.compare(size, o.size);
+            return c != 0 ? c : Integer.compare(id, o.id);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package core.adapt.spark.sql;
+
+import core.adapt.Predicate;
+import core.adapt.Predicate.PREDTYPE;
+import core.adapt.Query;
+import core.adapt.iterator.TypedRow;
+import core.adapt.spark.SparkQueryConf;
+import core.adapt.spark.SparkTypedInputFormat;
+import core.common.globals.Globals;
+import core.common.globals.Schema;
+import core.common.globals.TableInfo;
+import core.utils.ConfUtils;
+import core.utils.HDFSUtils;
+import core.utils.TypeUtils;
+import core.utils.TypeUtils.TYPE;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.rdd.RDD;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.sources.And;
+import org.apache.spark.sql.sources.BaseRelation;
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThan;
+import org.apache.spark.sql.sources.GreaterThanOrEqual;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.LessThanOrEqual;
+import org.apache.spark.sql.sources.Or;
+import org.apache.spark.sql.sources.PrunedFilteredScan;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An Amoeba table as a Spark SQL relation.
+ * <p/>
+ * The filters Spark pushes down become the predicates of the query, so only
+ * the buckets they select are read, and the rows are checked by the
+ * iterators. Filters the predicates evaluate exactly are reported as handled
+ * and Spark does not evaluate them again. The requested columns become the
+ * projection of the query: the record reader locates only the attributes up
+ * to the last one read and decodes just the requested ones into the rows.
+ */
+public class AmoebaRelation extends BaseRelation implements PrunedFilteredScan {
+    public enum Mode {
+        // Read all the buckets.
+        SCAN,
+        // Read the buckets selected by the current index.
+        NOADAPT,
+        // Read the selected buckets and maybe repartition them.
+        ADAPT
+    }
+
+    private SQLContext sqlContext;
+    private ConfUtils cfg;
+    private String table;
+    private Mode mode;
+    private TableInfo tableInfo;
+    private StructType schema;
+
+    public AmoebaRelation(SQLContext sqlContext, ConfUtils cfg, String table, Mode mode) {
+        this.sqlContext = sqlContext;
+        this.cfg = cfg;
+        this.table = table;
+        this.mode = mode;
+
+        Globals.loadTableInfo(table, cfg.getHDFS_WORKING_DIR(),
+                HDFSUtils.getFSByHadoopHome(cfg.getHADOOP_HOME()));
+        this.tableInfo = Globals.getTableInfo(table);
+        this.schema = createSchema(tableInfo.schema);
+    }
+
+    /**
+     * A relation over the table described, that translates filters only.
+     */
+    AmoebaRelation(String table, TableInfo tableInfo) {
+        this.table = table;
+        this.tableInfo = tableInfo;
+        this.schema = createSchema(tableInfo.schema);
+    }
+
+    @Override
+    public SQLContext sqlContext() {
+        return sqlContext;
+    }
+
+    @Override
+    public StructType schema() {
+        return schema;
+    }
+
+    @Override
+    public Filter[] unhandledFilters(Filter[] filters) {
+        List<Filter> unhandled = new ArrayList<Filter>();
+        for (Filter filter : filters) {
+            if (!translate(filter, new ArrayList<Predicate>())) {
+                unhandled.add(filter);
+            }
+        }
+        return unhandled.toArray(new Filter[unhandled.size()]);
+    }
+
+    @Override
+    public RDD<Row> buildScan(String[] requiredColumns, Filter[] filters) {
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        for (Filter filter : filters) {
+            translate(filter, predicates);
+        }
+        Query q = new Query(table, predicates.toArray(new Predicate[predicates.size()]));
+        q.normalizeQuery();
+        q.setProjection(TypedRow.getAttributes(tableInfo.schema, requiredColumns));
+        System.out.println("INFO: Pushed down " + q);
+
+        JavaSparkContext ctx = new JavaSparkContext(sqlContext.sparkContext());
+        Configuration conf = new Configuration(ctx.hadoopConfiguration());
+        conf.setBoolean(FileInputFormat.INPUT_DIR_RECURSIVE, true);
+
+        SparkQueryConf queryConf = new SparkQueryConf(conf);
+        queryConf.setWorkingDir(cfg.getHDFS_WORKING_DIR());
+        queryConf.setReplicaId(0);
+        queryConf.setQuery(q);
+        queryConf.setHadoopHome(cfg.getHADOOP_HOME());
+        queryConf.setZookeeperHosts(cfg.getZOOKEEPER_HOSTS());
+        queryConf.setMaxSplitSize(8l << 30); // 8GB
+        queryConf.setMinSplitSize(4l << 30); // 4GB
+        queryConf.setHDFSReplicationFactor(cfg.getHDFS_REPLICATION_FACTOR());
+        queryConf.setParallelism(ctx.defaultParallelism());
+        queryConf.setFullScan(mode == Mode.SCAN);
+        queryConf.setJustAccess(mode != Mode.ADAPT);
+
+        JavaPairRDD<LongWritable, TypedRow> rows = ctx.newAPIHadoopFile(
+                cfg.getHADOOP_NAMENODE() + cfg.getHDFS_WORKING_DIR() + "/" + table + "/data",
+                SparkTypedInputFormat.class, LongWritable.class, TypedRow.class, conf);
+        return rows.map(new RowConverter()).rdd();
+    }
+
+    /**
+     * Adds the predicates for the filter, if any.
+     *
+     * @return true if the predicates select exactly the rows the filter does,
+     * false if some or all of the filter is left to Spark.
+     */
+    boolean translate(Filter filter, List<Predicate> predicates) {
+        if (filter instanceof And) {
+            boolean left = translate(((And) filter).left(), predicates);
+            boolean right = translate(((And) filter).right(), predicates);
+            return left && right;
+        } else if (filter instanceof EqualTo) {
+            return translate(((EqualTo) filter).attribute(), ((EqualTo) filter).value(),
+                    PREDTYPE.EQ, predicates);
+        } else if (filter instanceof GreaterThan) {
+            return translate(((GreaterThan) filter).attribute(),
+                    ((GreaterThan) filter).value(), PREDTYPE.GT, predicates);
+        } else if (filter instanceof GreaterThanOrEqual) {
+            return translate(((GreaterThanOrEqual) filter).attribute(),
+                    ((GreaterThanOrEqual) filter).value(), PREDTYPE.GEQ, predicates);
+        } else if (filter instanceof LessThan) {
+            return translate(((LessThan) filter).attribute(),
+                    ((LessThan) filter).value(), PREDTYPE.LT, predicates);
+        } else if (filter instanceof LessThanOrEqual) {
+            return translate(((LessThanOrEqual) filter).attribute(),
+                    ((LessThanOrEqual) filter).value(), PREDTYPE.LEQ, predicates);
+        } else if (filter instanceof In) {
+            return translate(((In) filter).attribute(), ((In) filter).values(),
+                    PREDTYPE.IN, predicates);
+        } else if (filter instanceof Or) {
+            // Only ORs of ranges of one attribute.
+            List<String> attributes = new ArrayList<String>();
+            List<Object> bounds = new ArrayList<Object>();
+            if (!getRanges(filter, attributes, bounds)
+                    || new HashSet<String>(attributes).size() != 1) {
+                return false;
+            }
+            return translate(attributes.get(0), bounds.toArray(), PREDTYPE.OR, predicates);
+        }
+        return false;
+    }
+
+    /**
+     * Adds the inclusive bounds of the ranges the filter accepts, null if
+     * open, and the attribute of each range.
+     *
+     * @return false if the filter is not a union of such ranges.
+     */
+    private boolean getRanges(Filter filter, List<String> attributes, List<Object> bounds) {
+        if (filter instanceof Or) {
+            return getRanges(((Or) filter).left(), attributes, bounds)
+                    && getRanges(((Or) filter).right(), attributes, bounds);
+        } else if (filter instanceof EqualTo) {
+            addRange(((EqualTo) filter).attribute(), ((EqualTo) filter).value(),
+                    ((EqualTo) filter).value(), attributes, bounds);
+        } else if (filter instanceof GreaterThanOrEqual) {
+            addRange(((GreaterThanOrEqual) filter).attribute(),
+                    ((GreaterThanOrEqual) filter).value(), null, attributes, bounds);
+        } else if (filter instanceof LessThanOrEqual) {
+            addRange(((LessThanOrEqual) filter).attribute(), null,
+                    ((LessThanOrEqual) filter).value(), attributes, bounds);
+        } else if (filter instanceof In) {
+            for (Object v : ((In) filter).values()) {
+                addRange(((In) filter).attribute(), v, v, attributes, bounds);
+            }
+        } else if (filter instanceof And
+                && ((And) filter).left() instanceof GreaterThanOrEqual
+                && ((And) filter).right() instanceof LessThanOrEqual) {
+            // BETWEEN
+            GreaterThanOrEqual low = (GreaterThanOrEqual) ((And) filter).left();
+            LessThanOrEqual high = (LessThanOrEqual) ((And) filter).right();
+            if (!low.attribute().equals(high.attribute())) {
+                return false;
+            }
+            addRange(low.attribute(), low.value(), high.value(), attributes, bounds);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static void addRange(String attribute, Object low, Object high,
+                                 List<String> attributes, List<Object> bounds) {
+        attributes.add(attribute);
+        bounds.add(low);
+        bounds.add(high);
+    }
+
+    private boolean translate(String attribute, Object value, PREDTYPE predtype,
+                              List<Predicate> predicates) {
+        int attr = tableInfo.schema.getAttributeId(attribute);
+        if (attr == -1 || value == null) {
+            return false;
+        }
+
+        TYPE type = tableInfo.schema.getType(attr);
+        if (!isExact(type, predtype)) {
+            return false;
+        }
+
+        Object predicateValue;
+        if (predtype.isMultiValued()) {
+            Object[] values = (Object[]) value;
+            Object[] deserialized = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                // Only the bounds of an OR may be open.
+                if (values[i] == null && predtype != PREDTYPE.OR) {
+                    return false;
+                }
+                // Separates the values of the list.
+                if (values[i] != null && values[i].toString().contains(",")) {
+                    return false;
+                }
+                deserialized[i] = values[i] == null ? null : deserialize(type, values[i]);
+                if (values[i] != null && deserialized[i] == null) {
+                    return false;
+                }
+            }
+            predicateValue = deserialized;
+        } else {
+            predicateValue = deserialize(type, value);
+            if (predicateValue == null) {
+                return false;
+            }
+        }
+
+        predicates.add(new Predicate(attr, type, predicateValue, predtype));
+        return true;
+    }
+
+    /**
+     * Returns the value as the type of the attribute, null if it can't be
+     * part of a serialized query.
+     */
+    private static Object deserialize(TYPE type, Object value) {
+        String token = value.toString();
+        // These separate the predicates of a serialized query.
+        if (token.contains(":") || token.contains(";") || token.contains("|")) {
+            return null;
+        }
+        return TypeUtils.deserializeValue(type, token);
+    }
+
+    /**
+     * The predicates evaluate every comparison exactly on the ordered types.
+     * Booleans and varchars only compare for equality.
+     */
+    private static boolean isExact(TYPE type, PREDTYPE predtype) {
+        switch (predtype) {
+            case EQ:
+            case IN:
+                return true;
+            default:
+                return type != TYPE.BOOLEAN && type != TYPE.VARCHAR;
+        }
+    }
+
+    private static StructType createSchema(Schema schema) {
+        StructField[] fields = new StructField[schema.fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = DataTypes.createStructField(schema.fields[i].name,
+                    getDataType(schema.fields[i].type), false);
+        }
+        return DataTypes.createStructType(fields);
+    }
+
+    private static DataType getDataType(TYPE type) {
+        switch (type) {
+            case BOOLEAN:
+                return DataTypes.BooleanType;
+            case INT:
+                return DataTypes.IntegerType;
+            case LONG:
+                return DataTypes.LongType;
+            case DOUBLE:
+                return DataTypes.DoubleType;
+            case DATE:
+                return DataTypes.DateType;
+            default:
+                return DataTypes.StringType;
+        }
+    }
+
+    /**
+     * Turns the typed rows the records were decoded into into Spark rows.
+     */
+    static class RowConverter implements Function<Tuple2<LongWritable, TypedRow>, Row> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Row call(Tuple2<LongWritable, TypedRow> t) throws Exception {
+            TypedRow row = t._2();
+            Object[] values = new Object[row.size()];
+            for (int i = 0; i < values.length; i++) {
+                if (row.getType(i) == TYPE.DATE) {
+                    values[i] = new java.sql.Date(row.getYear(i) - 1900, row.getMonth(i) - 1,
+                            row.getDay(i));
+                } else {
+                    values[i] = row.get(i);
+                }
+            }
+            return RowFactory.create(values);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package core.adapt.spark.sql;
+
+import core.utils.ConfUtils;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.sources.BaseRelation;
+import org.apache.spark.sql.sources.RelationProvider;
+import scala.Option;
+import scala.collection.immutable.Map;
+
+/**
+ * Spark SQL data source over Amoeba tables, e.g.
+ * <p/>
+ * sqlContext.read().format("core.adapt.spark.sql")
+ * .option("conf", "/path/to/amoeba.properties")
+ * .option("table", "lineitem").option("mode", "adapt").load()
+ * <p/>
+ * Options:
+ * conf  - the properties file of the cluster, required
+ * table - the table to read, required
+ * mode  - scan, noadapt (default) or adapt, as in SparkQuery
+ */
+public class DefaultSource implements RelationProvider {
+    public static final String CONF = "conf";
+    public static final String TABLE = "table";
+    public static final String MODE = "mode";
+
+    @Override
+    public BaseRelation createRelation(SQLContext sqlContext,
+                                       Map<String, String> parameters) {
+        ConfUtils cfg = new ConfUtils(getRequired(parameters, CONF));
+        String table = getRequired(parameters, TABLE);
+
+        Option<String> mode = parameters.get(MODE);
+        AmoebaRelation.Mode scanMode = mode.isDefined()
+                ? AmoebaRelation.Mode.valueOf(mode.get().toUpperCase())
+                : AmoebaRelation.Mode.NOADAPT;
+
+        return new AmoebaRelation(sqlContext, cfg, table, scanMode);
+    }
+
+    private static String getRequired(Map<String, String> parameters, String key) {
+        Option<String> value = parameters.get(key);
+        if (!value.isDefined()) {
+            throw new IllegalArgumentException("Option " + key + " must be set");
+        }
+        return value.get();
+    }
+}
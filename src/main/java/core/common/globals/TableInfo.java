@@ -26,6 +26,11 @@ public class TableInfo {
     // Schema of data set.
     public Schema schema;
 
+    // Running estimate of the cost of scanning / repartitioning one byte, in
+    // nanoseconds. Zero until the first observation comes in.
+    public double scanCostPerByte;
+    public double writeCostPerByte;
+
     public TableInfo(String tableName) {
         this(tableName, 0, '|', null);
     }
@@ -41,10 +46,25 @@ public class TableInfo {
         return schema.getTypeArray();
     }
 
+    /**
+     * Returns how many times more expensive it is to repartition a tuple than
+     * to scan it. Falls back to Globals.c till the table has been calibrated.
+     */
+    public double getRepartitionCost() {
+        if (scanCostPerByte <= 0 || writeCostPerByte <= 0) {
+            return Globals.c;
+        }
+
+        // Repartitioning reads the tuple and then writes it out again.
+        return (scanCostPerByte + writeCostPerByte) / scanCostPerByte;
+    }
+
     public void save(String hdfsWorkingDir, short replication, FileSystem fs) {
         String saveContent = "TOTAL_NUM_TUPLES: " + numTuples + "\n" +
                 "DELIMITER: " + delimiter + "\n" +
-                "SCHEMA: " + schema.toString() + "\n";
+                "SCHEMA: " + schema.toString() + "\n" +
+                "SCAN_COST_PER_BYTE: " + scanCostPerByte + "\n" +
+                "WRITE_COST_PER_BYTE: " + writeCostPerByte + "\n";
         byte[] saveContentBytes = saveContent.getBytes();
         String path = hdfsWorkingDir + "/" + tableName + "/info";
         HDFSUtils.writeFile(fs, path, replication,
@@ -57,7 +77,8 @@ public class TableInfo {
         String content = new String(fileContent);
 
         String[] settings = content.split("\n");
-        assert settings.length == 3;
+        // Tables created before calibration only have the first three.
+        assert settings.length >= 3;
 
         for (int i = 0; i < settings.length; i++) {
             String setting = settings[i];
@@ -72,6 +93,12 @@ public class TableInfo {
                 case "SCHEMA":
                     schema = Schema.createSchema(parts[1].trim());
                     break;
+                case "SCAN_COST_PER_BYTE":
+                    scanCostPerByte = Double.parseDouble(parts[1].trim());
+                    break;
+                case "WRITE_COST_PER_BYTE":
+                    writeCostPerByte = Double.parseDouble(parts[1].trim());
+                    break;
                 default:
                     System.out.println("Unknown setting found: " + parts[0].trim());
             }
@@ -63,8 +63,13 @@ public interface MDIndex extends Serializable {
         /* Actual Values */
         int bucketId;
         ParsedTupleList sample;
+        // Size of the bucket on disk, 0 if not known, and the estimated
+        // number of tuples it was measured for.
+        private long numBytes = 0;
+        private double measuredTuples = 0;
         /* Estimates */
         private double estimatedTuples = 0;
+        private double sampleRowWidth = 0;
 
         public Bucket() {
             bucketId = maxBucketId;
@@ -93,6 +98,37 @@ public interface MDIndex extends Serializable {
             counter.put(bucketId, num);
         }
 
+        /**
+         * Returns the size of the bucket on disk if known, else the estimated
+         * number of tuples times the row width seen in the sample. The size on
+         * disk is scaled to the estimated number of tuples, which changes when
+         * the optimizer tries out a new layout of the bucket.
+         *
+         * @param rowWidthScale see RobustTree.getRowWidthScale()
+         */
+        public double getEstimatedNumBytes(double rowWidthScale) {
+            if (numBytes > 0) {
+                if (measuredTuples > 0) {
+                    return numBytes * estimatedTuples / measuredTuples;
+                }
+                return numBytes;
+            }
+            return estimatedTuples * getEstimatedRowWidth(rowWidthScale);
+        }
+
+        public double getEstimatedRowWidth(double rowWidthScale) {
+            return sampleRowWidth * rowWidthScale;
+        }
+
+        public long getNumBytes() {
+            return numBytes;
+        }
+
+        public void setNumBytes(long numBytes) {
+            this.numBytes = numBytes;
+            this.measuredTuples = estimatedTuples;
+        }
+
         public int getBucketId() {
             return bucketId;
         }
@@ -101,6 +137,8 @@ public interface MDIndex extends Serializable {
             this.bucketId = maxBucketId;
             maxBucketId += 1;
             estimatedTuples = 0;
+            numBytes = 0;
+            measuredTuples = 0;
         }
 
         public ParsedTupleList getSample() {
@@ -109,6 +147,7 @@ public interface MDIndex extends Serializable {
 
         public void setSample(ParsedTupleList sample) {
             this.sample = sample;
+            this.sampleRowWidth = sample == null ? 0 : sample.getAverageRowWidth();
         }
     }
 
@@ -1,5 +1,6 @@
 package core.common.index;
 
+import core.adapt.CompiledPredicate;
 import core.adapt.Predicate;
 import core.common.index.MDIndex.Bucket;
 import core.common.index.MDIndex.BucketInfo;
@@ -100,58 +101,56 @@ public class RNode implements Serializable {
     }
 
     public List<RNode> search(Predicate[] ps) {
+        return search(CompiledPredicate.compile(ps));
+    }
+
+    public List<RNode> search(CompiledPredicate[] ps) {
+        return search(ps, new Object[ps.length], new Object[ps.length]);
+    }
+
+    /**
+     * The values of the subtree on the attribute of ps[i] are in
+     * (lows[i], highs[i]], null bounds are open. A subtree is searched if
+     * some of its values may be accepted, so the buckets of IN lists and ORs
+     * of ranges are the union of the subtrees of their values.
+     */
+    public List<RNode> search(CompiledPredicate[] ps, Object[] lows, Object[] highs) {
         if (bucket == null) {
             boolean goLeft = true;
             boolean goRight = true;
+            Object[] leftHighs = highs;
+            Object[] rightLows = lows;
             for (int i = 0; i < ps.length; i++) {
-                Predicate p = ps[i];
-                if (p.attribute == attribute) {
-                    switch (p.predtype) {
-                        case GEQ:
-                            if (TypeUtils.compareTo(p.value, value, type) > 0)
-                                goLeft = false;
-                            break;
-                        case LEQ:
-                            if (TypeUtils.compareTo(p.value, value, type) <= 0)
-                                goRight = false;
-                            break;
-                        case GT:
-                            if (TypeUtils.compareTo(p.value, value, type) >= 0)
-                                goLeft = false;
-                            break;
-                        case LT:
-                            if (TypeUtils.compareTo(p.value, value, type) <= 0)
-                                goRight = false;
-                            break;
-                        case EQ:
-                            if (TypeUtils.compareTo(p.value, value, type) <= 0)
-                                goRight = false;
-                            else
-                                goLeft = false;
-                            break;
+                CompiledPredicate p = ps[i];
+                if (p.getAttribute() == attribute) {
+                    goLeft &= p.intersects(lows[i], value);
+                    goRight &= p.intersects(value, highs[i]);
+                    if (leftHighs == highs) {
+                        leftHighs = highs.clone();
+                        rightLows = lows.clone();
                     }
+                    leftHighs[i] = value;
+                    rightLows[i] = value;
                 }
             }
 
             List<RNode> ret = null;
             if (goLeft) {
-                ret = leftChild.search(ps);
+                ret = leftChild.search(ps, lows, leftHighs);
             }
 
             if (goRight) {
                 if (ret == null) {
-                    ret = rightChild.search(ps);
+                    ret = rightChild.search(ps, rightLows, highs);
                 } else {
-                    ret.addAll(rightChild.search(ps));
+                    ret.addAll(rightChild.search(ps, rightLows, highs));
                 }
             }
 
             if (ret == null) {
-                String nStr = String.format("n %d %s %s\n", attribute,
-                        type.toString(),
-                        TypeUtils.serializeValue(value, type));
-                System.out.println("ERR:" + goLeft + " " + goRight);
-                System.out.println("ERR: " + nStr);
+                // None of the values falls in this subtree, e.g. between
+                // the values of an IN list.
+                ret = new LinkedList<RNode>();
             }
 
             return ret;
@@ -179,6 +178,23 @@ public class RNode implements Serializable {
         return total;
     }
 
+    public double numBytesInSubtree(double rowWidthScale) {
+        LinkedList<RNode> stack = new LinkedList<RNode>();
+        stack.add(this);
+        double total = 0;
+        while (stack.size() > 0) {
+            RNode t = stack.removeLast();
+            if (t.bucket != null) {
+                total += t.bucket.getEstimatedNumBytes(rowWidthScale);
+            } else {
+                stack.add(t.rightChild);
+                stack.add(t.leftChild);
+            }
+        }
+
+        return total;
+    }
+
     public int[] getAllBucketIds() {
         LinkedList<RNode> queue = new LinkedList<>();
         ArrayList<Integer> ids = new ArrayList<Integer>();
@@ -13,16 +13,16 @@ public class RobustTree implements MDIndex {
     public transient static Random randGenerator = new Random();
     // TODO: Add capacity
     transient static List<Integer> leastAllocated = new ArrayList<>(50);
-    /**
-     * Return the dimension which has the maximum allocation unfulfilled
-     */
-    transient static int countCalled = -1;
     transient public ParsedTupleList sample;
     transient public TableInfo tableInfo;
+    // The workload to build the tree for, null for a uniform tree.
+    transient Workload workload;
     public int maxBuckets;
     public int numAttributes;
     public TYPE[] dimensionTypes;
     public RNode root;
+    // Measured by setBucketSizes(), see getRowWidthScale().
+    private double rowWidthScale = 1.0;
 
     public RobustTree(TableInfo tableInfo) {
         this.root = new RNode();
@@ -67,6 +67,10 @@ public class RobustTree implements MDIndex {
         }
     }
 
+    public void setWorkload(Workload workload) {
+        this.workload = workload;
+    }
+
     public int getMaxBuckets() {
         return maxBuckets;
     }
@@ -121,25 +125,23 @@ public class RobustTree implements MDIndex {
 
         // Computes log(this.maxBuckets)
         int maxDepth = 31 - Integer.numberOfLeadingZeros(this.maxBuckets);
-        double allocationPerAttribute = RobustTree.nthroot(
-                this.numAttributes, this.maxBuckets);
-        System.out.println("Max allocation: " + allocationPerAttribute);
-
         double[] allocations = new double[this.numAttributes];
-        for (int i = 0; i < this.numAttributes; i++) {
-            allocations[i] = allocationPerAttribute;
+        if (workload != null) {
+            // Each level of the tree takes 2 off the allocation of its attribute.
+            int[] levels = workload.getLevels(this.sample, this.numAttributes, maxDepth);
+            System.out.println("Levels for the workload: " + Arrays.toString(levels));
+            for (int i = 0; i < this.numAttributes; i++) {
+                allocations[i] = 2 * levels[i];
+            }
+        } else {
+            double allocationPerAttribute = RobustTree.nthroot(
+                    this.numAttributes, this.maxBuckets);
+            System.out.println("Max allocation: " + allocationPerAttribute);
+            for (int i = 0; i < this.numAttributes; i++) {
+                allocations[i] = allocationPerAttribute;
+            }
         }
 
-        // Custom
-//        double[] allocations = new double[this.numAttributes];
-//        for (int i = 0; i < this.numAttributes; i++)
-//            allocations[i] = -1;
-//
-//        allocations[tableInfo.schema.getAttributeId("o_orderdate")] = 12;
-//        allocations[tableInfo.schema.getAttributeId("l_quantity")] = 6;
-//        allocations[tableInfo.schema.getAttributeId("c_mktsegment")] = 4;
-//        allocations[tableInfo.schema.getAttributeId("c_region")] = 4;
-
         /**
          * Do a level-order traversal
          */
@@ -149,6 +151,8 @@ public class RobustTree implements MDIndex {
         initialTask.node = root;
         initialTask.sample = this.sample;
         initialTask.depth = 0;
+        initialTask.lows = new Object[this.numAttributes];
+        initialTask.highs = new Object[this.numAttributes];
         nodeQueue.add(initialTask);
 
         while (nodeQueue.size() > 0) {
@@ -186,6 +190,13 @@ public class RobustTree implements MDIndex {
                     t.node.attribute = dim;
                     t.node.type = this.dimensionTypes[dim];
                     t.node.value = halves.first.getLast(dim); // Need to traverse up for range.
+                    if (workload != null) {
+                        Object c = workload.getCutpoint(t.sample, dim, t.node.value, t.lows, t.highs);
+                        if (c != null) {
+                            t.node.value = c;
+                            halves = t.sample.splitAt(dim, c);
+                        }
+                    }
 
                     t.node.leftChild = new RNode();
                     t.node.leftChild.parent = t.node;
@@ -193,6 +204,9 @@ public class RobustTree implements MDIndex {
                     tl.node = t.node.leftChild;
                     tl.depth = t.depth + 1;
                     tl.sample = halves.first;
+                    tl.lows = t.lows;
+                    tl.highs = t.highs.clone();
+                    tl.highs[dim] = t.node.value;
                     nodeQueue.add(tl);
 
                     t.node.rightChild = new RNode();
@@ -201,6 +215,9 @@ public class RobustTree implements MDIndex {
                     tr.node = t.node.rightChild;
                     tr.depth = t.depth + 1;
                     tr.sample = halves.second;
+                    tr.lows = t.lows.clone();
+                    tr.lows[dim] = t.node.value;
+                    tr.highs = t.highs;
                     nodeQueue.add(tr);
                 }
             } else {
@@ -219,28 +236,11 @@ public class RobustTree implements MDIndex {
         System.out.println("method not implemented!");
     }
 
+    /**
+     * Return the dimension which has the maximum allocation unfulfilled
+     */
     public int getLeastAllocated(double[] allocations) {
         int numAttributes = allocations.length;
-//        if (countCalled < 2) {
-//            countCalled++;
-//            if (countCalled == 0) {
-//                return tableInfo.schema.getAttributeId("o_orderdate"); // o_orderdate
-//            } else if (countCalled == 1) {
-//                return tableInfo.schema.getAttributeId("l_shipmode"); // l_shipmode
-//            } else if (countCalled == 2) {
-//                return tableInfo.schema.getAttributeId("l_shipmode"); // l_shipmode
-//            }
-//            // Could be useful to add quantity
-//        }
-
-        if (countCalled < 0) {
-            countCalled++;
-            if (countCalled == 0) {
-                return tableInfo.schema.getAttributeId("sf_uploadtime"); // o_orderdate
-            }
-            // Could be useful to add quantity
-        }
-
         leastAllocated.clear();
         leastAllocated.add(0);
 
@@ -284,6 +284,38 @@ public class RobustTree implements MDIndex {
         return results;
     }
 
+    /**
+     * Sets the actual on-disk size of the buckets and rescales the sample row
+     * widths so that estimates for new buckets match what is on disk.
+     *
+     * @param bucketSizes bucket id to size in bytes
+     */
+    public void setBucketSizes(Map<Integer, Long> bucketSizes) {
+        double actualBytes = 0;
+        double sampleBytes = 0;
+        for (RNode n : root.getAllBuckets()) {
+            Long size = bucketSizes.get(n.bucket.getBucketId());
+            if (size != null && size > 0 && n.bucket.getSample() != null) {
+                n.bucket.setNumBytes(size);
+                actualBytes += size;
+                sampleBytes += n.bucket.getEstimatedNumTuples()
+                        * n.bucket.getSample().getAverageRowWidth();
+            }
+        }
+
+        if (actualBytes > 0 && sampleBytes > 0) {
+            rowWidthScale = actualBytes / sampleBytes;
+        }
+    }
+
+    /**
+     * Ratio of the actual row width on disk to the one seen in the samples
+     * of the table, the samples leave out the varchar attributes.
+     */
+    public double getRowWidthScale() {
+        return rowWidthScale;
+    }
+
     /**
      * Serializes the index to string Very brittle - Consider rewriting
      */
@@ -418,5 +450,9 @@ public class RobustTree implements MDIndex {
         public RNode node;
         public int depth;
         public ParsedTupleList sample;
+        // Bounds of the node on each attribute, lows[a] < v <= highs[a],
+        // null if open.
+        public Object[] lows;
+        public Object[] highs;
     }
 }
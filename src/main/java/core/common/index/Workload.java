@@ -0,0 +1,287 @@
+package core.common.index;
+
+import core.adapt.CompiledPredicate;
+import core.adapt.Predicate;
+import core.adapt.Query;
+import core.common.key.ParsedTupleList;
+import core.utils.Pair;
+import core.utils.TypeUtils.TYPE;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the upfront tree is built for: a log of queries on the table, or
+ * weights of its attributes.
+ * <p/>
+ * With a log, a query with predicates on an attribute split by d levels of
+ * the tree is expected to read the fraction of the sample they accept plus
+ * the 2^-d of the partition its range ends in; the fractions of its
+ * attributes multiply. The levels go one at a time to the attribute lowering
+ * the expected fraction of tuples scanned, over all the queries, the most.
+ * A node is then split at the bound of a predicate of the log rather than
+ * at the median when that has the queries reaching it read fewer tuples of
+ * the sample.
+ * <p/>
+ * With weights, the attributes get shares of the levels proportional to
+ * their weights, and the nodes are split at the median.
+ */
+public class Workload {
+    // A cutpoint leaves at least this fraction of the sample of the node on
+    // each side, so that the buckets stay of comparable sizes.
+    public static double minSplitFraction = 0.25;
+
+    // The distinct queries of the log and how many times each appears.
+    private List<Query> queries;
+    private List<Integer> counts;
+    private double[] weights;
+
+    private Workload() {
+    }
+
+    public static Workload fromQueries(List<Query> log) {
+        Map<String, Query> distinct = new LinkedHashMap<String, Query>();
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (Query q : log) {
+            String key = q.getNormalizedString();
+            if (!distinct.containsKey(key)) {
+                distinct.put(key, q);
+                counts.put(key, 0);
+            }
+            counts.put(key, counts.get(key) + 1);
+        }
+
+        Workload w = new Workload();
+        w.queries = new ArrayList<Query>(distinct.values());
+        w.counts = new ArrayList<Integer>(counts.values());
+        return w;
+    }
+
+    /**
+     * @param weights by attribute, 0 for the attributes not to split on
+     */
+    public static Workload fromWeights(double[] weights) {
+        Workload w = new Workload();
+        w.weights = weights;
+        return w;
+    }
+
+    /**
+     * The number of levels of the tree, out of maxDepth, to split on each
+     * attribute. Levels none of the queries gains from are not given out.
+     */
+    public int[] getLevels(ParsedTupleList sample, int numAttributes, int maxDepth) {
+        if (weights != null) {
+            return getLevelsFromWeights(numAttributes, maxDepth);
+        }
+
+        double[][] selectivities = getSelectivities(sample, numAttributes);
+        int[] levels = new int[numAttributes];
+        double cost = getExpectedFraction(selectivities, levels);
+        System.out.println("INFO: Expected fraction scanned, unpartitioned: " + cost);
+        for (int l = 0; l < maxDepth; l++) {
+            int best = -1;
+            for (int a = 0; a < numAttributes; a++) {
+                levels[a]++;
+                double c = getExpectedFraction(selectivities, levels);
+                levels[a]--;
+                if (c < cost) {
+                    best = a;
+                    cost = c;
+                }
+            }
+            if (best == -1) {
+                break;
+            }
+            levels[best]++;
+        }
+        System.out.println("INFO: Expected fraction scanned, for the workload: " + cost);
+        return levels;
+    }
+
+    private int[] getLevelsFromWeights(int numAttributes, int maxDepth) {
+        double total = 0;
+        for (int a = 0; a < numAttributes && a < weights.length; a++) {
+            total += Math.max(weights[a], 0);
+        }
+        int[] levels = new int[numAttributes];
+        if (total == 0) {
+            return levels;
+        }
+
+        // Largest remainders first.
+        double[] remainders = new double[numAttributes];
+        int given = 0;
+        for (int a = 0; a < numAttributes && a < weights.length; a++) {
+            double share = maxDepth * Math.max(weights[a], 0) / total;
+            levels[a] = (int) share;
+            remainders[a] = share - levels[a];
+            given += levels[a];
+        }
+        for (; given < maxDepth; given++) {
+            int best = 0;
+            for (int a = 1; a < numAttributes; a++) {
+                if (remainders[a] > remainders[best]) {
+                    best = a;
+                }
+            }
+            levels[best]++;
+            remainders[best] = -1;
+        }
+        return levels;
+    }
+
+    /**
+     * The fraction of the sample the predicates of each query on each
+     * attribute accept, -1 if it has none on the attribute.
+     */
+    private double[][] getSelectivities(ParsedTupleList sample, int numAttributes) {
+        List<Object[]> tuples = sample.getValues();
+        double[][] selectivities = new double[queries.size()][numAttributes];
+        for (int i = 0; i < queries.size(); i++) {
+            for (int a = 0; a < numAttributes; a++) {
+                selectivities[i][a] = -1;
+            }
+            for (Predicate p : queries.get(i).getPredicates()) {
+                if (p.attribute >= numAttributes || selectivities[i][p.attribute] != -1) {
+                    continue;
+                }
+
+                double accepted = 0;
+                for (Object[] tuple : tuples) {
+                    boolean match = true;
+                    for (Predicate other : queries.get(i).getPredicates()) {
+                        if (other.attribute == p.attribute) {
+                            match &= other.isRelevant(tuple[p.attribute]);
+                        }
+                    }
+                    accepted += match ? 1 : 0;
+                }
+                selectivities[i][p.attribute] = tuples.isEmpty() ? 1 : accepted / tuples.size();
+            }
+        }
+        return selectivities;
+    }
+
+    private double getExpectedFraction(double[][] selectivities, int[] levels) {
+        double total = 0;
+        double numQueries = 0;
+        for (int i = 0; i < selectivities.length; i++) {
+            double fraction = 1;
+            for (int a = 0; a < levels.length; a++) {
+                if (selectivities[i][a] >= 0) {
+                    fraction *= Math.min(1, selectivities[i][a] + Math.pow(2, -levels[a]));
+                }
+            }
+            total += counts.get(i) * fraction;
+            numQueries += counts.get(i);
+        }
+        return numQueries == 0 ? 1 : total / numQueries;
+    }
+
+    /**
+     * Where to split a node on the attribute, the values <= the cutpoint
+     * going left: the bound of a predicate of the log that has the queries
+     * reaching the node read the fewest tuples of its sample, if fewer than
+     * the median does.
+     *
+     * @param sample the sample of the node, sorted on the attribute
+     * @param median the cutpoint of the median split
+     * @param lows   the bounds of the node on each attribute, null if open,
+     * @param highs  its values v being lows[a] < v <= highs[a]
+     * @return the cutpoint, null for the median.
+     */
+    public Object getCutpoint(ParsedTupleList sample, int attribute, Object median,
+                              Object[] lows, Object[] highs) {
+        if (queries == null) {
+            return null;
+        }
+
+        // The predicates on the attribute of the queries reaching the node.
+        TYPE type = sample.getTypes()[attribute];
+        List<CompiledPredicate> reaching = new ArrayList<CompiledPredicate>();
+        List<Integer> reachingCounts = new ArrayList<Integer>();
+        Set<Object> candidates = new LinkedHashSet<Object>();
+        for (int i = 0; i < queries.size(); i++) {
+            CompiledPredicate onAttribute = null;
+            boolean reaches = true;
+            for (CompiledPredicate p : queries.get(i).getCompiledPredicates()) {
+                int a = p.getAttribute();
+                if (a >= lows.length || sample.getTypes()[a] != getType(queries.get(i), a)) {
+                    reaches = false;
+                    break;
+                }
+                reaches &= p.intersects(lows[a], highs[a]);
+                if (a == attribute) {
+                    onAttribute = p;
+                }
+            }
+            if (!reaches || onAttribute == null) {
+                // Reads both sides whatever the cutpoint, or neither.
+                continue;
+            }
+
+            reaching.add(onAttribute);
+            reachingCounts.add(counts.get(i));
+            for (Predicate p : queries.get(i).getPredicates()) {
+                if (p.attribute == attribute && p.type == type) {
+                    for (Predicate cut : p.getCutpointPredicates()) {
+                        candidates.add(cut.getHelpfulCutpoint());
+                    }
+                }
+            }
+        }
+        if (reaching.isEmpty()) {
+            return null;
+        }
+
+        Object best = null;
+        double bestCost = getCost(sample, attribute, median, reaching, reachingCounts,
+                lows[attribute], highs[attribute]);
+        for (Object c : candidates) {
+            double cost = getCost(sample, attribute, c, reaching, reachingCounts,
+                    lows[attribute], highs[attribute]);
+            if (cost < bestCost) {
+                best = c;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private static TYPE getType(Query q, int attribute) {
+        for (Predicate p : q.getPredicates()) {
+            if (p.attribute == attribute) {
+                return p.type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The tuples of the sample the queries read if the node is split at the
+     * cutpoint, infinite if a side would be too small.
+     */
+    private static double getCost(ParsedTupleList sample, int attribute, Object cutpoint,
+                                  List<CompiledPredicate> predicates, List<Integer> counts,
+                                  Object low, Object high) {
+        Pair<ParsedTupleList, ParsedTupleList> halves = sample.splitAt(attribute, cutpoint);
+        int left = halves.first.size();
+        int right = halves.second.size();
+        if (Math.min(left, right) < minSplitFraction * sample.size()) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double cost = 0;
+        for (int i = 0; i < predicates.size(); i++) {
+            CompiledPredicate p = predicates.get(i);
+            cost += counts.get(i) * ((p.intersects(low, cutpoint) ? left : 0)
+                    + (p.intersects(cutpoint, high) ? right : 0));
+        }
+        return cost;
+    }
+}
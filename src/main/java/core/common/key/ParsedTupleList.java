@@ -359,6 +359,29 @@ public class ParsedTupleList {
         return values.size();
     }
 
+    /**
+     * Average width in bytes of a tuple in this list, as it would be written
+     * out as a delimited line. Returns 0 for an empty list.
+     * Attributes that are not parsed (varchar) are not counted.
+     */
+    public double getAverageRowWidth() {
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        long totalWidth = 0;
+        for (Object[] v : values) {
+            // One delimiter between attributes plus the newline.
+            totalWidth += v.length;
+            for (Object o : v) {
+                if (o != null) {
+                    totalWidth += o.toString().length();
+                }
+            }
+        }
+        return (double) totalWidth / values.size();
+    }
+
     public void reset() {
         values = Lists.newArrayList();
         types = null;
@@ -105,6 +105,31 @@ public class ConfUtils {
         p.setProperty("HDFS_WORKING_DIR", path);
     }
 
+    /**
+     * Bytes of bucket files each executor caches off the heap, 0 if not set.
+     */
+    public long getBUCKET_CACHE_BYTES() {
+        String bytes = p.getProperty("BUCKET_CACHE_BYTES");
+        return bytes == null ? 0 : Long.parseLong(bytes.trim());
+    }
+
+    /**
+     * Bytes of query results the driver caches on its local disk, 0 if not
+     * set.
+     */
+    public long getRESULT_CACHE_BYTES() {
+        String bytes = p.getProperty("RESULT_CACHE_BYTES");
+        return bytes == null ? 0 : Long.parseLong(bytes.trim());
+    }
+
+    /**
+     * Local directory of the cached query results.
+     */
+    public String getRESULT_CACHE_DIR() {
+        String dir = p.getProperty("RESULT_CACHE_DIR");
+        return dir == null ? System.getProperty("java.io.tmpdir") + "/amoeba-results" : dir.trim();
+    }
+
     /**
      * Get HDFS Replication Factor
      *
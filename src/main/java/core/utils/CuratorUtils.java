@@ -3,6 +3,8 @@ package core.utils;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.atomic.AtomicValue;
+import org.apache.curator.framework.recipes.atomic.DistributedAtomicInteger;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 import org.apache.curator.framework.recipes.shared.SharedCount;
 import org.apache.curator.retry.ExponentialBackoffRetry;
@@ -193,6 +195,42 @@ public class CuratorUtils {
         }
     }
 
+    /*
+     * Atomic counter utils, unlike the shared counter above these are safe
+     * to update from many tasks at once.
+     */
+    public static void setAtomicCounter(CuratorFramework client, String counterPath,
+                                        int value) {
+        DistributedAtomicInteger c = new DistributedAtomicInteger(client,
+                counterPath, new ExponentialBackoffRetry(baseSleepTimeMills, maxRetries));
+        try {
+            c.forceSet(value);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to set the counter: "
+                    + counterPath + "\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Atomically decrements the counter and returns the new value.
+     */
+    public static int decrementAtomicCounter(CuratorFramework client, String counterPath) {
+        DistributedAtomicInteger c = new DistributedAtomicInteger(client,
+                counterPath, new ExponentialBackoffRetry(baseSleepTimeMills, maxRetries));
+        try {
+            AtomicValue<Integer> value = c.decrement();
+            if (!value.succeeded()) {
+                throw new RuntimeException("decrement did not go through");
+            }
+            return value.postValue();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to decrement the counter: "
+                    + counterPath + "\n" + e.getMessage());
+        }
+    }
+
     public static void deleteAll(CuratorFramework client, String path,
                                  String prefix) {
         try {
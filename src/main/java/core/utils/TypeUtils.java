@@ -17,7 +17,10 @@ public class TypeUtils {
             case DATE:
                 return ((SimpleDate) x).compareTo((SimpleDate) y);
             case STRING:
+            case VARCHAR:
                 return ((String) x).compareTo((String) y);
+            case BOOLEAN:
+                return ((Boolean) x).compareTo((Boolean) y);
             default:
                 System.err.println("Unknown TYPE in compareTo");
                 return 0;
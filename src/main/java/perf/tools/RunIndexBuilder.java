@@ -1,8 +1,12 @@
 package perf.tools;
 
+import core.adapt.IndexVersions;
+import core.adapt.Query;
+import core.adapt.opt.Optimizer;
 import core.common.globals.Globals;
 import core.common.globals.TableInfo;
 import core.common.index.RobustTree;
+import core.common.index.Workload;
 import core.common.key.ParsedTupleList;
 import core.common.key.RawIndexKey;
 import core.upfront.build.HDFSPartitionWriter;
@@ -24,6 +28,7 @@ import perf.benchmark.TPCHBaselines.RangeTree;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 /**
  * Builds the index. Captures time taken by the different steps in index
@@ -62,6 +67,11 @@ public class RunIndexBuilder {
     CuratorFramework client;
     // Tree Type
     TreeType treeType;
+    // Query log on HDFS to build the custom tree for, one query per line.
+    String queryLog;
+    // Weights of the attributes to build the custom tree for, as
+    // name:weight,name:weight.
+    String attributeWeights;
 
     public static void main(String[] args) {
         BenchmarkSettings.loadSettings(args);
@@ -207,7 +217,8 @@ public class RunIndexBuilder {
     }
 
     /**
-     * Creates a single robust tree with custom allocation.
+     * Creates a single robust tree for the workload given by --queryLog or
+     * --attributeWeights, see Workload.
      * As a side effect reads all the sample files
      * from the samples dir and writes it out WORKING_DIR/sample
      */
@@ -222,6 +233,7 @@ public class RunIndexBuilder {
 
         // Construct the index from the sample.
         RobustTree index = new RobustTree(tableInfo);
+        index.setWorkload(loadWorkload());
         builder.buildIndexFromSample(
                 sample,
                 numBuckets,
@@ -232,6 +244,32 @@ public class RunIndexBuilder {
         System.out.println("Time Taken: " + (endTime - startTime) + "ms");
     }
 
+    // Helper function, the workload given in the settings, null if none.
+    private Workload loadWorkload() {
+        if (queryLog != null) {
+            List<Query> queries = Optimizer.readQueries(fs, queryLog);
+            System.out.println("INFO: Building for " + queries.size() + " queries of " + queryLog);
+            if (!queries.isEmpty()) {
+                return Workload.fromQueries(queries);
+            }
+        } else if (attributeWeights != null) {
+            double[] weights = new double[tableInfo.getTypeArray().length];
+            for (String w : attributeWeights.split(",")) {
+                String[] parts = w.split(":");
+                int attr = tableInfo.schema.getAttributeId(parts[0]);
+                if (attr == -1) {
+                    System.out.println("WARN: Unknown attribute " + parts[0]);
+                    continue;
+                }
+                weights[attr] = Double.parseDouble(parts[1]);
+            }
+            return Workload.fromWeights(weights);
+        }
+
+        System.out.println("WARN: No workload given, building a uniform tree");
+        return null;
+    }
+
     /**
      * Creates a single kd tree. As a side effect reads all the sample files
      * from the samples dir and writes it out WORKING_DIR/sample
@@ -334,6 +372,7 @@ public class RunIndexBuilder {
                 getHDFSWriter(
                         cfg.getHDFS_WORKING_DIR() + "/" + tableName + dataDir,
                         cfg.getHDFS_REPLICATION_FACTOR()));
+        IndexVersions.writeBaseManifest(fs, tableHDFSDir, cfg.getHDFS_REPLICATION_FACTOR());
 
         long endTime = System.currentTimeMillis();
         System.out.println("Time Taken: " + (endTime - startTime) + "ms");
@@ -355,6 +394,7 @@ public class RunIndexBuilder {
                 tableHDFSDir,
                 cfg
         );
+        IndexVersions.writeBaseManifest(fs, tableHDFSDir, cfg.getHDFS_REPLICATION_FACTOR());
 
         long endTime = System.currentTimeMillis();
         System.out.println("Time Taken: " + (endTime - startTime) + "ms");
@@ -393,6 +433,14 @@ public class RunIndexBuilder {
                     joinAttributeDepth = Integer.parseInt(args[counter + 1]);
                     counter += 2;
                     break;
+                case "--queryLog":
+                    queryLog = args[counter + 1];
+                    counter += 2;
+                    break;
+                case "--attributeWeights":
+                    attributeWeights = args[counter + 1];
+                    counter += 2;
+                    break;
                 default:
                     // Something we don't use
                     counter += 2;
@@ -0,0 +1,194 @@
+package core.adapt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import core.adapt.CompiledPredicate.DoubleKey;
+import core.adapt.CompiledPredicate.IntKey;
+import core.adapt.CompiledPredicate.KeyIntervals;
+import core.adapt.CompiledPredicate.KeyRange;
+import core.adapt.CompiledPredicate.StringRange;
+import core.common.key.RawIndexKey;
+
+public class CompiledPredicateTest extends TestCase {
+
+	private static final long MIN = Long.MIN_VALUE;
+	private static final long MAX = Long.MAX_VALUE;
+
+	private List<Predicate> parse(String... predicates) {
+		List<Predicate> ps = new ArrayList<Predicate>();
+		for (String p : predicates) {
+			ps.add(new Predicate(p));
+		}
+		return ps;
+	}
+
+	private CompiledPredicate compile(String... predicates) {
+		List<Predicate> ps = parse(predicates);
+		CompiledPredicate[] compiled = CompiledPredicate.compile(ps.toArray(new Predicate[ps.size()]));
+		assertEquals(1, compiled.length);
+		return compiled[0];
+	}
+
+	private boolean accepts(CompiledPredicate p, String value) {
+		RawIndexKey key = new RawIndexKey('|');
+		key.setBytes(value.getBytes());
+		return p.isRelevant(key);
+	}
+
+	private void assertIntervals(long[] lows, long[] highs, String... predicates) {
+		long[][] intervals = CompiledPredicate.getIntervals(new IntKey(), parse(predicates));
+		assertEquals(lows.length, intervals[0].length);
+		for (int i = 0; i < lows.length; i++) {
+			assertEquals(lows[i], intervals[0][i]);
+			assertEquals(highs[i], intervals[1][i]);
+		}
+	}
+
+	public void testComparisonIntervals() {
+		assertIntervals(new long[] { 6 }, new long[] { MAX }, "0:INT:5:>");
+		assertIntervals(new long[] { 5 }, new long[] { MAX }, "0:INT:5:>=");
+		assertIntervals(new long[] { MIN }, new long[] { 4 }, "0:INT:5:<");
+		assertIntervals(new long[] { MIN }, new long[] { 5 }, "0:INT:5:<=");
+		assertIntervals(new long[] { 5 }, new long[] { 5 }, "0:INT:5:=");
+	}
+
+	public void testUnion() {
+		// Duplicates go, adjacent and overlapping ranges merge.
+		assertIntervals(new long[] { 1, 5 }, new long[] { 3, 5 }, "0:INT:3,1,2,5,2:IN");
+		assertIntervals(new long[] { 1, 10 }, new long[] { 6, MAX },
+				"0:INT:4,6,1,3,10,:OR");
+		assertIntervals(new long[] { MIN }, new long[] { MAX }, "0:INT:,3,2,:OR");
+		// An empty range is dropped.
+		assertIntervals(new long[0], new long[0], "0:INT:5,4:BETWEEN");
+	}
+
+	public void testIntersect() {
+		assertIntervals(new long[] { 3 }, new long[] { 7 }, "0:INT:2:>", "0:INT:7:<=");
+		assertIntervals(new long[] { 2, 5 }, new long[] { 3, 6 }, "0:INT:1,3,5,9:OR",
+				"0:INT:2,6:BETWEEN");
+		assertIntervals(new long[] { 4 }, new long[] { 4 }, "0:INT:1,4,8:IN", "0:INT:2,6:BETWEEN");
+		assertIntervals(new long[0], new long[0], "0:INT:5:>", "0:INT:5:<");
+	}
+
+	public void testBoundsDoNotOverflow() {
+		assertIntervals(new long[0], new long[0], "0:INT:" + Integer.MAX_VALUE + ":>",
+				"0:INT:" + Integer.MAX_VALUE + ":<=");
+		long[][] intervals = CompiledPredicate.getIntervals(new CompiledPredicate.LongKey(),
+				parse("0:LONG:" + MAX + ":>", "0:LONG:" + MIN + ":<"));
+		assertEquals(0, intervals[0].length);
+	}
+
+	public void testDoubleKeyPreservesOrder() {
+		double[] values = { Double.NEGATIVE_INFINITY, -1e300, -2.5, -1.0, -Double.MIN_VALUE,
+				-0.0, 0.0, Double.MIN_VALUE, 1.0, 2.5, 1e300, Double.POSITIVE_INFINITY };
+		for (int i = 0; i < values.length; i++) {
+			long key = DoubleKey.toKey(values[i]);
+			assertEquals(Double.doubleToLongBits(values[i]),
+					Double.doubleToLongBits(DoubleKey.toDouble(key)));
+			if (i > 0) {
+				assertTrue(values[i] + " after " + values[i - 1],
+						DoubleKey.toKey(values[i - 1]) < key);
+			}
+		}
+	}
+
+	public void testDoubleRange() {
+		CompiledPredicate p = compile("0:DOUBLE:-1.5:>=", "0:DOUBLE:2.25:<");
+		assertTrue(p instanceof KeyRange);
+		assertTrue(accepts(p, "-1.5"));
+		assertTrue(accepts(p, "0"));
+		assertTrue(accepts(p, "2.2499"));
+		assertFalse(accepts(p, "-1.5001"));
+		assertFalse(accepts(p, "2.25"));
+	}
+
+	public void testKeyIntervalsIntersects() {
+		CompiledPredicate p = compile("0:INT:1,3,7,9,15,:OR");
+		assertTrue(p instanceof KeyIntervals);
+
+		// Subtrees are (from, to].
+		assertTrue(p.intersects(null, 1));
+		assertFalse(p.intersects(null, 0));
+		assertTrue(p.intersects(3, null));
+		assertFalse(p.intersects(3, 6));
+		assertTrue(p.intersects(3, 7));
+		assertTrue(p.intersects(6, 7));
+		assertFalse(p.intersects(9, 14));
+		assertTrue(p.intersects(100, 200));
+		assertTrue(p.intersectsLeft(1));
+		assertTrue(p.intersectsRight(14));
+
+		CompiledPredicate none = compile("0:INT:5,9:IN", "0:INT:6,8:BETWEEN");
+		assertFalse(none.intersects(null, null));
+	}
+
+	public void testKeyIntervalsContains() {
+		CompiledPredicate p = compile("0:INT:1,3,7,9:OR");
+		assertTrue(p.contains(1, 3));
+		assertTrue(p.contains(7, 7));
+		assertTrue(p.contains(8, 9));
+		assertFalse(p.contains(0, 3));
+		assertFalse(p.contains(2, 4));
+		// Both ends accepted, not what is between.
+		assertFalse(p.contains(3, 7));
+		assertFalse(p.contains(4, 6));
+		assertFalse(p.contains(9, 10));
+	}
+
+	public void testKeyIntervalsIsRelevant() {
+		CompiledPredicate p = compile("0:INT:9,3,5:IN");
+		assertTrue(accepts(p, "3"));
+		assertTrue(accepts(p, "9"));
+		assertFalse(accepts(p, "4"));
+		assertFalse(accepts(p, "10"));
+		assertFalse(accepts(p, "-3"));
+	}
+
+	public void testStringRangeInclusivity() {
+		CompiledPredicate p = compile("0:STRING:b:>", "0:STRING:d:<=");
+		assertTrue(p instanceof StringRange);
+		assertFalse(accepts(p, "b"));
+		assertTrue(accepts(p, "b0"));
+		assertTrue(accepts(p, "d"));
+		assertFalse(accepts(p, "d0"));
+
+		p = compile("0:STRING:b:>=", "0:STRING:d:<");
+		assertTrue(accepts(p, "b"));
+		assertFalse(accepts(p, "d"));
+
+		// The tighter bound wins, exclusive over inclusive.
+		p = compile("0:STRING:b:>=", "0:STRING:b:>", "0:STRING:d:<", "0:STRING:d:<=");
+		assertFalse(accepts(p, "b"));
+		assertFalse(accepts(p, "d"));
+		assertTrue(accepts(p, "c"));
+	}
+
+	public void testStringRangeIntersects() {
+		CompiledPredicate p = compile("0:STRING:b:>=", "0:STRING:d:<");
+		assertTrue(p.intersects(null, "b"));
+		assertFalse(p.intersects(null, "a"));
+		assertTrue(p.intersects("c", null));
+		// Only strings >= d are right of d.
+		assertFalse(p.intersects("d", null));
+
+		p = compile("0:STRING:b:>");
+		assertFalse(p.intersects(null, "b"));
+		assertTrue(p.intersects(null, "b0"));
+	}
+
+	public void testStrings() {
+		CompiledPredicate in = compile("0:STRING:x,b:IN");
+		assertTrue(accepts(in, "b"));
+		assertFalse(accepts(in, "c"));
+		assertTrue(in.intersects("a", "b"));
+		assertFalse(in.intersects("b", "w"));
+
+		CompiledPredicate or = compile("0:STRING:a,b,m,n:OR", "0:STRING:b:>=");
+		assertTrue(accepts(or, "b"));
+		assertTrue(accepts(or, "m"));
+		assertFalse(accepts(or, "a"));
+		assertFalse(accepts(or, "c"));
+	}
+}
@@ -0,0 +1,204 @@
+package core.adapt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import core.utils.HDFSUtils;
+
+public class IndexVersionsTest extends TestCase {
+
+	private FileSystem fs;
+	private String tableDir;
+	private long leaseTtl;
+	private long pendingTtl;
+
+	@Override
+	public void setUp() throws Exception {
+		fs = FileSystem.getLocal(new Configuration());
+		File dir = new File(System.getProperty("java.io.tmpdir"), "versions-"
+				+ UUID.randomUUID().toString());
+		tableDir = fs.makeQualified(new Path(dir.getAbsolutePath())).toString();
+		leaseTtl = IndexVersions.leaseTtl;
+		pendingTtl = IndexVersions.pendingTtl;
+
+		// Version 0: one file per bucket, written by the upfront partitioner.
+		for (int id = 0; id < 3; id++) {
+			writeFile(tableDir + "/data/" + id, "bucket" + id);
+		}
+		writeFile(tableDir + "/index", "index0");
+		IndexVersions.writeBaseManifest(fs, tableDir, (short) 1);
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		IndexVersions.leaseTtl = leaseTtl;
+		IndexVersions.pendingTtl = pendingTtl;
+		fs.delete(new Path(tableDir), true);
+	}
+
+	private void writeFile(String path, String content) {
+		byte[] bytes = content.getBytes();
+		HDFSUtils.writeFile(fs, path, (short) 1, bytes, 0, bytes.length, false);
+	}
+
+	private boolean exists(String path) throws Exception {
+		return fs.exists(new Path(path));
+	}
+
+	private String segment(int bucket, String name) {
+		String path = tableDir + "/data/" + bucket + "/" + name;
+		writeFile(path, "segment" + bucket);
+		return path;
+	}
+
+	private List<String> getPaths(long version, int bucket) {
+		List<String> paths = new ArrayList<String>();
+		for (String[] entry : IndexVersions.getBucketFiles(fs, tableDir, version).get(bucket)) {
+			paths.add(entry[1]);
+		}
+		return paths;
+	}
+
+	/**
+	 * Commits a version of the buckets, the new one written by a task as a
+	 * single segment.
+	 */
+	private long commitVersion(int[] bucketIds, int newBucket) {
+		long v = IndexVersions.createVersion(fs, tableDir, (short) 1, "index".getBytes());
+		List<String[]> segments = new ArrayList<String[]>();
+		segments.add(new String[] { "" + newBucket, segment(newBucket, "task0-0"), "8" });
+		assertTrue(IndexVersions.publishSegments(fs, tableDir, v, "task0", segments, (short) 1));
+		IndexVersions.commit(fs, tableDir, v, bucketIds, (short) 1);
+		return v;
+	}
+
+	public void testCreateVersionIsPendingTillCommitted() {
+		long v1 = IndexVersions.createVersion(fs, tableDir, (short) 1, "index1".getBytes());
+		long v2 = IndexVersions.createVersion(fs, tableDir, (short) 1, "index2".getBytes());
+		assertEquals(1, v1);
+		assertEquals(2, v2);
+		assertEquals(Arrays.asList(1L, 2L), IndexVersions.getVersions(fs, tableDir));
+		assertEquals(0, IndexVersions.getCurrentVersion(fs, tableDir));
+		assertTrue(IndexVersions.hasPendingVersion(fs, tableDir));
+
+		IndexVersions.commit(fs, tableDir, v1, new int[] { 0, 1, 2 }, (short) 1);
+		assertEquals(1, IndexVersions.getCurrentVersion(fs, tableDir));
+		assertTrue(IndexVersions.hasPendingVersion(fs, tableDir));
+		assertEquals("index2", new String(HDFSUtils.readFile(fs,
+				IndexVersions.getIndexPath(tableDir, v2))));
+	}
+
+	public void testCommitMergesSegmentsWithCurrentManifest() {
+		long v = commitVersion(new int[] { 0, 2, 3 }, 3);
+		assertEquals(v, IndexVersions.getCurrentVersion(fs, tableDir));
+
+		ArrayListMultimap<Integer, String[]> files = IndexVersions.getBucketFiles(fs, tableDir, v);
+		assertEquals(3, files.size());
+		assertEquals(Arrays.asList(tableDir + "/data/0"), getPaths(v, 0));
+		assertEquals(Arrays.asList(tableDir + "/data/2"), getPaths(v, 2));
+		assertEquals(Arrays.asList(tableDir + "/data/3/task0-0"), getPaths(v, 3));
+		assertFalse(files.containsKey(1));
+
+		// Version 0 is untouched.
+		assertEquals(Arrays.asList(tableDir + "/data/1"), getPaths(0, 1));
+	}
+
+	public void testPublishSegmentsFirstAttemptWins() {
+		long v = IndexVersions.createVersion(fs, tableDir, (short) 1, "index".getBytes());
+		List<String[]> first = new ArrayList<String[]>();
+		first.add(new String[] { "3", segment(3, "first"), "8" });
+		List<String[]> second = new ArrayList<String[]>();
+		second.add(new String[] { "3", segment(3, "second"), "8" });
+
+		assertTrue(IndexVersions.publishSegments(fs, tableDir, v, "task0", first, (short) 1));
+		assertFalse(IndexVersions.publishSegments(fs, tableDir, v, "task0", second, (short) 1));
+		IndexVersions.commit(fs, tableDir, v, new int[] { 0, 2, 3 }, (short) 1);
+
+		assertEquals(Arrays.asList(tableDir + "/data/3/first"), getPaths(v, 3));
+	}
+
+	public void testCleanKeepsFilesOfPinnedVersions() throws Exception {
+		// Every unreferenced file is old enough to go.
+		IndexVersions.pendingTtl = -1;
+
+		String lease = IndexVersions.pin(fs, tableDir, 0);
+		long v1 = commitVersion(new int[] { 0, 2, 3 }, 3);
+		IndexVersions.clean(fs, tableDir);
+		// Still read by the holder of the lease on version 0.
+		assertTrue(exists(tableDir + "/data/1"));
+
+		IndexVersions.release(fs, lease);
+		IndexVersions.clean(fs, tableDir);
+		assertFalse(exists(tableDir + "/data/1"));
+		assertTrue(exists(tableDir + "/data/0"));
+		assertTrue(exists(tableDir + "/data/3/task0-0"));
+
+		// Versions older than the current one go once unpinned.
+		lease = IndexVersions.pin(fs, tableDir, v1);
+		long v2 = commitVersion(new int[] { 0, 2, 4 }, 4);
+		IndexVersions.clean(fs, tableDir);
+		assertTrue(exists(IndexVersions.getVersionDir(tableDir, v1)));
+		assertTrue(exists(tableDir + "/data/3/task0-0"));
+
+		IndexVersions.release(fs, lease);
+		IndexVersions.clean(fs, tableDir);
+		assertFalse(exists(IndexVersions.getVersionDir(tableDir, v1)));
+		assertFalse(exists(tableDir + "/data/3/task0-0"));
+		assertTrue(exists(tableDir + "/data/4/task0-0"));
+		assertEquals(v2, IndexVersions.getCurrentVersion(fs, tableDir));
+	}
+
+	public void testCleanKeepsPendingVersions() throws Exception {
+		commitVersion(new int[] { 0, 2, 3 }, 3);
+		long pending = IndexVersions.createVersion(fs, tableDir, (short) 1, "index".getBytes());
+		segment(4, "pending");
+
+		IndexVersions.clean(fs, tableDir);
+		assertTrue(exists(IndexVersions.getVersionDir(tableDir, pending)));
+		assertTrue(exists(tableDir + "/data/4/pending"));
+	}
+
+	public void testCleanDropsExpiredLeases() throws Exception {
+		IndexVersions.pendingTtl = -1;
+		IndexVersions.leaseTtl = -1;
+
+		IndexVersions.pin(fs, tableDir, 0);
+		commitVersion(new int[] { 0, 2, 3 }, 3);
+		IndexVersions.clean(fs, tableDir);
+		assertFalse(exists(tableDir + "/data/1"));
+	}
+
+	public void testReleaseHeldOnlyReleasesEarlierLeases() throws Exception {
+		String early = IndexVersions.pin(fs, tableDir, 0);
+		String late = IndexVersions.pin(fs, tableDir, 0);
+		IndexVersions.releaseAfterJobs(fs, early, 100);
+		IndexVersions.releaseAfterJobs(fs, late, 200);
+
+		IndexVersions.releaseHeld(200);
+		assertFalse(exists(early));
+		assertTrue(exists(late));
+
+		IndexVersions.releaseHeld(201);
+		assertFalse(exists(late));
+	}
+
+	public void testPinCurrentPinsTheCurrentVersion() throws Exception {
+		String lease = IndexVersions.pinCurrent(fs, tableDir);
+		assertEquals(0, IndexVersions.getLeaseVersion(lease));
+		long v1 = commitVersion(new int[] { 0, 2, 3 }, 3);
+		lease = IndexVersions.pinCurrent(fs, tableDir);
+		assertEquals(v1, IndexVersions.getLeaseVersion(lease));
+		assertTrue(exists(lease));
+	}
+}
@@ -0,0 +1,137 @@
+package core.adapt;
+
+import junit.framework.TestCase;
+import core.adapt.Predicate.PREDTYPE;
+import core.common.key.RawIndexKey;
+import core.utils.TypeUtils;
+import core.utils.TypeUtils.SimpleDate;
+
+public class PredicateTest extends TestCase {
+
+	private Predicate parse(String predicate) {
+		return new Query("t|" + predicate + "|*").getPredicates()[0];
+	}
+
+	/**
+	 * Whether the predicate accepts the value, checking that the compiled
+	 * predicate agrees.
+	 */
+	private boolean accepts(String predicate, String value) {
+		Predicate p = parse(predicate);
+		RawIndexKey key = new RawIndexKey('|');
+		key.setBytes(value.getBytes());
+		boolean accepted = p.isRelevant(TypeUtils.deserializeValue(p.type, value));
+		assertEquals(accepted, CompiledPredicate.compile(new Predicate[] { p })[0]
+				.isRelevant(key));
+		return accepted;
+	}
+
+	private void assertParsed(String predicate, PREDTYPE predtype, Object value) {
+		Predicate p = parse(predicate);
+		assertEquals(predtype, p.predtype);
+		assertEquals(value, p.value);
+	}
+
+	public void testInt() {
+		assertParsed("0:INT:5:>=", PREDTYPE.GT, 4);
+		assertParsed("0:INT:5:<", PREDTYPE.LEQ, 4);
+		assertTrue(accepts("0:INT:5:>=", "5"));
+		assertFalse(accepts("0:INT:5:>=", "4"));
+		assertTrue(accepts("0:INT:5:<", "4"));
+		assertFalse(accepts("0:INT:5:<", "5"));
+
+		assertEquals(4, parse("0:INT:5:>=").getHelpfulCutpoint());
+		assertEquals(4, parse("0:INT:5:<").getHelpfulCutpoint());
+		assertEquals(5, parse("0:INT:5:>").getHelpfulCutpoint());
+
+		// Nothing is below the smallest int.
+		assertParsed("0:INT:" + Integer.MIN_VALUE + ":>=", PREDTYPE.GEQ, Integer.MIN_VALUE);
+		assertTrue(accepts("0:INT:" + Integer.MIN_VALUE + ":>=", "" + Integer.MIN_VALUE));
+	}
+
+	public void testSameRangeSameString() {
+		assertEquals(new Query("t|0:INT:5:>=;1:DATE:1995-03-04:<|*").getNormalizedString(),
+				new Query("t|1:DATE:1995-03-03:<=;0:INT:4:>|*").getNormalizedString());
+	}
+
+	public void testLong() {
+		assertParsed("0:LONG:5:<", PREDTYPE.LEQ, 4L);
+		assertTrue(accepts("0:LONG:5:>=", "5"));
+		assertFalse(accepts("0:LONG:5:>=", "4"));
+		assertTrue(accepts("0:LONG:5:<", "4"));
+		assertFalse(accepts("0:LONG:5:<", "5"));
+
+		assertEquals(4L, parse("0:LONG:5:>=").getHelpfulCutpoint());
+		assertEquals(4L, parse("0:LONG:5:<").getHelpfulCutpoint());
+	}
+
+	public void testDouble() {
+		assertParsed("0:DOUBLE:5.0:>=", PREDTYPE.GEQ, 5.0);
+		assertParsed("0:DOUBLE:5.0:<", PREDTYPE.LT, 5.0);
+		assertTrue(accepts("0:DOUBLE:5.0:>=", "5.0"));
+		assertFalse(accepts("0:DOUBLE:5.0:>=", "4.9995"));
+		assertTrue(accepts("0:DOUBLE:5.0:<", "4.9995"));
+		assertFalse(accepts("0:DOUBLE:5.0:<", "5.0"));
+
+		assertEquals(5.0, parse("0:DOUBLE:5.0:<").getHelpfulCutpoint());
+	}
+
+	public void testDate() {
+		assertParsed("0:DATE:1995-03-01:>=", PREDTYPE.GT, new SimpleDate(1995, 2, 28));
+		assertTrue(accepts("0:DATE:1995-03-04:>=", "1995-03-04"));
+		assertFalse(accepts("0:DATE:1995-03-04:>=", "1995-03-03"));
+		assertTrue(accepts("0:DATE:1995-03-04:<", "1995-03-03"));
+		assertFalse(accepts("0:DATE:1995-03-04:<", "1995-03-04"));
+
+		assertEquals(new SimpleDate(1995, 3, 3), parse("0:DATE:1995-03-04:>=")
+				.getHelpfulCutpoint());
+		assertEquals(new SimpleDate(1995, 3, 3), parse("0:DATE:1995-03-04:<")
+				.getHelpfulCutpoint());
+	}
+
+	public void testString() {
+		assertParsed("0:STRING:b:>=", PREDTYPE.GEQ, "b");
+		assertParsed("0:STRING:b:<", PREDTYPE.LT, "b");
+		assertTrue(accepts("0:STRING:b:>=", "b"));
+		assertFalse(accepts("0:STRING:b:>=", "a"));
+		assertTrue(accepts("0:STRING:b:<", "a"));
+		assertFalse(accepts("0:STRING:b:<", "b"));
+
+		assertEquals("b", parse("0:STRING:b:>=").getHelpfulCutpoint());
+		assertEquals("b", parse("0:STRING:b:<").getHelpfulCutpoint());
+	}
+
+	public void testMultiValuedRoundTrip() {
+		String[] predicates = { "0:INT:3,-1,7:IN", "1:DATE:1995-01-01,1995-12-31:BETWEEN",
+				"2:DOUBLE:,1.5,2.5,3.5,4.5,:OR", "3:STRING:a,b c,d:IN", "4:LONG:5,9:OR" };
+		for (String predicate : predicates) {
+			Predicate p = new Predicate(predicate);
+			assertEquals(predicate, p.toString());
+			assertEquals(predicate, new Predicate(p.toString()).toString());
+		}
+
+		Object[] bounds = (Object[]) new Predicate(predicates[2]).value;
+		assertEquals(6, bounds.length);
+		assertNull(bounds[0]);
+		assertEquals(1.5, bounds[1]);
+		assertNull(bounds[5]);
+
+		Object[] values = (Object[]) new Predicate(predicates[0]).value;
+		assertEquals(3, values[0]);
+		assertEquals(-1, values[1]);
+	}
+
+	public void testMultiValuedIsRelevant() {
+		Predicate or = new Predicate("0:INT:,1,5,7:OR");
+		assertTrue(or.isRelevant(-100));
+		assertTrue(or.isRelevant(1));
+		assertFalse(or.isRelevant(2));
+		assertTrue(or.isRelevant(7));
+		assertFalse(or.isRelevant(8));
+
+		Predicate between = new Predicate("0:DATE:1995-01-01,1995-12-31:BETWEEN");
+		assertTrue(between.isRelevant(new SimpleDate(1995, 1, 1)));
+		assertTrue(between.isRelevant(new SimpleDate(1995, 12, 31)));
+		assertFalse(between.isRelevant(new SimpleDate(1996, 1, 1)));
+	}
+}
@@ -0,0 +1,72 @@
+package core.adapt.iterator;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import core.adapt.Aggregate;
+import core.utils.TypeUtils.SimpleDate;
+import core.utils.TypeUtils.TYPE;
+
+public class AggregatorTest extends TestCase {
+
+	private Aggregate[] aggregates;
+	private String[] records = { "3|a|1.5|1995-03-04", "-2|b|4.0|1994-12-31",
+			"7|a|0.5|1996-01-01", "1|b|2.0|1995-06-30" };
+
+	@Override
+	public void setUp() {
+		aggregates = new Aggregate[] { Aggregate.count(),
+				new Aggregate("SUM:0:INT"), new Aggregate("AVG:2:DOUBLE"),
+				new Aggregate("MIN:3:DATE"), new Aggregate("MAX:0:INT") };
+	}
+
+	private RecordBatch getBatch(int from, int to) {
+		RecordBatch batch = new RecordBatch('|', 8);
+		for (int i = from; i < to; i++) {
+			batch.add(records[i].getBytes(), 0, records[i].length());
+		}
+		batch.selectAll();
+		return batch;
+	}
+
+	public void testMergedPartials() {
+		Aggregator merged = new Aggregator(aggregates, new int[0], new TYPE[0], '|');
+		for (int[] range : new int[][] { { 0, 1 }, { 1, 4 }, { 4, 4 } }) {
+			Aggregator scan = new Aggregator(aggregates, new int[0], new TYPE[0], '|');
+			scan.add(getBatch(range[0], range[1]));
+			for (String partial : scan.getPartials()) {
+				merged.merge(partial);
+			}
+		}
+
+		List<Object[]> results = merged.getResults();
+		assertEquals(1, results.size());
+		Object[] row = results.get(0);
+		assertEquals(4L, row[0]);
+		assertEquals(9L, row[1]);
+		assertEquals(2.0, row[2]);
+		assertEquals(new SimpleDate(1994, 12, 31), row[3]);
+		assertEquals(7, row[4]);
+	}
+
+	public void testGroupBy() {
+		Aggregator aggregator = new Aggregator(aggregates, new int[] { 1 },
+				new TYPE[] { TYPE.STRING }, '|');
+		aggregator.add(getBatch(0, 4));
+
+		List<Object[]> results = aggregator.getResults();
+		assertEquals(2, results.size());
+		for (Object[] row : results) {
+			assertEquals(2L, row[1]);
+			assertEquals(row[0].equals("a") ? 10L : -1L, row[2]);
+		}
+	}
+
+	public void testNoRecords() {
+		Aggregator aggregator = new Aggregator(aggregates, new int[0], new TYPE[0], '|');
+		Object[] row = aggregator.getResults().get(0);
+		assertEquals(0L, row[0]);
+		assertNull(row[1]);
+		assertNull(row[3]);
+	}
+}
@@ -0,0 +1,78 @@
+package core.adapt.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import core.adapt.Query;
+import core.adapt.opt.SampleEstimator.Estimate;
+import core.common.index.MDIndex.Bucket;
+import core.common.index.RNode;
+import core.common.index.RobustTree;
+import core.common.key.ParsedTupleList;
+import core.utils.TypeUtils.TYPE;
+
+public class SampleEstimatorTest extends TestCase {
+
+	private RobustTree tree;
+	private Query query = new Query("t|0:INT:0:>|*|COUNT;SUM:1:INT");
+
+	private RNode bucket(int id, int numTuples, int[][] sample) {
+		List<Object[]> tuples = new ArrayList<Object[]>();
+		for (int[] t : sample) {
+			tuples.add(new Object[] { t[0], t[1] });
+		}
+		RNode n = new RNode();
+		n.bucket = new Bucket(id);
+		n.bucket.setSample(new ParsedTupleList(tuples, new TYPE[] { TYPE.INT, TYPE.INT }));
+		n.bucket.setEstimatedNumTuples(numTuples);
+		return n;
+	}
+
+	/**
+	 * Buckets 0 and 1, split at 10 on attribute 0, the second with the
+	 * given sample.
+	 */
+	private void buildTree(int[][] rightSample) {
+		RNode root = new RNode();
+		root.attribute = 0;
+		root.type = TYPE.INT;
+		root.value = 10;
+		root.leftChild = bucket(0, 1000, new int[][] { { 1, 5 }, { 2, 7 }, { 3, 6 }, { 4, 9 } });
+		root.rightChild = bucket(1, 1000, rightSample);
+		root.leftChild.parent = root;
+		root.rightChild.parent = root;
+		tree = new RobustTree();
+		tree.setRoot(root);
+	}
+
+	public void testSampledStrataBoundTheError() {
+		buildTree(new int[][] { { 11, 1 }, { 12, 3 } });
+		SampleEstimator estimator = new SampleEstimator(tree, query);
+		Estimate[] estimates = estimator.estimate();
+		assertEquals(2000.0, estimates[0].value, 1e-9);
+		assertFalse(Double.isInfinite(estimates[1].error));
+		assertTrue(estimates[1].error > 0);
+	}
+
+	public void testTinySampleIsUnboundedTillRead() {
+		buildTree(new int[][] { { 11, 1 } });
+		SampleEstimator estimator = new SampleEstimator(tree, query);
+		for (Estimate e : estimator.estimate()) {
+			assertEquals(Double.POSITIVE_INFINITY, e.getRelativeError());
+		}
+		// Read first.
+		assertEquals(1, estimator.getBucketsToRead()[0]);
+
+		estimator.addExact(new int[] { 1 }, new Object[] { 900L, 1800L });
+		Estimate[] estimates = estimator.estimate();
+		assertEquals(1900.0, estimates[0].value, 1e-9);
+		assertFalse(Double.isInfinite(estimates[0].error));
+	}
+
+	public void testEmptySampleIsUnbounded() {
+		buildTree(new int[0][]);
+		Estimate[] estimates = new SampleEstimator(tree, query).estimate();
+		assertEquals(Double.POSITIVE_INFINITY, estimates[0].getRelativeError());
+	}
+}
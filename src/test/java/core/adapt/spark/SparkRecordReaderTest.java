@@ -0,0 +1,88 @@
+package core.adapt.spark;
+
+import java.io.File;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import core.adapt.Aggregate;
+import core.adapt.Query;
+import core.adapt.ZoneMap;
+import core.adapt.iterator.Aggregator;
+import core.adapt.iterator.PostFilterIterator;
+import core.adapt.iterator.RecordBatch;
+import core.adapt.iterator.RepartitionIterator;
+import core.utils.HDFSUtils;
+import core.utils.TypeUtils.TYPE;
+
+public class SparkRecordReaderTest extends TestCase {
+
+	private FileSystem fs;
+	private String workingDir;
+	private Path filePath;
+	private Query query;
+
+	@Override
+	public void setUp() throws Exception {
+		fs = FileSystem.getLocal(new Configuration());
+		File dir = new File(System.getProperty("java.io.tmpdir"), "reader-"
+				+ UUID.randomUUID().toString());
+		workingDir = fs.makeQualified(new Path(dir.getAbsolutePath())).toString();
+		String tableDir = workingDir + "/t";
+
+		// A partition whose zone map shows all its records pass.
+		String[] records = { "3|a", "5|b" };
+		filePath = new Path(tableDir + "/data/0");
+		byte[] bytes = (records[0] + "\n" + records[1] + "\n").getBytes();
+		HDFSUtils.writeFile(fs, filePath.toString(), (short) 1, bytes, 0, bytes.length, false);
+
+		ZoneMap z = new ZoneMap(fs.getFileStatus(filePath), new int[] { 0 },
+				new TYPE[] { TYPE.INT });
+		RecordBatch batch = new RecordBatch('|', 8);
+		for (String r : records) {
+			batch.add(r.getBytes(), 0, r.length());
+		}
+		z.add(batch);
+		z.write(fs, tableDir, filePath.toString(), (short) 1);
+
+		query = new Query("t|0:INT:0:>|*|COUNT");
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		fs.delete(new Path(workingDir), true);
+	}
+
+	private SparkRecordReader getReader(Query q, boolean repartition) {
+		SparkRecordReader reader = new SparkRecordReader();
+		reader.conf = new Configuration();
+		reader.conf.set(SparkQueryConf.WORKING_DIR, workingDir);
+		reader.iterator = repartition ? new RepartitionIterator(q) : new PostFilterIterator(q);
+		reader.aggregator = new Aggregator(q.getAggregates(), new int[0], new TYPE[0], '|');
+		reader.zoneMapAttributes = new int[] { 0 };
+		reader.zoneMapTypes = new TYPE[] { TYPE.INT };
+		return reader;
+	}
+
+	public void testAnswersFromZoneMap() throws Exception {
+		SparkRecordReader reader = getReader(query, false);
+		assertTrue(reader.answerFromZoneMap(fs, filePath));
+		assertEquals(2L, reader.aggregator.getResults().get(0)[0]);
+	}
+
+	public void testRepartitioningReadsEveryPartition() throws Exception {
+		SparkRecordReader reader = getReader(query, true);
+		// The records must reach the new buckets, the partition is read.
+		assertFalse(reader.answerFromZoneMap(fs, filePath));
+		assertEquals(0L, reader.aggregator.getResults().get(0)[0]);
+	}
+
+	public void testNotContainedIsRead() throws Exception {
+		Query q = new Query("t|0:INT:4:>|*|COUNT");
+		assertFalse(getReader(q, false).answerFromZoneMap(fs, filePath));
+	}
+}
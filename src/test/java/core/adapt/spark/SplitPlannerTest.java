@@ -0,0 +1,173 @@
+package core.adapt.spark;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import core.adapt.AccessMethod.PartitionSplit;
+import core.adapt.Query;
+import core.adapt.iterator.MultiQueryIterator;
+import core.adapt.iterator.PostFilterIterator;
+import core.adapt.iterator.RepartitionIterator;
+
+public class SplitPlannerTest extends TestCase {
+
+	private Map<Integer, Long> sizes;
+	private Map<Integer, String> hosts;
+
+	@Override
+	public void setUp() {
+		sizes = new HashMap<Integer, Long>();
+		hosts = new HashMap<Integer, String>();
+		for (int i = 0; i < 20; i++) {
+			sizes.put(i, 10L);
+		}
+		// One skewed bucket.
+		sizes.put(7, 100L);
+	}
+
+	public void testEveryBucketOnce() {
+		SplitPlanner planner = new SplitPlanner(sizes, hosts);
+		PartitionSplit[] splits = planner.plan(new PartitionSplit[] {
+				new PartitionSplit(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+						new PostFilterIterator()),
+				new PartitionSplit(new int[] { 10, 11, 12, 13, 14, 15, 16, 17,
+						18, 19 }, new PostFilterIterator()) }, 4, 1000);
+
+		Set<Integer> seen = new HashSet<Integer>();
+		for (PartitionSplit split : splits) {
+			for (int id : split.getPartitions()) {
+				assertTrue(seen.add(id));
+			}
+		}
+		assertEquals(20, seen.size());
+		assertEquals(4, splits.length);
+	}
+
+	public void testSkewedBucketAlone() {
+		SplitPlanner planner = new SplitPlanner(sizes, hosts);
+		int[] ids = new int[20];
+		for (int i = 0; i < 20; i++) {
+			ids[i] = i;
+		}
+		List<int[]> packed = planner.pack(ids, 3, 1000);
+
+		assertEquals(3, packed.size());
+		for (int[] split : packed) {
+			long size = 0;
+			for (int id : split) {
+				size += sizes.get(id);
+			}
+			if (split[0] == 7) {
+				assertEquals(1, split.length);
+			} else {
+				assertTrue(size <= 100);
+			}
+		}
+	}
+
+	public void testNoSplitAboveMax() {
+		SplitPlanner planner = new SplitPlanner(sizes, hosts);
+		int[] ids = new int[20];
+		for (int i = 0; i < 20; i++) {
+			ids[i] = i;
+			hosts.put(i, "a");
+		}
+		// Too few splits for 290 bytes in splits of 60.
+		List<int[]> packed = planner.pack(ids, 3, 60);
+
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int[] split : packed) {
+			long size = 0;
+			for (int id : split) {
+				assertTrue(seen.add(id));
+				size += sizes.get(id);
+			}
+			if (split[0] == 7) {
+				assertEquals(1, split.length);
+			} else {
+				assertTrue(size <= 60);
+			}
+		}
+		assertEquals(20, seen.size());
+	}
+
+	public void testIteratorsNotMixed() {
+		SplitPlanner planner = new SplitPlanner(sizes, hosts);
+		PartitionSplit[] splits = planner.plan(new PartitionSplit[] {
+				new PartitionSplit(new int[] { 0, 1 }, new PostFilterIterator()),
+				new PartitionSplit(new int[] { 2, 3 }, new RepartitionIterator()) },
+				-1, 1000);
+
+		assertEquals(2, splits.length);
+		for (PartitionSplit split : splits) {
+			boolean repartition = split.getIterator() instanceof RepartitionIterator;
+			for (int id : split.getPartitions()) {
+				assertEquals(repartition, id >= 2);
+			}
+		}
+	}
+
+	public void testSharedQueriesNotMixed() {
+		Query q0 = new Query("t|0:INT:5:>");
+		Query q1 = new Query("t|1:INT:3:<=");
+		MultiQueryIterator both = new MultiQueryIterator(new int[] { 0, 1 },
+				new Query[] { q0, q1 });
+		SplitPlanner planner = new SplitPlanner(sizes, hosts);
+		PartitionSplit[] splits = planner.plan(new PartitionSplit[] {
+				new PartitionSplit(new int[] { 0, 1 }, new MultiQueryIterator(
+						new int[] { 0 }, new Query[] { q0 })),
+				new PartitionSplit(new int[] { 2, 3 }, both) }, -1, 1000);
+
+		assertEquals(2, splits.length);
+		for (PartitionSplit split : splits) {
+			for (int id : split.getPartitions()) {
+				assertEquals(split.getIterator() == both, id >= 2);
+			}
+		}
+	}
+
+	public void testBucketsKeptOnHost() {
+		for (int i = 0; i < 20; i++) {
+			sizes.put(i, 10L);
+			hosts.put(i, i % 2 == 0 ? "a" : "b");
+		}
+		SplitPlanner planner = new SplitPlanner(sizes, hosts);
+		int[] ids = new int[20];
+		for (int i = 0; i < 20; i++) {
+			ids[i] = i;
+		}
+
+		for (int[] split : planner.pack(ids, 2, 1000)) {
+			for (int id : split) {
+				assertEquals(hosts.get(split[0]), hosts.get(id));
+			}
+		}
+	}
+
+	public void testMostPromisingFirst() {
+		sizes.put(7, 10L);
+		Map<Integer, Double> priorities = new HashMap<Integer, Double>();
+		for (int i = 0; i < 20; i++) {
+			priorities.put(i, (double) (i * 7 % 20));
+		}
+		SplitPlanner planner = new SplitPlanner(sizes, hosts);
+		PartitionSplit[] splits = planner.planByPriority(new PartitionSplit[] {
+				new PartitionSplit(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9,
+						10, 11, 12, 13, 14, 15, 16, 17, 18, 19 },
+						new PostFilterIterator()) }, priorities, 4, 1000);
+
+		assertEquals(4, splits.length);
+		double last = Double.POSITIVE_INFINITY;
+		for (PartitionSplit split : splits) {
+			assertEquals(5, split.getPartitions().length);
+			for (int id : split.getPartitions()) {
+				assertTrue(priorities.get(id) < last);
+				last = priorities.get(id);
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package core.adapt.spark.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThan;
+import org.apache.spark.sql.sources.GreaterThanOrEqual;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.LessThanOrEqual;
+
+import core.adapt.CompiledPredicate;
+import core.adapt.Predicate;
+import core.common.globals.Schema;
+import core.common.globals.TableInfo;
+import core.common.key.RawIndexKey;
+
+public class AmoebaRelationTest extends TestCase {
+
+	private AmoebaRelation relation;
+
+	@Override
+	public void setUp() {
+		Schema schema = Schema.createSchema("id INT, flag BOOLEAN, comment VARCHAR, price DOUBLE, name STRING");
+		relation = new AmoebaRelation("t", new TableInfo("t", 0, '|', schema));
+	}
+
+	/**
+	 * Whether the predicates of the filter, which must all be handled,
+	 * accept the record.
+	 */
+	private boolean accepts(Filter filter, String record) {
+		List<Predicate> ps = new ArrayList<Predicate>();
+		assertTrue(relation.translate(filter, ps));
+		RawIndexKey key = new RawIndexKey('|');
+		key.setBytes(record.getBytes());
+		for (CompiledPredicate p : CompiledPredicate.compile(ps.toArray(new Predicate[ps.size()]))) {
+			if (!p.isRelevant(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void testBooleanEquality() {
+		Filter f = new EqualTo("flag", true);
+		assertTrue(accepts(f, "1|true|a"));
+		assertFalse(accepts(f, "1|false|a"));
+		assertTrue(accepts(new In("flag", new Object[] { false }), "1|false|a"));
+	}
+
+	public void testVarcharEquality() {
+		Filter f = new EqualTo("comment", "x");
+		assertTrue(accepts(f, "1|true|x"));
+		assertFalse(accepts(f, "1|true|y"));
+		f = new In("comment", new Object[] { "y", "z" });
+		assertTrue(accepts(f, "1|true|z"));
+		assertFalse(accepts(f, "1|true|x"));
+	}
+
+	public void testOrderedComparisonsLeftToSpark() {
+		Filter[] filters = { new GreaterThan("comment", "x"), new LessThanOrEqual("flag", false),
+				new EqualTo("comment", "x"), new GreaterThan("id", 3) };
+		Filter[] unhandled = relation.unhandledFilters(filters);
+		assertEquals(2, unhandled.length);
+		assertSame(filters[0], unhandled[0]);
+		assertSame(filters[1], unhandled[1]);
+	}
+
+	public void testOrderedComparisonsHandled() {
+		Filter f = new GreaterThanOrEqual("price", 5.0);
+		assertTrue(accepts(f, "1|true|x|5.0|b"));
+		assertFalse(accepts(f, "1|true|x|4.9995|b"));
+		f = new LessThan("name", "b");
+		assertTrue(accepts(f, "1|true|x|5.0|a"));
+		assertFalse(accepts(f, "1|true|x|5.0|b"));
+	}
+}